@@ -1,6 +1,8 @@
 package nablarch.core.log.app;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import nablarch.core.date.BusinessDateUtil;
@@ -30,6 +32,9 @@ import nablarch.core.util.annotation.Published;
  * dbUrl = [jdbc:oracle:thin:@localhost:1521:xe]
  * threadCount = [3]
  * </pre>
+ * <p/>
+ * ログフォーマットの解析結果とログ出力対象のキー値は、初回の出力時に生成して保持する。
+ * 2回目以降の出力では、{@link SystemRepository}からの設定値の取得のみを行う。
  *
  * @author hisaaki sioiri
  */
@@ -60,6 +65,12 @@ public class ApplicationSettingLogFormatter {
     /** アプリケーション設定及び業務日付の出力項目 */
     private final Map<String, LogItem<ApplicationSettingLogContext>> appWithDateLogItem = getAppSettingsWithDateLogItems();
 
+    /** アプリケーション設定のフォーマット済みの出力項目 */
+    private volatile LogItem<ApplicationSettingLogContext>[] formattedAppLogItems;
+
+    /** アプリケーション設定及び業務日付のフォーマット済みの出力項目 */
+    private volatile LogItem<ApplicationSettingLogContext>[] formattedAppWithDateLogItems;
+
     /**
      * アプリケーション設定に関するログメッセージを生成する。
      * <p/>
@@ -75,8 +86,11 @@ public class ApplicationSettingLogFormatter {
      * @return 生成したアプリケーション設定ログ
      */
     public String getAppSettingsLogMsg() {
-        LogItem<ApplicationSettingLogContext>[] items = LogUtil
-                .createFormattedLogItems(appLogItem, getAppSettingsLogFormat());
+        LogItem<ApplicationSettingLogContext>[] items = formattedAppLogItems;
+        if (items == null) {
+            items = LogUtil.createFormattedLogItems(appLogItem, getAppSettingsLogFormat());
+            formattedAppLogItems = items;
+        }
         return LogUtil.formatMessage(items, new ApplicationSettingLogContext());
     }
 
@@ -89,9 +103,11 @@ public class ApplicationSettingLogFormatter {
      * @return 生成したアプリケーション設定ログ
      */
     public String getAppSettingsWithDateLogMsg() {
-        LogItem<ApplicationSettingLogContext>[] items = LogUtil
-                .createFormattedLogItems(appWithDateLogItem,
-                        getAppSettingsWithDateLogFormat());
+        LogItem<ApplicationSettingLogContext>[] items = formattedAppWithDateLogItems;
+        if (items == null) {
+            items = LogUtil.createFormattedLogItems(appWithDateLogItem, getAppSettingsWithDateLogFormat());
+            formattedAppWithDateLogItems = items;
+        }
         return LogUtil.formatMessage(items, new ApplicationSettingLogContext());
     }
 
@@ -181,11 +197,16 @@ public class ApplicationSettingLogFormatter {
      * <p/>
      * ログ設定から取得したログ出力対象のシステム設定キーを元に、{@link nablarch.core.repository.SystemRepository#get(String)}から設定値を取得し、
      * メッセージを生成する。
+     * <p/>
+     * ログ出力対象のシステム設定キーは、初回の取得時にログ設定から取得して保持する。
      *
      * @author hisaaki sioiri
      */
     protected static class SystemSettings implements LogItem<ApplicationSettingLogContext> {
 
+        /** ログ出力対象のシステム設定キー */
+        private volatile String[] keys;
+
         /**
          * システム設定値を取得する。
          *
@@ -193,20 +214,17 @@ public class ApplicationSettingLogFormatter {
          * @return システム設定値を取得する。
          */
         public String get(ApplicationSettingLogContext context) {
-            String systemSettingItems = AppLogUtil.getProps().get(
-                    PROPS_PREFIX + "systemSettingItems");
-
-            if (StringUtil.isNullOrEmpty(systemSettingItems)) {
+            String[] systemSettingKeys = keys;
+            if (systemSettingKeys == null) {
+                systemSettingKeys = getSystemSettingKeys();
+                keys = systemSettingKeys;
+            }
+            if (systemSettingKeys.length == 0) {
                 return "";
             }
 
-            String[] strings = systemSettingItems.split(",");
             StringBuilder result = new StringBuilder();
-            for (String str : strings) {
-                String key = str.trim();
-                if (StringUtil.isNullOrEmpty(key)) {
-                    continue;
-                }
+            for (String key : systemSettingKeys) {
                 Object object = SystemRepository.get(key);
                 result.append('\n');
                 result.append("\t\t");
@@ -217,6 +235,29 @@ public class ApplicationSettingLogFormatter {
             }
             return result.toString();
         }
+
+        /**
+         * ログ設定からログ出力対象のシステム設定キーを取得する。
+         *
+         * @return ログ出力対象のシステム設定キー。指定されていない場合は空の配列
+         */
+        private static String[] getSystemSettingKeys() {
+            String systemSettingItems = AppLogUtil.getProps().get(
+                    PROPS_PREFIX + "systemSettingItems");
+
+            if (StringUtil.isNullOrEmpty(systemSettingItems)) {
+                return new String[0];
+            }
+
+            List<String> result = new ArrayList<String>();
+            for (String str : systemSettingItems.split(",")) {
+                String key = str.trim();
+                if (!StringUtil.isNullOrEmpty(key)) {
+                    result.add(key);
+                }
+            }
+            return result.toArray(new String[result.size()]);
+        }
     }
 
     /**
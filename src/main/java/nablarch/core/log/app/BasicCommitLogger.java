@@ -1,5 +1,11 @@
 package nablarch.core.log.app;
 
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import nablarch.core.log.Logger;
 import nablarch.core.log.LoggerManager;
 
@@ -16,22 +22,73 @@ import nablarch.core.log.LoggerManager;
  * TOTAL COMMIT COUNT = [総コミット件数]    # 本ログは、最後に１度のみ出力される。
  * }
  * </pre>
+ * <p/>
+ * {@link #setStatisticsEnabled(boolean)}でtrueを指定した場合は、コミットログに下記の統計情報を付加する。
+ * {@link #setTotalCount(long)}で処理対象の総件数を指定した場合は、残り時間の見込みも付加する。
+ * <pre>
+ * {@code
+ *
+ * COMMIT COUNT = [コミット件数] ELAPSED TIME = [経過時間(秒)] INTERVAL TPS = [前回出力からの1秒あたりのコミット件数]
+ *     TOTAL TPS = [開始からの1秒あたりのコミット件数] ETA = [残り時間の見込み(秒)]
+ * TOTAL COMMIT COUNT = [総コミット件数] ELAPSED TIME = [経過時間(秒)] TOTAL TPS = [開始からの1秒あたりのコミット件数]
+ * }
+ * </pre>
+ * 経過時間は、コミットログを出力する時のみ{@link System#nanoTime()}で取得する。<br>
+ * {@link #setReportInterval(int)}で秒数を指定した場合は、ログ出力間隔の件数に加えて、指定された秒数毎にコミットログを出力する。
+ * <p/>
+ * コミット件数はスレッド毎に異なるセルに加算するため、複数スレッドで共有した場合でも{@link #increment(long)}は排他制御を行わない。
+ * 全てのセルの合計は、下記のいずれかの場合のみ算出する。
+ * <ul>
+ * <li>加算したセルの値と、そのセルで前回合計を算出した時点の他のセルの合計の和(合計の下限)が、次にコミットログを出力する件数に達した場合</li>
+ * <li>加算したセルの値が、ログ出力間隔をセル数の4倍で割った件数の倍数をまたいだ場合</li>
+ * </ul>
+ * 1スレッドのみで加算する場合は合計の下限が合計と一致するため、コミットログはログ出力間隔ちょうどの件数で出力する。
+ * 複数スレッドで加算する場合、コミットログの出力は、最大でログ出力間隔の1/4程度の件数だけ遅れる場合がある。<br>
+ * ログ出力間隔を超えたか否かは、次にコミットログを出力する件数をCASで更新して判定するため、
+ * コミットログは1回の間隔につき1スレッドのみが出力する。
  *
  * @author hisaaki sioiri
  */
 public class BasicCommitLogger implements CommitLogger {
 
-    /** コミット件数 */
-    private long commitCount;
-
     /** 総コミット件数 */
-    private long totalCommitCount;
+    private final StripedLongCounter totalCommitCount = new StripedLongCounter();
+
+    /** 次にコミットログを出力する総コミット件数 */
+    private final AtomicLong nextReportCount = new AtomicLong();
+
+    /** 1セルあたりの合計の算出回数(ログ出力間隔毎) */
+    private static final int CHECKS_PER_CELL = 4;
+
+    /** 合計を算出するセルの値の間隔 */
+    private volatile long checkStride = 1;
 
     /** コミットログ出力間隔。 */
     private int interval = 500;
 
     /** 初期化フラグ */
-    private boolean initialized = false;
+    private volatile boolean initialized = false;
+
+    /** 統計情報を出力するか否か */
+    private boolean statisticsEnabled = false;
+
+    /** 処理対象の総件数。不明な場合は0 */
+    private long totalCount = 0;
+
+    /** コミットログを出力する時間の間隔(秒)。時間の間隔で出力しない場合は0 */
+    private int reportInterval = 0;
+
+    /** 時間の間隔でコミットログを出力するタイマー */
+    private Timer reportTimer;
+
+    /** 初期化した時刻(ナノ秒) */
+    private long startNanoTime;
+
+    /** 前回コミットログを出力した時刻(ナノ秒) */
+    private long lastReportNanoTime;
+
+    /** 前回コミットログを出力した時の総コミット件数 */
+    private long lastReportCount;
 
     /** コミットログを出力する際に使用するロガー */
     private static final Logger LOGGER = LoggerManager.get(
@@ -40,11 +97,27 @@ public class BasicCommitLogger implements CommitLogger {
     /**
      * {@inheritDoc}
      * コミット件数及び、総コミット件数を初期化(0クリア)する。
+     * 初期化済みの場合は、時間の間隔でコミットログを出力するタイマーを停止してから初期化する。
      */
-    public void initialize() {
-        commitCount = 0;
-        totalCommitCount = 0;
+    public synchronized void initialize() {
+        cancelReportTimer();
+        totalCommitCount.reset();
+        nextReportCount.set(interval);
+        checkStride = Math.max(1, interval / (totalCommitCount.getCellCount() * CHECKS_PER_CELL));
+        startNanoTime = System.nanoTime();
+        lastReportNanoTime = startNanoTime;
+        lastReportCount = 0;
         initialized = true;
+        if (reportInterval > 0) {
+            long period = TimeUnit.SECONDS.toMillis(reportInterval);
+            reportTimer = new Timer(BasicCommitLogger.class.getSimpleName(), true);
+            reportTimer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    report(totalCommitCount.sum());
+                }
+            }, period, period);
+        }
     }
 
     /**
@@ -56,18 +129,71 @@ public class BasicCommitLogger implements CommitLogger {
      * {@inheritDoc}
      * @throws IllegalStateException 本オブジェクトが初期化されていない場合
      */
-    public synchronized void increment(long count) throws IllegalStateException {
+    public void increment(long count) throws IllegalStateException {
         if (!initialized) {
             throw new IllegalStateException("not initialized object.");
         }
-        commitCount += count;
-        if (commitCount >= interval) {
-            totalCommitCount += commitCount;
-            commitCount = 0;
-            LOGGER.logInfo("COMMIT COUNT = [" + totalCommitCount + ']');
+        long cellValue = totalCommitCount.add(count);
+        long threshold = nextReportCount.get();
+        long stride = checkStride;
+        if (totalCommitCount.getLowerBound(cellValue) < threshold
+                && cellValue / stride == (cellValue - count) / stride) {
+            // 合計の下限が出力件数に達しておらず、加算したセルの値も間隔をまたいでいないため、全てのセルの合計は算出しない。
+            return;
+        }
+        long total = totalCommitCount.sum();
+        if (total >= threshold && nextReportCount.compareAndSet(threshold, total + interval)) {
+            report(total);
         }
     }
 
+    /**
+     * コミットログを出力する。
+     * <p/>
+     * 件数の間隔と時間の間隔で同時に出力する場合があるため、前回出力した時の情報の更新は排他制御を行う。
+     * @param total 総コミット件数
+     */
+    private synchronized void report(long total) {
+        if (!statisticsEnabled) {
+            LOGGER.logInfo("COMMIT COUNT = [" + total + ']');
+            return;
+        }
+        long now = System.nanoTime();
+        long count = Math.max(total, lastReportCount);
+        double elapsedSeconds = toSeconds(now - startNanoTime);
+        double intervalTps = getTps(count - lastReportCount, now - lastReportNanoTime);
+        double totalTps = getTps(count, now - startNanoTime);
+        lastReportNanoTime = now;
+        lastReportCount = count;
+        StringBuilder message = new StringBuilder(128)
+                .append("COMMIT COUNT = [").append(total).append(']')
+                .append(String.format(Locale.ROOT, " ELAPSED TIME = [%.3f] INTERVAL TPS = [%.2f] TOTAL TPS = [%.2f]",
+                                      elapsedSeconds, intervalTps, totalTps));
+        if (totalCount > 0 && totalTps > 0) {
+            message.append(String.format(Locale.ROOT, " ETA = [%.1f]", Math.max(totalCount - count, 0) / totalTps));
+        }
+        LOGGER.logInfo(message.toString());
+    }
+
+    /**
+     * ナノ秒を秒に変換する。
+     * @param nanos ナノ秒
+     * @return 秒
+     */
+    private static double toSeconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * 1秒あたりのコミット件数を算出する。
+     * @param count コミット件数
+     * @param nanos 経過時間(ナノ秒)
+     * @return 1秒あたりのコミット件数。経過時間が0の場合は0
+     */
+    private static double getTps(long count, long nanos) {
+        return nanos <= 0 ? 0 : count / toSeconds(nanos);
+    }
+
     /**
      * {@inheritDoc}
      * 総コミット件数をログ出力する。
@@ -78,8 +204,25 @@ public class BasicCommitLogger implements CommitLogger {
             return;
         }
         initialized = false;
-        totalCommitCount += commitCount;
-        LOGGER.logInfo("TOTAL COMMIT COUNT = [" + totalCommitCount + ']');
+        cancelReportTimer();
+        long total = totalCommitCount.sum();
+        if (!statisticsEnabled) {
+            LOGGER.logInfo("TOTAL COMMIT COUNT = [" + total + ']');
+            return;
+        }
+        long elapsed = System.nanoTime() - startNanoTime;
+        LOGGER.logInfo("TOTAL COMMIT COUNT = [" + total + ']'
+                + String.format(Locale.ROOT, " ELAPSED TIME = [%.3f] TOTAL TPS = [%.2f]", toSeconds(elapsed), getTps(total, elapsed)));
+    }
+
+    /**
+     * 時間の間隔でコミットログを出力するタイマーを停止する。
+     */
+    private void cancelReportTimer() {
+        if (reportTimer != null) {
+            reportTimer.cancel();
+            reportTimer = null;
+        }
     }
 
     /**
@@ -93,5 +236,36 @@ public class BasicCommitLogger implements CommitLogger {
         // マルチスレッド時に使用されることは想定していないためである。
         this.interval = interval;
     }
+
+    /**
+     * 統計情報を出力するか否かを設定する。
+     *
+     * @param statisticsEnabled 統計情報を出力する場合はtrue
+     */
+    public void setStatisticsEnabled(boolean statisticsEnabled) {
+        this.statisticsEnabled = statisticsEnabled;
+    }
+
+    /**
+     * 処理対象の総件数を設定する。
+     * <p/>
+     * 統計情報を出力する場合に、残り時間の見込みの算出に使用する。
+     *
+     * @param totalCount 処理対象の総件数
+     */
+    public void setTotalCount(long totalCount) {
+        this.totalCount = totalCount;
+    }
+
+    /**
+     * コミットログを出力する時間の間隔(秒)を設定する。
+     * <p/>
+     * 0以下を指定した場合は、時間の間隔では出力しない。
+     *
+     * @param reportInterval 時間の間隔(秒)
+     */
+    public void setReportInterval(int reportInterval) {
+        this.reportInterval = reportInterval;
+    }
 }
 
@@ -1,9 +1,11 @@
 package nablarch.core.log.app;
 
+import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -15,14 +17,28 @@ import nablarch.core.log.LogSettings;
 import nablarch.core.log.LogUtil;
 import nablarch.core.log.Logger;
 import nablarch.core.log.LoggerManager;
+import nablarch.core.log.basic.LogLevel;
 import nablarch.core.message.Message;
-import nablarch.core.message.MessageLevel;
 import nablarch.core.message.MessageUtil;
+import nablarch.core.message.StringResource;
 import nablarch.core.util.StringUtil;
 import nablarch.core.util.annotation.Published;
 
 /**
  * 障害通知ログと障害解析ログのメッセージをフォーマットするクラス。
+ * <p/>
+ * 障害コードから取得したメッセージのテンプレートは、障害コードと言語の組み合わせ毎にキャッシュする。
+ * キャッシュするテンプレートの数の上限は、failureLogFormatter.messageCacheSizeで指定する(指定しなければ1000。0の場合はキャッシュしない)。
+ * 上限に達した場合は、最も長く使用されていないテンプレートをキャッシュから取り除く。<br>
+ * キャッシュしたテンプレートは、キャッシュから取り除かれるまで使用し続けるため、メッセージの再読み込みには対応しない。<br>
+ * failureLogFormatter.preloadMessagesにtrueを指定した場合は、アプリケーション用の障害コード変換情報に含まれる障害コードの
+ * テンプレートを初期化時に読み込む。読み込みには、メッセージの言語(指定がない場合はデフォルトの言語)を使用する。
+ * 障害コードの数がキャッシュの上限を超える場合は、最後に読み込んだ上限の数のテンプレートのみキャッシュに残る。
+ * <p/>
+ * failureLogFormatter.monitorAggregationにtrueを指定した場合は、障害通知ログの連続発生を集約する。
+ * 障害コードとスタックトレースのルート要素の組み合わせ毎に、集約期間内の最初の障害のみ障害通知ログを出力し、
+ * 2回目以降は回数のみ数えて、集約期間の終了時に発生回数を出力する。障害解析ログは集約しない。<br>
+ * 集約期間(秒)は、failureLogFormatter.monitorAggregationWindowで指定する(指定しなければ60)。
  * @author Kiyohito Itoh
  */
 @Published(tag = "architect")
@@ -70,6 +86,24 @@ public class FailureLogFormatter {
     /** フレームワーク用のメッセージID変換情報のファイルパスを取得する際に使用するプロパティ名 */
     private static final String PROPS_FW_MESSAGE_ID_FILE_PATH = PROPS_PREFIX + "fwMessageIdFilePath";
     
+    /** キャッシュするメッセージのテンプレートの数の上限を取得する際に使用するプロパティ名 */
+    private static final String PROPS_MESSAGE_CACHE_SIZE = PROPS_PREFIX + "messageCacheSize";
+    
+    /** 初期化時にメッセージのテンプレートを読み込むか否かを取得する際に使用するプロパティ名 */
+    private static final String PROPS_PRELOAD_MESSAGES = PROPS_PREFIX + "preloadMessages";
+    
+    /** 障害通知ログの連続発生を集約するか否かを取得する際に使用するプロパティ名 */
+    private static final String PROPS_MONITOR_AGGREGATION = PROPS_PREFIX + "monitorAggregation";
+    
+    /** 障害通知ログの集約期間(秒)を取得する際に使用するプロパティ名 */
+    private static final String PROPS_MONITOR_AGGREGATION_WINDOW = PROPS_PREFIX + "monitorAggregationWindow";
+    
+    /** 障害通知ログの集約期間(秒)のデフォルト値 */
+    private static final long DEFAULT_MONITOR_AGGREGATION_WINDOW = 60;
+    
+    /** キャッシュするメッセージのテンプレートの数の上限のデフォルト値 */
+    private static final int DEFAULT_MESSAGE_CACHE_SIZE = 1000;
+    
     /** デフォルトの障害コード */
     private String defaultFailureCode;
     
@@ -85,12 +119,35 @@ public class FailureLogFormatter {
     /** フレームワーク用の障害コード(キーはパッケージ名) */
     private List<Map.Entry<String, String>> fwFailureCodes;
     
+    /** フレームワーク用の障害コードをパッケージ名のプレフィックスで検索するトライ木 */
+    private PrefixTrie fwFailureCodeTrie;
+    
     /** 障害通知ログのフォーマット済みのログ出力項目 */
     private LogItem<FailureLogContext>[] notificationLogItems;
     
     /** 障害解析ログのフォーマット済みのログ出力項目 */
     private LogItem<FailureLogContext>[] analysisLogItems;
     
+    /** キャッシュするメッセージのテンプレートの数の上限 */
+    private int messageCacheSize;
+    
+    /** 障害通知ログの連続発生を集約する{@link FailureStormAggregator}。集約しない場合はnull */
+    private FailureStormAggregator monitorAggregator;
+    
+    /**
+     * 障害コードと言語の組み合わせ毎のメッセージのテンプレート。
+     * <p/>
+     * 使用順に並べ、上限を超えた場合は最も長く使用されていないテンプレートを取り除く。
+     * アクセスで順序が変わるため、参照する場合もマップ自身でロックする。
+     */
+    private final Map<MessageCacheKey, MessageTemplate> messageTemplates
+            = new LinkedHashMap<MessageCacheKey, MessageTemplate>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<MessageCacheKey, MessageTemplate> eldest) {
+                    return size() > messageCacheSize;
+                }
+            };
+    
     /**
      * フォーマット済みのログ出力項目を初期化する。
      */
@@ -103,6 +160,14 @@ public class FailureLogFormatter {
         locale = props.containsKey(PROPS_LANGUAGE) ? new Locale(props.get(PROPS_LANGUAGE)) : null;
         appFailureCodes = getAppFailureCodes(props);
         fwFailureCodes = getFwFailureCodes(props);
+        fwFailureCodeTrie = PrefixTrie.build(fwFailureCodes);
+        messageCacheSize = getMessageCacheSize(props);
+        if (Boolean.valueOf(props.get(PROPS_PRELOAD_MESSAGES))) {
+            preloadMessages();
+        }
+        if (Boolean.valueOf(props.get(PROPS_MONITOR_AGGREGATION))) {
+            monitorAggregator = new FailureStormAggregator(getMonitorAggregationWindow(props));
+        }
         
         Map<String, LogItem<FailureLogContext>> logItems = getLogItems(props);
         notificationLogItems = LogUtil.createFormattedLogItems(logItems, getNotificationFormat(props));
@@ -130,6 +195,74 @@ public class FailureLogFormatter {
         }
     }
     
+    /**
+     * キャッシュするメッセージのテンプレートの数の上限を取得する。
+     * @param props 各種ログの設定情報
+     * @return キャッシュするメッセージのテンプレートの数の上限
+     */
+    protected int getMessageCacheSize(Map<String, String> props) {
+        if (!props.containsKey(PROPS_MESSAGE_CACHE_SIZE)) {
+            return DEFAULT_MESSAGE_CACHE_SIZE;
+        }
+        String value = props.get(PROPS_MESSAGE_CACHE_SIZE);
+        int cacheSize;
+        try {
+            cacheSize = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                String.format("%s must be able to convert to Integer. value = [%s]", PROPS_MESSAGE_CACHE_SIZE, value), e);
+        }
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException(
+                String.format("%s must be 0 or more. value = [%s]", PROPS_MESSAGE_CACHE_SIZE, value));
+        }
+        return cacheSize;
+    }
+    
+    /**
+     * 障害通知ログの集約期間(秒)を取得する。
+     * @param props 各種ログの設定情報
+     * @return 障害通知ログの集約期間(秒)
+     */
+    protected long getMonitorAggregationWindow(Map<String, String> props) {
+        if (!props.containsKey(PROPS_MONITOR_AGGREGATION_WINDOW)) {
+            return DEFAULT_MONITOR_AGGREGATION_WINDOW;
+        }
+        String value = props.get(PROPS_MONITOR_AGGREGATION_WINDOW);
+        long window;
+        try {
+            window = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                String.format("%s must be able to convert to Long. value = [%s]", PROPS_MONITOR_AGGREGATION_WINDOW, value), e);
+        }
+        if (window < 1) {
+            throw new IllegalArgumentException(
+                String.format("%s must be 1 or more. value = [%s]", PROPS_MONITOR_AGGREGATION_WINDOW, value));
+        }
+        return window;
+    }
+    
+    /**
+     * アプリケーション用の障害コード変換情報に含まれる障害コードのメッセージのテンプレートを読み込む。
+     * <p/>
+     * メッセージを取得できない障害コードは読み込まない。
+     * 該当の障害コードは、障害ログの出力時にメッセージの取得に失敗した旨を出力する。
+     */
+    private void preloadMessages() {
+        Locale preloadLocale = locale != null ? locale : Locale.getDefault();
+        for (String failureCode : appFailureCodes.values()) {
+            if (defaultFailureCode.equals(failureCode)) {
+                continue;
+            }
+            try {
+                getMessageTemplate(failureCode, preloadLocale);
+            } catch (RuntimeException e) {
+                // 障害ログの出力時に改めて取得し、警告を出力する。
+            }
+        }
+    }
+    
     /**
      * アプリケーション用の障害コード変換情報を取得する。
      * @param props 各種ログの設定情報
@@ -341,9 +474,71 @@ public class FailureLogFormatter {
     protected String format(LogItem<FailureLogContext>[] formattedLogItems,
                              Throwable error, Object data,
                              String failureCode, Object[] messageOptions) {
-        failureCode = getFailureCode(failureCode, error);
-        FailureLogContext context = new FailureLogContext(failureCode, getMessage(failureCode, messageOptions, error), data);
-        return LogUtil.formatMessage(formattedLogItems, context);
+        return LogUtil.formatMessage(formattedLogItems, createFailureLogContext(error, data, failureCode, messageOptions));
+    }
+    
+    /**
+     * 生成済みの出力項目を使用して、出力が有効な障害通知ログと障害解析ログのメッセージをフォーマットする。
+     * <p/>
+     * {@link FailureLogUtil}は、{@link #createFailureLogContext(Throwable, Object, String, Object[])}で
+     * 障害コードの変換とメッセージの取得を1回だけ行い、本メソッドで両方のメッセージをフォーマットする。
+     * 出力が無効なメッセージはフォーマットしない。<br>
+     * メッセージのフォーマットを変更するサブクラスは、本メソッドをオーバーライドすること。
+     * @param context {@link #createFailureLogContext(Throwable, Object, String, Object[])}で生成した出力項目
+     * @param error エラー情報
+     * @param notificationEnabled 障害通知ログを出力する場合はtrue
+     * @param analysisEnabled 障害解析ログを出力する場合はtrue
+     * @return フォーマット済みのメッセージ。出力が無効なメッセージはnull
+     */
+    public FailureLogMessages formatMessages(FailureLogContext context, Throwable error,
+                                             boolean notificationEnabled, boolean analysisEnabled) {
+        return new FailureLogMessages(
+                notificationEnabled ? LogUtil.formatMessage(notificationLogItems, context) : null,
+                analysisEnabled ? LogUtil.formatMessage(analysisLogItems, context) : null);
+    }
+    
+    /**
+     * 障害通知ログを出力するかを判定する。
+     * <p/>
+     * 障害通知ログの連続発生を集約する場合は、集約期間内の最初の障害の場合のみ出力する。
+     * 集約しない場合は常に出力する。
+     * @param context {@link #createFailureLogContext(Throwable, Object, String, Object[])}で生成した出力項目
+     * @param error エラー情報
+     * @param level 出力レベル
+     * @return 障害通知ログを出力する場合はtrue
+     */
+    public boolean needsToWriteNotification(FailureLogContext context, Throwable error, LogLevel level) {
+        if (monitorAggregator == null) {
+            return true;
+        }
+        return monitorAggregator.record(context.getFailureCode(), getRootExceptionPoint(error), level);
+    }
+    
+    /**
+     * 終了処理を行う。
+     * <p/>
+     * 障害通知ログの連続発生を集約している場合は、全ての集約期間を終了し、集約結果を出力する。
+     */
+    public void terminate() {
+        if (monitorAggregator != null) {
+            monitorAggregator.terminate();
+        }
+    }
+    
+    /**
+     * 障害通知ログと障害解析ログの出力項目を生成する。
+     * <p/>
+     * 障害コードの変換とメッセージの取得を1回だけ行う。
+     * @param error エラー情報
+     * @param data 処理対象データ
+     * @param failureCode 障害コード
+     * @param messageOptions 障害コードからメッセージを取得する際に使用するオプション情報
+     * @return 障害通知ログと障害解析ログの出力項目
+     */
+    public FailureLogContext createFailureLogContext(Throwable error, Object data,
+                                                     String failureCode, Object[] messageOptions) {
+        String logFailureCode = getFailureCode(failureCode, error);
+        return new FailureLogContext(logFailureCode, getMessage(logFailureCode, messageOptions, error), data);
     }
     
     /**
@@ -353,6 +548,7 @@ public class FailureLogFormatter {
      * デフォルトのメッセージが指定されていない場合はブランクとなる。
      * 
      * メッセージ取得では、指定されたメッセージの言語を使用する。
+     * 障害コードと言語の組み合わせ毎に、メッセージのテンプレートをキャッシュから取得する。
      * メッセージの言語が指定されていない場合は、{@link ThreadContext#getLanguage()}を使用する。
      * 
      * メッセージ取得で例外が発生した場合は、下記の固定メッセージを返す。
@@ -363,15 +559,15 @@ public class FailureLogFormatter {
      * @param options 障害コードからメッセージを取得する際に使用するオプション情報
      * @param error エラー情報
      * @return メッセージ
-     * @see MessageUtil#createMessage(MessageLevel, String, Object...)
+     * @see MessageUtil#getStringResource(String)
      */
     protected String getMessage(String failureCode, Object[] options, Throwable error) {
         if (defaultFailureCode.equals(failureCode)) {
             return defaultMessage;
         }
         try {
-            Message message = MessageUtil.createMessage(MessageLevel.ERROR, failureCode, options);
-            return message.formatMessage(getLocale());
+            Locale messageLocale = getLocale();
+            return getMessageTemplate(failureCode, messageLocale).format(options, messageLocale);
             
         } catch (Throwable e) {
             LOGGER.logWarn("message not found. failureCode = [" + failureCode + "]", e);
@@ -379,6 +575,34 @@ public class FailureLogFormatter {
         }
     }
 
+    /**
+     * 障害コードと言語に対応するメッセージのテンプレートを取得する。
+     * <p/>
+     * キャッシュに存在しない場合は、{@link MessageUtil#getStringResource(String)}から取得してキャッシュする。
+     * キャッシュの数が上限を超えた場合は、最も長く使用されていないテンプレートを取り除く。<br>
+     * メッセージの取得はロックの外で行うため、同じテンプレートを複数のスレッドが同時に取得することがある。
+     * @param failureCode 障害コード
+     * @param messageLocale 言語
+     * @return メッセージのテンプレート
+     */
+    private MessageTemplate getMessageTemplate(String failureCode, Locale messageLocale) {
+        if (messageCacheSize == 0) {
+            return new MessageTemplate(MessageUtil.getStringResource(failureCode).getValue(messageLocale));
+        }
+        MessageCacheKey key = new MessageCacheKey(failureCode, messageLocale);
+        MessageTemplate template;
+        synchronized (messageTemplates) {
+            template = messageTemplates.get(key);
+        }
+        if (template == null) {
+            template = new MessageTemplate(MessageUtil.getStringResource(failureCode).getValue(messageLocale));
+            synchronized (messageTemplates) {
+                messageTemplates.put(key, template);
+            }
+        }
+        return template;
+    }
+    
     /**
      * 言語情報を取得する。
      * @return 言語情報
@@ -422,7 +646,7 @@ public class FailureLogFormatter {
         String fwFailureCode = defaultFailureCode;
         StackTraceElement root = getRootExceptionPoint(error);
         if (root != null && root.getClassName().startsWith(FRAMEWORK_PACKAGE_PREFIX)) {
-            String failureCode = findEntryValue(fwFailureCodes, root.getClassName());
+            String failureCode = fwFailureCodeTrie.findLongestPrefixValue(root.getClassName());
             if (failureCode != null) {
                 fwFailureCode = failureCode;
             }
@@ -430,24 +654,6 @@ public class FailureLogFormatter {
         return fwFailureCode;
     }
     
-    /**
-     * {@link Map.Entry}リストからキーのプレフィックス指定で値を検索する。
-     * @param entries {@link Map.Entry}リスト
-     * @param keyPrefix キーのプレフィックス
-     * @return 値。見つからない場合はnull
-     */
-    static String findEntryValue(List<Map.Entry<String, String>> entries, String keyPrefix) {
-        if (keyPrefix == null) {
-            return null;
-        }
-        for (Map.Entry<String, String> entry : entries) {
-            if (keyPrefix.startsWith(entry.getKey())) {
-                return entry.getValue();
-            }
-        }
-        return null;
-    }
-    
     /**
      * スタックトレースからルート要素を取得する。
      * @param error エラー情報
@@ -468,6 +674,127 @@ public class FailureLogFormatter {
         return stackTrace.length != 0 ? stackTrace[0] : null;
     }
     
+    /**
+     * メッセージのテンプレートのキャッシュのキー。
+     * @author Kiyohito Itoh
+     */
+    private static final class MessageCacheKey {
+        
+        /** 障害コード */
+        private final String failureCode;
+        
+        /** 言語 */
+        private final Locale locale;
+        
+        /**
+         * コンストラクタ。
+         * @param failureCode 障害コード
+         * @param locale 言語
+         */
+        private MessageCacheKey(String failureCode, Locale locale) {
+            this.failureCode = failureCode;
+            this.locale = locale;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof MessageCacheKey)) {
+                return false;
+            }
+            MessageCacheKey other = (MessageCacheKey) obj;
+            return failureCode.equals(other.failureCode) && locale.equals(other.locale);
+        }
+        
+        @Override
+        public int hashCode() {
+            return failureCode.hashCode() * 31 + locale.hashCode();
+        }
+    }
+    
+    /**
+     * 解析済みのメッセージのテンプレートを保持するクラス。
+     * <p/>
+     * {@link Message#formatMessage(Locale)}と同様に、オプション情報がない場合はテンプレートをそのまま返し、
+     * オプション情報がある場合は{@link MessageFormat}でフォーマットする。
+     * {@link MessageFormat}はスレッドセーフでないため、解析済みのインスタンスを複製して使用する。
+     * @author Kiyohito Itoh
+     */
+    private static final class MessageTemplate {
+        
+        /** テンプレート */
+        private final String pattern;
+        
+        /** 解析済みの{@link MessageFormat}。オプション情報を使用するまで解析しない */
+        private volatile MessageFormat messageFormat;
+        
+        /**
+         * コンストラクタ。
+         * @param pattern テンプレート
+         */
+        private MessageTemplate(String pattern) {
+            this.pattern = pattern;
+        }
+        
+        /**
+         * メッセージをフォーマットする。
+         * @param options オプション情報
+         * @param locale 言語
+         * @return フォーマット済みのメッセージ
+         */
+        private String format(Object[] options, Locale locale) {
+            if (options == null || options.length == 0) {
+                return pattern;
+            }
+            Object[] formatOptions = new Object[options.length];
+            for (int i = 0; i < options.length; i++) {
+                Object option = options[i];
+                formatOptions[i] = option instanceof StringResource
+                        ? ((StringResource) option).getValue(locale) : option;
+            }
+            MessageFormat format = messageFormat;
+            if (format == null) {
+                format = new MessageFormat(pattern);
+                messageFormat = format;
+            }
+            return ((MessageFormat) format.clone()).format(formatOptions);
+        }
+    }
+    
+    /**
+     * フォーマット済みの障害通知ログと障害解析ログのメッセージを保持するクラス。
+     * @author Kiyohito Itoh
+     */
+    @Published(tag = "architect")
+    public static class FailureLogMessages {
+        /** 障害通知ログのメッセージ */
+        private final String notificationMessage;
+        /** 障害解析ログのメッセージ */
+        private final String analysisMessage;
+        /**
+         * コンストラクタ。
+         * @param notificationMessage 障害通知ログのメッセージ。出力しない場合はnull
+         * @param analysisMessage 障害解析ログのメッセージ。出力しない場合はnull
+         */
+        public FailureLogMessages(String notificationMessage, String analysisMessage) {
+            this.notificationMessage = notificationMessage;
+            this.analysisMessage = analysisMessage;
+        }
+        /**
+         * 障害通知ログのメッセージを取得する。
+         * @return 障害通知ログのメッセージ。出力しない場合はnull
+         */
+        public String getNotificationMessage() {
+            return notificationMessage;
+        }
+        /**
+         * 障害解析ログのメッセージを取得する。
+         * @return 障害解析ログのメッセージ。出力しない場合はnull
+         */
+        public String getAnalysisMessage() {
+            return analysisMessage;
+        }
+    }
+    
     /**
      * 障害通知ログと障害解析ログの出力項目を保持するクラス。
      * @author Kiyohito Itoh
@@ -567,25 +894,29 @@ public class FailureLogFormatter {
      */
     public static class ContactItem implements LogItem<FailureLogContext> {
         
-        /** 連絡先 */
-        private List<Map.Entry<String, String>> contacts;
+        /** 連絡先をリクエストIDのプレフィックスで検索するトライ木 */
+        private PrefixTrie contacts = PrefixTrie.build(null);
         
         /**
          * 連絡先を設定する。
+         * <p/>
+         * 連絡先はリクエストIDのプレフィックスで検索するトライ木に変換して保持する。
          * @param contacts 連絡先
          */
         public void setContacts(List<Map.Entry<String, String>> contacts) {
-            this.contacts = contacts;
+            this.contacts = PrefixTrie.build(contacts);
         }
         
         /**
          * 連絡先を取得する。
+         * <p/>
+         * リクエストIDのプレフィックスとなるキーのうち、最も長いキーの連絡先を返す。
          * @param context {@link FailureLogContext}
          * @return 連絡先
          */
         public String get(FailureLogContext context) {
             String requestId = ThreadContext.getRequestId();
-            return findEntryValue(contacts, requestId);
+            return contacts.findLongestPrefixValue(requestId);
         }
     }
 }
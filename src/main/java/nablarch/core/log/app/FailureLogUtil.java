@@ -6,6 +6,9 @@ import nablarch.core.log.LogUtil;
 import nablarch.core.log.LogUtil.ObjectCreator;
 import nablarch.core.log.Logger;
 import nablarch.core.log.LoggerManager;
+import nablarch.core.log.app.FailureLogFormatter.FailureLogContext;
+import nablarch.core.log.app.FailureLogFormatter.FailureLogMessages;
+import nablarch.core.log.basic.LogLevel;
 import nablarch.core.util.ObjectUtil;
 import nablarch.core.util.annotation.Published;
 
@@ -15,6 +18,8 @@ import nablarch.core.util.annotation.Published;
  * 本ユーティリティを使用するには、app-log.propertiesの設定が必要である。<br/>
  * 障害通知ログは"MONITOR"、障害解析ログは本クラス名(FQCN)をロガー名に使用する。<br/>
  * ログレベルは、ログ出力に使用したメソッドにより決まる。<br/>
+ * 障害コードの変換とメッセージの取得は1回のみ行い、出力が有効なロガーのメッセージのみフォーマットする。<br/>
+ * 障害通知ログの連続発生の集約が有効な場合、障害通知ログは集約期間内の最初の障害のみ出力する。<br/>
  *
  * @author Kiyohito Itoh
  */
@@ -30,21 +35,29 @@ public final class FailureLogUtil {
     /** 障害解析ログを出力するロガー */
     private static final Logger ANALYSIS_LOGGER = LoggerManager.get(FailureLogUtil.class);
     
-    /** {@link FailureLogFormatter}を生成する{@link ObjectCreator} */
-    private static final ObjectCreator<FailureLogFormatter> FAILURE_LOG_FORMATTER_CREATOR = new ObjectCreator<FailureLogFormatter>() {
-        public FailureLogFormatter create() {
-            FailureLogFormatter formatter = null;
-            Map<String, String> props = AppLogUtil.getProps();
-            if (props.containsKey(PROPS_CLASS_NAME)) {
-                String className =  props.get(PROPS_CLASS_NAME);
-                formatter = ObjectUtil.createInstance(className);
-            } else {
-                formatter = new FailureLogFormatter();
-            }
-            return formatter;
+    /** クラスローダ毎の{@link FailureLogFormatterHolder}を生成する{@link ObjectCreator} */
+    private static final ObjectCreator<FailureLogFormatterHolder> FAILURE_LOG_FORMATTER_HOLDER_CREATOR = new ObjectCreator<FailureLogFormatterHolder>() {
+        public FailureLogFormatterHolder create() {
+            return new FailureLogFormatterHolder();
         }
     };
     
+    /**
+     * {@link FailureLogFormatter}を生成する。
+     * @return {@link FailureLogFormatter}
+     */
+    private static FailureLogFormatter createFailureLogFormatter() {
+        FailureLogFormatter formatter = null;
+        Map<String, String> props = AppLogUtil.getProps();
+        if (props.containsKey(PROPS_CLASS_NAME)) {
+            String className =  props.get(PROPS_CLASS_NAME);
+            formatter = ObjectUtil.createInstance(className);
+        } else {
+            formatter = new FailureLogFormatter();
+        }
+        return formatter;
+    }
+    
     /** 使用する{@link FailureLogFormatter}のクラス名を取得する際に使用するプロパティ名 */
     private static final String PROPS_CLASS_NAME = FailureLogFormatter.PROPS_PREFIX + "className";
     
@@ -53,12 +66,68 @@ public final class FailureLogUtil {
         getFailureLogFormatter();
     }
     
+    /**
+     * クラスローダに紐付く{@link FailureLogFormatter}の終了処理を行う。
+     * <p/>
+     * 障害通知ログの連続発生を集約している場合は、集約結果を出力する。<br>
+     * 本メソッドは、{@link nablarch.core.log.basic.BasicLoggerFactory}の終了処理から呼び出される。
+     * 他の{@link nablarch.core.log.LoggerFactory}を使用する場合は、ログ出力の終了処理の前に呼び出すこと。
+     * {@link FailureLogFormatter}を生成していない場合は何もしない。
+     */
+    public static void terminate() {
+        FailureLogFormatter formatter = LogUtil.getObjectBoundToClassLoader(FAILURE_LOG_FORMATTER_HOLDER_CREATOR).getIfCreated();
+        if (formatter == null) {
+            return;
+        }
+        formatter.terminate();
+    }
+    
     /**
      * クラスローダに紐付く{@link FailureLogFormatter}を取得する。
      * @return {@link FailureLogFormatter}
      */
     private static FailureLogFormatter getFailureLogFormatter() {
-        return LogUtil.getObjectBoundToClassLoader(FAILURE_LOG_FORMATTER_CREATOR);
+        return LogUtil.getObjectBoundToClassLoader(FAILURE_LOG_FORMATTER_HOLDER_CREATOR).get();
+    }
+    
+    /**
+     * クラスローダ毎に{@link FailureLogFormatter}を保持するクラス。
+     * <p/>
+     * {@link FailureLogFormatter}は最初に取得した時点で生成する。<br>
+     * 生成したか否かをクラスローダ毎に判定できるため、
+     * 終了処理で生成していない{@link FailureLogFormatter}を生成せずに済む。
+     * @author Kiyohito Itoh
+     */
+    private static final class FailureLogFormatterHolder {
+        
+        /** 生成した{@link FailureLogFormatter}。生成していない場合はnull */
+        private volatile FailureLogFormatter formatter;
+        
+        /**
+         * {@link FailureLogFormatter}を取得する。生成していない場合は生成する。
+         * @return {@link FailureLogFormatter}
+         */
+        FailureLogFormatter get() {
+            FailureLogFormatter result = formatter;
+            if (result == null) {
+                synchronized (this) {
+                    result = formatter;
+                    if (result == null) {
+                        result = createFailureLogFormatter();
+                        formatter = result;
+                    }
+                }
+            }
+            return result;
+        }
+        
+        /**
+         * 生成済みの{@link FailureLogFormatter}を取得する。
+         * @return 生成済みの{@link FailureLogFormatter}。生成していない場合はnull
+         */
+        FailureLogFormatter getIfCreated() {
+            return formatter;
+        }
     }
     
     /**
@@ -94,10 +163,22 @@ public final class FailureLogUtil {
      */
     @Published(tag = "architect")
     public static void logFatal(Throwable error, Object data, String failureCode, Object[] messageOptions, Object[] logOptions) {
-        String notificationMessage = getFailureLogFormatter().formatNotificationMessage(error, data, failureCode, messageOptions);
-        String errorMessage = getFailureLogFormatter().formatAnalysisMessage(error, data, failureCode, messageOptions);
-        MONITOR_LOGGER.logFatal(notificationMessage, error, logOptions);
-        ANALYSIS_LOGGER.logFatal(errorMessage, error, logOptions);
+        boolean notificationEnabled = MONITOR_LOGGER.isFatalEnabled();
+        boolean analysisEnabled = ANALYSIS_LOGGER.isFatalEnabled();
+        if (!notificationEnabled && !analysisEnabled) {
+            return;
+        }
+        FailureLogFormatter formatter = getFailureLogFormatter();
+        FailureLogContext context = formatter.createFailureLogContext(error, data, failureCode, messageOptions);
+        notificationEnabled = notificationEnabled
+                && formatter.needsToWriteNotification(context, error, LogLevel.FATAL);
+        FailureLogMessages messages = formatter.formatMessages(context, error, notificationEnabled, analysisEnabled);
+        if (notificationEnabled) {
+            MONITOR_LOGGER.logFatal(messages.getNotificationMessage(), error, logOptions);
+        }
+        if (analysisEnabled) {
+            ANALYSIS_LOGGER.logFatal(messages.getAnalysisMessage(), error, logOptions);
+        }
     }
     
     /**
@@ -133,10 +214,22 @@ public final class FailureLogUtil {
      */
     @Published(tag = "architect")
     public static void logError(Throwable error, Object data, String failureCode, Object[] messageOptions, Object[] logOptions) {
-        String notificationMessage = getNotificationMessage(error, data, failureCode, messageOptions);
-        String errorMessage = getFailureLogFormatter().formatAnalysisMessage(error, data, failureCode, messageOptions);
-        MONITOR_LOGGER.logError(notificationMessage, error, logOptions);
-        ANALYSIS_LOGGER.logError(errorMessage, error, logOptions);
+        boolean notificationEnabled = MONITOR_LOGGER.isErrorEnabled();
+        boolean analysisEnabled = ANALYSIS_LOGGER.isErrorEnabled();
+        if (!notificationEnabled && !analysisEnabled) {
+            return;
+        }
+        FailureLogFormatter formatter = getFailureLogFormatter();
+        FailureLogContext context = formatter.createFailureLogContext(error, data, failureCode, messageOptions);
+        notificationEnabled = notificationEnabled
+                && formatter.needsToWriteNotification(context, error, LogLevel.ERROR);
+        FailureLogMessages messages = formatter.formatMessages(context, error, notificationEnabled, analysisEnabled);
+        if (notificationEnabled) {
+            MONITOR_LOGGER.logError(messages.getNotificationMessage(), error, logOptions);
+        }
+        if (analysisEnabled) {
+            ANALYSIS_LOGGER.logError(messages.getAnalysisMessage(), error, logOptions);
+        }
     }
     
     /**
@@ -150,6 +243,9 @@ public final class FailureLogUtil {
      */
     @Published(tag = "architect")
     public static void logWarn(Throwable error, Object data, String failureCode, Object... messageOptions) {
+        if (!ANALYSIS_LOGGER.isWarnEnabled()) {
+            return;
+        }
         String errorMessage = getFailureLogFormatter().formatAnalysisMessage(error, data, failureCode, messageOptions);
         ANALYSIS_LOGGER.logWarn(errorMessage, error);
     }
@@ -0,0 +1,192 @@
+package nablarch.core.log.app;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.log.basic.LogLevel;
+
+/**
+ * 障害通知ログの連続発生を集約するクラス。
+ * <p/>
+ * 障害コードとスタックトレースのルート要素の組み合わせ毎に集約期間を管理する。
+ * 集約期間内の最初の障害のみ出力対象とし、2回目以降の障害は回数のみ数える。<br>
+ * 集約期間の終了時に2回以上発生していた場合は、下記の集約結果を"MONITOR"ロガーに出力する。
+ * 出力レベルは、集約期間の最初の障害のレベルとする。
+ * <pre>
+ * fail_code = [障害コード] occurred 4312 times in 60s. root exception point = [スタックトレースのルート要素]
+ * </pre>
+ * 終了処理時に終了した集約期間は、集約期間の開始から終了処理までの実際の秒数を出力する。
+ *
+ * @author Kiyohito Itoh
+ */
+final class FailureStormAggregator {
+
+    /** 集約結果を出力するロガー */
+    private static final Logger MONITOR_LOGGER = LoggerManager.get("MONITOR");
+
+    /** 集約期間の終了を確認する間隔の上限(ミリ秒) */
+    private static final long MAX_CHECK_INTERVAL_MILLIS = 1000;
+
+    /** 集約期間(ミリ秒) */
+    private final long windowMillis;
+
+    /** 集約中の障害(キーは障害コードとスタックトレースのルート要素) */
+    private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+
+    /** 集約期間の終了を確認するタイマー */
+    private final Timer timer;
+
+    /**
+     * コンストラクタ。
+     * @param windowSeconds 集約期間(秒)
+     */
+    FailureStormAggregator(long windowSeconds) {
+        windowMillis = TimeUnit.SECONDS.toMillis(windowSeconds);
+        long checkInterval = Math.min(windowMillis, MAX_CHECK_INTERVAL_MILLIS);
+        timer = new Timer(FailureStormAggregator.class.getSimpleName(), true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                closeWindows(System.currentTimeMillis(), false);
+            }
+        }, checkInterval, checkInterval);
+    }
+
+    /**
+     * 障害の発生を記録し、障害通知ログを出力するかを判定する。
+     * @param failureCode 障害コード
+     * @param rootPoint スタックトレースのルート要素。スタックトレースがない場合はnull
+     * @param level 出力レベル
+     * @return 集約期間内の最初の障害で、障害通知ログを出力する場合はtrue
+     */
+    boolean record(String failureCode, StackTraceElement rootPoint, LogLevel level) {
+        String key = failureCode + '\t' + rootPoint;
+        while (true) {
+            Window window = windows.get(key);
+            if (window == null) {
+                Window created = new Window(failureCode, rootPoint, level, System.currentTimeMillis());
+                if (windows.putIfAbsent(key, created) == null) {
+                    return true;
+                }
+                continue;
+            }
+            if (window.increment()) {
+                return false;
+            }
+            // 終了済みの集約期間の場合は、取り除かれるのを待たずに新しい集約期間を開始する。
+            windows.remove(key, window);
+        }
+    }
+
+    /**
+     * 終了時刻を過ぎた集約期間を終了し、集約結果を出力する。
+     * @param now 現在時刻。集約期間の終了時刻として使用する
+     * @param force 終了時刻を過ぎていない集約期間も終了する場合はtrue
+     */
+    void closeWindows(long now, boolean force) {
+        for (Iterator<Map.Entry<String, Window>> it = windows.entrySet().iterator(); it.hasNext();) {
+            Window window = it.next().getValue();
+            if (force || now - window.startTime >= windowMillis) {
+                it.remove();
+                writeSummary(window, now);
+            }
+        }
+    }
+
+    /**
+     * 全ての集約期間を終了し、集約結果を出力する。
+     */
+    void terminate() {
+        timer.cancel();
+        closeWindows(System.currentTimeMillis(), true);
+    }
+
+    /**
+     * 集約期間を終了し、2回以上発生していた場合は集約結果を出力する。
+     * @param window 集約期間
+     * @param now 現在時刻
+     */
+    private void writeSummary(Window window, long now) {
+        long count = window.close();
+        if (count < 2) {
+            return;
+        }
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(Math.max(0, Math.min(now - window.startTime, windowMillis)));
+        String message = String.format(Locale.ROOT, "fail_code = [%s] occurred %d times in %ds. root exception point = [%s]",
+                                       window.failureCode, count, seconds, window.rootPoint);
+        if (window.level == LogLevel.FATAL) {
+            MONITOR_LOGGER.logFatal(message);
+        } else {
+            MONITOR_LOGGER.logError(message);
+        }
+    }
+
+    /**
+     * 集約期間を表すクラス。
+     * @author Kiyohito Itoh
+     */
+    private static final class Window {
+
+        /** 障害コード */
+        private final String failureCode;
+
+        /** スタックトレースのルート要素 */
+        private final StackTraceElement rootPoint;
+
+        /** 出力レベル */
+        private final LogLevel level;
+
+        /** 開始時刻 */
+        private final long startTime;
+
+        /** 発生回数。集約期間の終了後は負の値 */
+        private final AtomicLong count = new AtomicLong(1);
+
+        /**
+         * コンストラクタ。
+         * @param failureCode 障害コード
+         * @param rootPoint スタックトレースのルート要素
+         * @param level 出力レベル
+         * @param startTime 開始時刻
+         */
+        private Window(String failureCode, StackTraceElement rootPoint, LogLevel level, long startTime) {
+            this.failureCode = failureCode;
+            this.rootPoint = rootPoint;
+            this.level = level;
+            this.startTime = startTime;
+        }
+
+        /**
+         * 発生回数を加算する。
+         * @return 加算した場合はtrue。集約期間が終了済みの場合はfalse
+         */
+        private boolean increment() {
+            while (true) {
+                long current = count.get();
+                if (current < 0) {
+                    return false;
+                }
+                if (count.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 集約期間を終了する。
+         * @return 集約期間内の発生回数
+         */
+        private long close() {
+            return count.getAndSet(-1);
+        }
+    }
+}
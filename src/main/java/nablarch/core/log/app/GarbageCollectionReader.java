@@ -0,0 +1,59 @@
+package nablarch.core.log.app;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+/**
+ * JVM全体のガベージコレクションの累計回数と累計時間を取得するクラス。
+ * <p/>
+ * {@link GarbageCollectorMXBean}は初回使用時に一度だけ取得し、全てのコレクタの値を合算して返す。
+ * 
+ * @author Kiyohito Itoh
+ */
+final class GarbageCollectionReader {
+    
+    /** {@link GarbageCollectorMXBean} */
+    private static final GarbageCollectorMXBean[] GC_BEANS;
+    
+    static {
+        List<GarbageCollectorMXBean> beans = ManagementFactory.getGarbageCollectorMXBeans();
+        GC_BEANS = beans.toArray(new GarbageCollectorMXBean[beans.size()]);
+    }
+    
+    /** 隠蔽コンストラクタ */
+    private GarbageCollectionReader() {
+    }
+    
+    /**
+     * ガベージコレクションの累計回数を取得する。
+     * @return ガベージコレクションの累計回数。取得できない場合は-1
+     */
+    static long getCollectionCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : GC_BEANS) {
+            long count = bean.getCollectionCount();
+            if (count < 0) {
+                return -1;
+            }
+            total += count;
+        }
+        return total;
+    }
+    
+    /**
+     * ガベージコレクションの累計時間(ミリ秒)を取得する。
+     * @return ガベージコレクションの累計時間(ミリ秒)。取得できない場合は-1
+     */
+    static long getCollectionTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : GC_BEANS) {
+            long time = bean.getCollectionTime();
+            if (time < 0) {
+                return -1;
+            }
+            total += time;
+        }
+        return total;
+    }
+}
@@ -2,12 +2,23 @@ package nablarch.core.log.app;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicReference;
+
+import nablarch.core.log.LogUtil;
+import nablarch.core.log.LogUtil.ObjectCreator;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.log.basic.InitializationTimings;
 
 /**
  * ログ初期化処理を助けるクラス。
  *
  * 依存関係にないために静的に初期化処理を呼び出せない
  * ログユーティリティクラスに対して初期化処理を起動する。
+ * <p/>
+ * 初期化処理の呼び出し毎の所要時間を記録し、全ての初期化完了後にINFOレベルで1件のログとして出力する。
+ * 初期化したクラスがない場合は出力しない。
+ * 直近の所要時間は{@link #getInitializationTimings()}で取得できる。所要時間はクラスローダ毎に保持する。
  *
  * @author T.Kawasaki
  */
@@ -19,9 +30,20 @@ public class LogInitializationHelper {
             "nablarch.fw.messaging.logging.MessagingLogUtil"
     };
 
+    /** クラスローダに紐付く直近の初期化の所要時間の参照を生成する{@link ObjectCreator} */
+    private static final ObjectCreator<AtomicReference<InitializationTimings>> LAST_TIMINGS_CREATOR
+            = new ObjectCreator<AtomicReference<InitializationTimings>>() {
+        public AtomicReference<InitializationTimings> create() {
+            return new AtomicReference<InitializationTimings>();
+        }
+    };
+
     /** 初期化対象となるクラス */
     private final String[] classesToInitialize;
 
+    /** 初期化の所要時間 */
+    private final InitializationTimings timings = new InitializationTimings("log initialization helper timings.");
+
     /**
      * コンストラクタ。
      *
@@ -53,11 +75,31 @@ public class LogInitializationHelper {
         initializer.initializeAll();
     }
 
+    /**
+     * 直近の初期化の所要時間を取得する。
+     * <p/>
+     * 初期化処理を呼び出したクラスのクラス名で、呼び出しに要した時間(ナノ秒)を保持する。
+     * クラスパスに存在しないクラスの所要時間は保持しない。
+     * @return クラスローダに紐付く直近の初期化の所要時間。初期化を行っていない場合はnull
+     */
+    public static InitializationTimings getInitializationTimings() {
+        return LogUtil.getObjectBoundToClassLoader(LAST_TIMINGS_CREATOR).get();
+    }
+
     /** 全ての初期化対象クラスの初期化を行う。*/
     void initializeAll() {
         for (String className : classesToInitialize) {
             invokeInitialize(className);
         }
+        LogUtil.getObjectBoundToClassLoader(LAST_TIMINGS_CREATOR).set(timings);
+        if (timings.getTimings().isEmpty()) {
+            // 初期化したクラスがない場合は、空の所要時間を出力しない。
+            return;
+        }
+        Logger logger = LoggerManager.get(LogInitializationHelper.class);
+        if (logger.isInfoEnabled()) {
+            logger.logInfo(timings.format());
+        }
     }
 
     /**
@@ -87,7 +129,9 @@ public class LogInitializationHelper {
     private void invokeInitialize(Class<?> clazz) throws IllegalStateException {
         try {
             Method initializeMethod = clazz.getDeclaredMethod("initialize");
+            long start = System.nanoTime();
             initializeMethod.invoke(null);
+            timings.record(clazz.getName(), System.nanoTime() - start);
         } catch (NoSuchMethodException e) {
             throw wrap(clazz, e);
         } catch (InvocationTargetException e) {
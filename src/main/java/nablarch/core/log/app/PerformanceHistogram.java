@@ -0,0 +1,169 @@
+package nablarch.core.log.app;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 実行時間の分布を集計するヒストグラム。
+ * <p/>
+ * 値を対数スケールのバケットに振り分けて件数のみを保持するため、
+ * 記録件数に関わらず使用メモリ量は一定となる。<br>
+ * 2のべき乗毎の区間を8つのバケットに分割するため、パーセンタイル値の相対誤差は最大12.5%となる。
+ * <p/>
+ * 記録処理はロックを使用せず、アトミック変数のみで行う。
+ * そのため、複数スレッドから同時に記録を行っても、スレッドが待たされることはない。
+ * 
+ * @author Kiyohito Itoh
+ */
+public final class PerformanceHistogram {
+    
+    /** 2のべき乗毎の区間を分割するバケット数を表すビット数 */
+    private static final int SUB_BUCKET_BITS = 3;
+    
+    /** 2のべき乗毎の区間を分割するバケット数 */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    
+    /** バケット数 */
+    private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+    
+    /** バケット毎の件数 */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    
+    /** 件数 */
+    private final AtomicLong count = new AtomicLong();
+    
+    /** 合計値 */
+    private final AtomicLong sum = new AtomicLong();
+    
+    /** 最小値 */
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    
+    /** 最大値 */
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+    
+    /**
+     * 値を記録する。
+     * @param value 値(負の値は0とみなす)
+     */
+    public void record(long value) {
+        long v = value < 0 ? 0 : value;
+        counts.incrementAndGet(indexOf(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        long currentMin;
+        while (v < (currentMin = min.get())) {
+            if (min.compareAndSet(currentMin, v)) {
+                break;
+            }
+        }
+        long currentMax;
+        while (v > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, v)) {
+                break;
+            }
+        }
+    }
+    
+    /**
+     * 件数を取得する。
+     * @return 件数
+     */
+    public long getCount() {
+        return count.get();
+    }
+    
+    /**
+     * 合計値を取得する。
+     * @return 合計値
+     */
+    public long getSum() {
+        return sum.get();
+    }
+    
+    /**
+     * 最小値を取得する。
+     * @return 最小値。記録がない場合は0
+     */
+    public long getMin() {
+        return count.get() == 0 ? 0 : min.get();
+    }
+    
+    /**
+     * 最大値を取得する。
+     * @return 最大値。記録がない場合は0
+     */
+    public long getMax() {
+        return count.get() == 0 ? 0 : max.get();
+    }
+    
+    /**
+     * 平均値を取得する。
+     * @return 平均値。記録がない場合は0
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+    
+    /**
+     * 指定されたパーセンタイルの値を取得する。
+     * <p/>
+     * 値は該当するバケットの上限値とし、最大値を超える場合は最大値を返す。
+     * @param percentile パーセンタイル(0～100)
+     * @return パーセンタイル値。記録がない場合は0
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long accumulated = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            accumulated += snapshot[i];
+            if (accumulated >= rank) {
+                return Math.min(upperBoundOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+    
+    /**
+     * 値に対応するバケットのインデックスを取得する。
+     * @param value 値(0以上)
+     * @return バケットのインデックス
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int magnitude = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+    
+    /**
+     * バケットに含まれる値の上限値を取得する。
+     * @param index バケットのインデックス
+     * @return 上限値
+     */
+    static long upperBoundOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKET_COUNT;
+        long width = 1L << (magnitude - SUB_BUCKET_BITS);
+        long lowerBound = (SUB_BUCKET_COUNT + subBucket) * width;
+        long upperBound = lowerBound + width - 1;
+        return upperBound < 0 ? Long.MAX_VALUE : upperBound;
+    }
+}
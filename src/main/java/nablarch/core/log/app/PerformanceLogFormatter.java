@@ -5,21 +5,119 @@ import java.lang.management.MemoryMXBean;
 import java.lang.management.MemoryUsage;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import nablarch.core.ThreadContext;
 import nablarch.core.log.DateItemSupport;
 import nablarch.core.log.LogItem;
 import nablarch.core.log.LogUtil;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
 import nablarch.core.util.annotation.Published;
 
 /**
  * パフォーマンスログのメッセージをフォーマットするクラス。
+ * <p/>
+ * 出力対象のポイント(performanceLogFormatter.targetPoints)には、ポイントのほか、
+ * 任意の文字列に一致する"*"を含むパターン(例:"/action/order/*"、"*Dao")をカンマ区切りで指定できる。<br>
+ * パターンはインスタンス生成時に判定用の構造に変換し、判定結果はポイント毎にキャッシュする。
+ * キャッシュするポイントの数の上限は、performanceLogFormatter.targetPointCacheSizeで指定する(指定しなければ1024)。
+ * <p/>
+ * 実行時間は{@link System#nanoTime()}を使用して測定する。
+ * 開始日時は測定開始時に一度だけ{@link System#currentTimeMillis()}から取得し、
+ * 終了日時は開始日時に実行時間を加算して求める。
+ * そのため、測定中にシステム時刻が変更された場合でも実行時間は影響を受けない。
+ * <p/>
+ * $cpuTime$、$userTime$、$allocatedBytes$は、{@link java.lang.management.ThreadMXBean}から取得した
+ * カレントスレッドのCPU時間(マイクロ秒)、ユーザモードのCPU時間(マイクロ秒)、ヒープ割り当て量(バイト)の測定中の増分を出力する。
+ * ヒープ全体の値を出力するメモリ項目と異なり、測定対象の処理を実行したスレッドの値のみを出力する。<br>
+ * これらの値は、フォーマットに含まれている場合のみ取得する。JVMが値の取得をサポートしていない場合は-1を出力する。
+ * <p/>
+ * $gcCount$、$gcTimeMillis$は、{@link java.lang.management.GarbageCollectorMXBean}から取得した
+ * JVM全体のガベージコレクションの回数と時間(ミリ秒)の測定中の増分を出力する。<br>
+ * $gcDominated$は、測定中のガベージコレクションの時間が実行時間に占める割合が、
+ * 指定された割合(performanceLogFormatter.gcDominatedRatio。指定しなければ0.5)以上の場合にtrueを出力する。<br>
+ * これらの値は、フォーマットに含まれている場合のみ取得する。
+ * <p/>
+ * 集計モードを有効にした場合は、測定毎のメッセージをフォーマットせず、
+ * ポイント毎の実行時間を{@link PerformanceHistogram}に記録する。<br>
+ * 集計結果(件数、最小値、最大値、平均値、50/90/99/99.9パーセンタイル値)は、
+ * 指定された間隔毎と終了処理時に、"PERFORMANCE"ロガーを使用してINFOレベルで出力する。<br>
+ * intervalには、前回の出力(初回はインスタンス生成)から今回の出力までの実際の集計期間(秒)を出力する。
+ * 終了処理時に出力する集計結果は、指定された間隔より短い期間となる。<br>
+ * 集計期間内に測定が行われなかったポイントは、集計結果の出力時にヒストグラムを破棄する。
+ * ヒストグラムを保持するポイントの数が上限に達した場合、新しいポイントの実行時間は記録せず、
+ * 記録しなかった件数を次の集計結果に出力する。<br>
+ * 集計結果の出力例を下記に示す。
+ * <pre>
+ * performance summary. interval = [60.002s] unit = [ms]
+ *     point = [/action/order] count = [4312] min = [0.412] max = [83.886] mean = [2.157] p50 = [1.441] p90 = [3.932] p99 = [16.777] p99.9 = [58.720]
+ * </pre>
+ * 集計モードに関する設定を下記に示す。
+ * <dl>
+ * <dt>performanceLogFormatter.aggregation
+ * <dd>集計モードを有効にするか否か。オプション。<br>
+ *     trueを指定した場合に集計モードとなる。指定しなければfalse。
+ * <dt>performanceLogFormatter.aggregationInterval
+ * <dd>集計結果の出力間隔(秒)。オプション。<br>
+ *     指定しなければ60秒。0を指定した場合は終了処理時のみ出力する。
+ *     0を指定した場合は、測定が行われなくなったポイントのヒストグラムも破棄されない。
+ * <dt>performanceLogFormatter.maxPoints
+ * <dd>ヒストグラムを保持するポイントの数の上限。オプション。<br>
+ *     指定しなければ1000。0を指定した場合は記録しない。
+ * </dl>
+ * <p/>
+ * {@link #startAsync(String)}で開始した測定は、測定ハンドル({@link PerformanceLogToken})を使用して、
+ * 測定を開始したスレッドと異なるスレッドから{@link #end(PerformanceLogToken, String)}で終了できる。<br>
+ * 終了していないハンドルの数の上限はperformanceLogFormatter.maxPendingTokens(指定しなければ10000)、
+ * 終了していないハンドルを破棄するまでのタイムアウト(秒)はperformanceLogFormatter.pendingTokenTimeout(指定しなければ600)で指定する。
+ * <p/>
+ * {@link PerformanceMetricsExporter}の設定を行った場合は、ポイント毎の起動時からの累積の実行時間を
+ * {@link PerformanceHistogram}に記録し、Prometheusのテキスト形式で公開する。<br>
+ * 累積のヒストグラムも集計中のヒストグラムと同時に破棄するため、
+ * 測定が行われなくなったポイントは公開されなくなり、再度測定された場合は0から累積する。
+ * <p/>
+ * 集計結果を出力するタイマーと{@link PerformanceMetricsExporter}は、コンストラクタではなく{@link #initialize()}で開始する。
+ * サブクラスの生成が完了する前に、他のスレッドからインスタンスが参照されることを防ぐためである。
+ * <p/>
+ * スパンモードを有効にした場合は、同一スレッド内で入れ子になったポイントを親子関係のあるスパンとして記録し、
+ * 最も外側のポイントの測定終了時に、スパンのツリー全体を1つのメッセージにフォーマットする。<br>
+ * メッセージは、最も外側のポイントの測定結果を指定されたフォーマット(performanceLogFormatter.format)で
+ * フォーマットし、その後にスパンのツリーを付加したものとなる。<br>
+ * 各スパンには、子スパンを含む実行時間(total_time)と、子スパンを除いた実行時間(self_time)を出力する。
+ * 同じ親の下で同じポイントが複数回測定された場合は1つのスパンにまとめ、回数と実行時間の合計を出力する。<br>
+ * 最も外側のスパンを開始した実行時IDと異なる実行時IDでスパンを開始した場合は、
+ * 終了されなかったスパンがスレッドに残っているとみなし、測定中のスパンを破棄してから開始する。
+ * 明示的に破棄する場合は{@link #clearSpans()}を使用する。<br>
+ * スパンモードのメッセージのうち、スパンのツリー部分の出力例を下記に示す。
+ * <pre>
+ * span tree. unit = [ms]
+ *     point = [/action/order] count = [1] total_time = [12.345] self_time = [2.100] result = [success]
+ *         point = [OrderDao] count = [3] total_time = [10.245] self_time = [1.200] result = [null]
+ *             point = [SQL] count = [3] total_time = [9.045] self_time = [9.045] result = [null]
+ * </pre>
+ * スパンモードに関する設定を下記に示す。集計モードが有効な場合、スパンモードは使用しない。
+ * <dl>
+ * <dt>performanceLogFormatter.span
+ * <dd>スパンモードを有効にするか否か。オプション。<br>
+ *     trueを指定した場合にスパンモードとなる。指定しなければfalse。
+ * </dl>
  * @author Kiyohito Itoh
  */
 @Published(tag = "architect")
@@ -42,26 +140,139 @@ public class PerformanceLogFormatter {
     /** 出力対象のポイントを取得する際に使用するプロパティ名 */
     private static final String PROPS_TARGET_POINTS = PROPS_PREFIX + "targetPoints";
     
+    /** 出力対象の判定結果をキャッシュするポイントの数の上限を取得する際に使用するプロパティ名 */
+    private static final String PROPS_TARGET_POINT_CACHE_SIZE = PROPS_PREFIX + "targetPointCacheSize";
+    
+    /** 出力対象の判定結果をキャッシュするポイントの数の上限のデフォルト値 */
+    private static final int DEFAULT_TARGET_POINT_CACHE_SIZE = 1024;
+    
     /** 開始日時と終了日時のフォーマットに使用する日時パターンを取得する際に使用するプロパティ名 */
     private static final String PROPS_DATE_PATTERN = PROPS_PREFIX + "datePattern";
     
     /** フォーマットを取得する際に使用するプロパティ名 */
     private static final String PROPS_FORMAT = PROPS_PREFIX + "format";
     
-    /** 出力対象のポイント */
-    private final Set<String> targetPoints;
+    /** 集計モードを有効にするか否かを取得する際に使用するプロパティ名 */
+    private static final String PROPS_AGGREGATION = PROPS_PREFIX + "aggregation";
+    
+    /** 終了していない測定ハンドルの数の上限を取得する際に使用するプロパティ名 */
+    private static final String PROPS_MAX_PENDING_TOKENS = PROPS_PREFIX + "maxPendingTokens";
+    
+    /** 終了していない測定ハンドルの数の上限のデフォルト値 */
+    private static final int DEFAULT_MAX_PENDING_TOKENS = 10000;
+    
+    /** 終了していない測定ハンドルのタイムアウト(秒)を取得する際に使用するプロパティ名 */
+    private static final String PROPS_PENDING_TOKEN_TIMEOUT = PROPS_PREFIX + "pendingTokenTimeout";
+    
+    /** 終了していない測定ハンドルのタイムアウト(秒)のデフォルト値 */
+    private static final long DEFAULT_PENDING_TOKEN_TIMEOUT = 600;
+    
+    /** スパンモードを有効にするか否かを取得する際に使用するプロパティ名 */
+    private static final String PROPS_SPAN = PROPS_PREFIX + "span";
+    
+    /** 集計結果の出力間隔(秒)を取得する際に使用するプロパティ名 */
+    private static final String PROPS_AGGREGATION_INTERVAL = PROPS_PREFIX + "aggregationInterval";
+    
+    /** 実行時間の大半をガベージコレクションが占めたとみなす割合を取得する際に使用するプロパティ名 */
+    private static final String PROPS_GC_DOMINATED_RATIO = PROPS_PREFIX + "gcDominatedRatio";
+    
+    /** 実行時間の大半をガベージコレクションが占めたとみなす割合のデフォルト値 */
+    private static final double DEFAULT_GC_DOMINATED_RATIO = 0.5;
+    
+    /** ヒストグラムを保持するポイントの数の上限を取得する際に使用するプロパティ名 */
+    private static final String PROPS_MAX_POINTS = PROPS_PREFIX + "maxPoints";
+    
+    /** ヒストグラムを保持するポイントの数の上限のデフォルト値 */
+    private static final long DEFAULT_MAX_POINTS = 1000;
+    
+    /** 集計結果の出力間隔(秒)のデフォルト値 */
+    private static final long DEFAULT_AGGREGATION_INTERVAL = 60;
+    
+    /** 集計結果の出力に使用するパーセンタイル */
+    private static final double[] SUMMARY_PERCENTILES = {50, 90, 99, 99.9};
+    
+    /** 集計結果の出力に使用するパーセンタイルのラベル */
+    private static final String[] SUMMARY_PERCENTILE_LABELS = {"p50", "p90", "p99", "p99.9"};
+    
+    /** 集計結果を出力するロガー */
+    private static final Logger SUMMARY_LOGGER = LoggerManager.get("PERFORMANCE");
+    
+    /** 出力対象のポイントの判定に使用する{@link PointMatcher} */
+    private final PointMatcher targetPoints;
     
     /** フォーマット済みのログ出力項目 */
     private final LogItem<PerformanceLogContext>[] formattedLogItems;
     
     /** 出力対象にメモリ項目が含まれているか否か。 */
     private final boolean containsMemoryItem;
+    
+    /** 出力対象にCPU時間の項目が含まれているか否か。 */
+    private final boolean containsCpuTimeItem;
+    
+    /** 出力対象にヒープ割り当て量の項目が含まれているか否か。 */
+    private final boolean containsAllocatedBytesItem;
+    
+    /** 出力対象にガベージコレクションの項目が含まれているか否か。 */
+    private final boolean containsGcItem;
+    
+    /** 実行時間の大半をガベージコレクションが占めたとみなす割合 */
+    private final double gcDominatedRatio;
+    
+    /** 集計モードが有効か否か。 */
+    private final boolean aggregationEnabled;
+    
+    /** 集計結果の出力間隔(秒) */
+    private final long aggregationInterval;
+    
+    /** ヒストグラムを保持するポイントの数の上限 */
+    private final long maxPoints;
+    
+    /** ポイントの数が上限に達したため記録しなかった実行時間の件数 */
+    private final AtomicLong unrecordedCount = new AtomicLong();
+    
+    /** 集計期間の開始時の{@link System#nanoTime()}の値 */
+    private long summaryStartNanoTime = System.nanoTime();
+    
+    /** ポイント毎の起動時からの累積のヒストグラム。{@link PerformanceMetricsExporter}を使用する場合のみ記録する */
+    private final ConcurrentMap<String, PerformanceHistogram> cumulativeHistograms
+            = new ConcurrentHashMap<String, PerformanceHistogram>();
+    
+    /** 測定結果を公開する{@link PerformanceMetricsExporter}。公開しない場合はnull */
+    private final PerformanceMetricsExporter metricsExporter;
+    
+    /** 終了していない測定ハンドルと測定開始時の{@link System#nanoTime()}の値 */
+    private final ConcurrentMap<PerformanceLogToken, Long> pendingTokens
+            = new ConcurrentHashMap<PerformanceLogToken, Long>();
+    
+    /** 終了していない測定ハンドルの数の上限 */
+    private final long maxPendingTokens;
+    
+    /** 終了していない測定ハンドルのタイムアウト(ナノ秒) */
+    private final long pendingTokenTimeoutNanos;
+    
+    /** スパンモードが有効か否か。 */
+    private final boolean spanEnabled;
+    
+    /** スレッド毎の測定中のスパン */
+    private final ThreadLocal<SpanStack> spanStack = new ThreadLocal<SpanStack>() {
+        @Override
+        protected SpanStack initialValue() {
+            return new SpanStack();
+        }
+    };
+    
+    /** ポイント毎の集計中のヒストグラム。破棄したポイントの参照先はnullとなる */
+    private final ConcurrentMap<String, AtomicReference<PerformanceHistogram>> histograms
+            = new ConcurrentHashMap<String, AtomicReference<PerformanceHistogram>>();
+    
+    /** 集計結果を定期的に出力するタイマー。開始前、または使用しない場合はnull */
+    private Timer summaryTimer;
 
-    /** コンテキストマップ */
-    private final ThreadLocal<Map<String, PerformanceLogContext>> contextMap = new ThreadLocal<Map<String, PerformanceLogContext>>() {
+    /** スレッド毎の測定中のコンテキスト */
+    private final ThreadLocal<ContextStack> contextStack = new ThreadLocal<ContextStack>() {
         @Override
-        protected Map<String, PerformanceLogContext> initialValue() {
-            return new HashMap<String, PerformanceLogContext>();
+        protected ContextStack initialValue() {
+            return new ContextStack();
         }
     };
     
@@ -72,14 +283,19 @@ public class PerformanceLogFormatter {
         
         Map<String, String> props = AppLogUtil.getProps();
         
+        Set<String> points;
         if (props.containsKey(PROPS_TARGET_POINTS)) {
-            targetPoints = new HashSet<String>();
+            points = new HashSet<String>();
             for (String point : props.get(PROPS_TARGET_POINTS).split(",")) {
-                targetPoints.add(point.trim());
+                points.add(point.trim());
             }
         } else {
-            targetPoints = Collections.emptySet();
+            points = Collections.emptySet();
         }
+        targetPoints = new PointMatcher(points, getTargetPointCacheSize(props));
+        maxPendingTokens = getNonNegativeLong(props, PROPS_MAX_PENDING_TOKENS, DEFAULT_MAX_PENDING_TOKENS);
+        pendingTokenTimeoutNanos = TimeUnit.SECONDS.toNanos(
+                getNonNegativeLong(props, PROPS_PENDING_TOKEN_TIMEOUT, DEFAULT_PENDING_TOKEN_TIMEOUT));
         
         DateFormat dateFormat = DEFAULT_DATE_FORMAT;
         if (props.containsKey(PROPS_DATE_PATTERN)) {
@@ -91,10 +307,140 @@ public class PerformanceLogFormatter {
             format = props.get(PROPS_FORMAT);
         }
         
+        gcDominatedRatio = getGcDominatedRatio(props);
+        
         Map<String, LogItem<PerformanceLogContext>> logItems = getLogItems(dateFormat);
         formattedLogItems = LogUtil.createFormattedLogItems(logItems, format);
         containsMemoryItem = LogUtil.contains(formattedLogItems, MaxMemoryItem.class,
                 StartFreeMemoryItem.class, EndFreeMemoryItem.class, StartUsedMemoryItem.class, EndUsedMemoryItem.class);
+        containsCpuTimeItem = LogUtil.contains(formattedLogItems, CpuTimeItem.class, UserTimeItem.class);
+        containsAllocatedBytesItem = LogUtil.contains(formattedLogItems, AllocatedBytesItem.class);
+        containsGcItem = LogUtil.contains(formattedLogItems, GcCountItem.class, GcTimeItem.class, GcDominatedItem.class);
+        
+        aggregationEnabled = Boolean.valueOf(props.get(PROPS_AGGREGATION));
+        spanEnabled = !aggregationEnabled && Boolean.valueOf(props.get(PROPS_SPAN));
+        aggregationInterval = getAggregationInterval(props);
+        maxPoints = getNonNegativeLong(props, PROPS_MAX_POINTS, DEFAULT_MAX_POINTS);
+        
+        metricsExporter = PerformanceMetricsExporter.isConfigured(props)
+                ? new PerformanceMetricsExporter(this, props) : null;
+    }
+    
+    /**
+     * 集計結果を出力するタイマーと{@link PerformanceMetricsExporter}を開始する。
+     * <p/>
+     * 生成が完了したインスタンスに対して一度だけ呼び出す。開始済みの場合は何もしない。
+     * サブクラスでオーバーライドする場合は、スーパークラスのメソッドを呼び出すこと。
+     */
+    public synchronized void initialize() {
+        if (summaryTimer != null) {
+            return;
+        }
+        if (aggregationEnabled && aggregationInterval > 0) {
+            long periodMillis = TimeUnit.SECONDS.toMillis(aggregationInterval);
+            summaryTimer = new Timer(PerformanceLogFormatter.class.getSimpleName() + "-summary", true);
+            summaryTimer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    writeSummary();
+                }
+            }, periodMillis, periodMillis);
+        }
+        if (metricsExporter != null) {
+            metricsExporter.start();
+        }
+    }
+    
+    /**
+     * 出力対象の判定結果をキャッシュするポイントの数の上限を取得する。
+     * @param props 各種ログの設定情報
+     * @return 出力対象の判定結果をキャッシュするポイントの数の上限
+     */
+    private static int getTargetPointCacheSize(Map<String, String> props) {
+        if (!props.containsKey(PROPS_TARGET_POINT_CACHE_SIZE)) {
+            return DEFAULT_TARGET_POINT_CACHE_SIZE;
+        }
+        String value = props.get(PROPS_TARGET_POINT_CACHE_SIZE);
+        int cacheSize;
+        try {
+            cacheSize = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                String.format("%s must be able to convert to Integer. value = [%s]", PROPS_TARGET_POINT_CACHE_SIZE, value), e);
+        }
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException(
+                String.format("%s must be 0 or more. value = [%s]", PROPS_TARGET_POINT_CACHE_SIZE, value));
+        }
+        return cacheSize;
+    }
+    
+    /**
+     * 0以上の数値を指定するプロパティの値を取得する。
+     * @param props 各種ログの設定情報
+     * @param propName プロパティ名
+     * @param defaultValue 指定されていない場合のデフォルト値
+     * @return プロパティの値
+     */
+    private static long getNonNegativeLong(Map<String, String> props, String propName, long defaultValue) {
+        if (!props.containsKey(propName)) {
+            return defaultValue;
+        }
+        String value = props.get(propName);
+        long number;
+        try {
+            number = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                String.format("%s must be able to convert to Long. value = [%s]", propName, value), e);
+        }
+        if (number < 0) {
+            throw new IllegalArgumentException(
+                String.format("%s must be 0 or more. value = [%s]", propName, value));
+        }
+        return number;
+    }
+    
+    /**
+     * 実行時間の大半をガベージコレクションが占めたとみなす割合を取得する。
+     * @param props 各種ログの設定情報
+     * @return 実行時間の大半をガベージコレクションが占めたとみなす割合
+     */
+    private double getGcDominatedRatio(Map<String, String> props) {
+        if (!props.containsKey(PROPS_GC_DOMINATED_RATIO)) {
+            return DEFAULT_GC_DOMINATED_RATIO;
+        }
+        String value = props.get(PROPS_GC_DOMINATED_RATIO);
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                String.format("%s must be able to convert to Double. value = [%s]", PROPS_GC_DOMINATED_RATIO, value), e);
+        }
+    }
+    
+    /**
+     * 集計結果の出力間隔(秒)を取得する。
+     * @param props 各種ログの設定情報
+     * @return 集計結果の出力間隔(秒)
+     */
+    private long getAggregationInterval(Map<String, String> props) {
+        if (!props.containsKey(PROPS_AGGREGATION_INTERVAL)) {
+            return DEFAULT_AGGREGATION_INTERVAL;
+        }
+        String value = props.get(PROPS_AGGREGATION_INTERVAL);
+        long interval;
+        try {
+            interval = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                String.format("%s must be able to convert to Long. value = [%s]", PROPS_AGGREGATION_INTERVAL, value), e);
+        }
+        if (interval < 0) {
+            throw new IllegalArgumentException(
+                String.format("%s must be 0 or more. value = [%s]", PROPS_AGGREGATION_INTERVAL, value));
+        }
+        return interval;
     }
     
     /**
@@ -109,84 +455,830 @@ public class PerformanceLogFormatter {
         logItems.put("$startTime$", new StartTimeItem(dateFormat));
         logItems.put("$endTime$", new EndTimeItem(dateFormat));
         logItems.put("$executionTime$", new ExecutionTimeItem());
+        logItems.put("$executionTimeMicros$", new ExecutionTimeMicrosItem());
+        logItems.put("$executionTimeNanos$", new ExecutionTimeNanosItem());
         logItems.put("$maxMemory$", new MaxMemoryItem());
         logItems.put("$startFreeMemory$", new StartFreeMemoryItem());
         logItems.put("$endFreeMemory$", new EndFreeMemoryItem());
         logItems.put("$startUsedMemory$", new StartUsedMemoryItem());
         logItems.put("$endUsedMemory$", new EndUsedMemoryItem());
+        logItems.put("$cpuTime$", new CpuTimeItem());
+        logItems.put("$userTime$", new UserTimeItem());
+        logItems.put("$allocatedBytes$", new AllocatedBytesItem());
+        logItems.put("$gcCount$", new GcCountItem());
+        logItems.put("$gcTimeMillis$", new GcTimeItem());
+        logItems.put("$gcDominated$", new GcDominatedItem(gcDominatedRatio));
         return logItems;
     }
     
     /**
      * 測定対象であるかを判定する。
+     * <p/>
+     * 出力対象のポイントに指定されたいずれかのパターンに一致する場合に測定対象とする。
      * @param point 測定対象を識別するID
      * @return 測定対象の場合はtrue
      */
     public boolean isTargetPoint(String point) {
-        return targetPoints.contains(point);
+        return targetPoints.matches(point);
+    }
+    
+    /**
+     * 集計モードが有効であるかを判定する。
+     * @return 集計モードが有効な場合はtrue
+     */
+    public boolean isAggregationEnabled() {
+        return aggregationEnabled;
+    }
+    
+    /**
+     * スパンモードが有効であるかを判定する。
+     * @return スパンモードが有効な場合はtrue
+     */
+    public boolean isSpanEnabled() {
+        return spanEnabled;
+    }
+    
+    /**
+     * 測定を開始する。
+     * <p/>
+     * スパンモードが有効な場合は、カレントスレッドで測定中のスパンの子としてスパンを開始する。
+     * 最も外側のスパンの場合は、フォーマットに使用する測定開始時の値も取得する。
+     * @param point 測定対象を識別するID
+     */
+    public void start(String point) {
+        
+        String executionId = ThreadContext.getExecutionId();
+        
+        if (spanEnabled) {
+            SpanStack spans = spanStack.get();
+            if (!spans.isEmpty() && !ContextStack.equals(executionId, spans.getExecutionId())) {
+                clearSpans();
+            }
+            if (!spans.push(executionId, point, System.nanoTime())) {
+                return;
+            }
+        }
+        
+        startMeasurement(contextStack.get().push(executionId, point));
+    }
+    
+    /**
+     * カレントスレッドで測定中のスパンを全て破棄する。
+     * <p/>
+     * 例外などにより終了されなかったスパンをスレッドに残さないよう、スレッドを再利用する処理の終了時などに呼び出す。
+     * スパンモードが有効でない場合は何もしない。
+     */
+    public void clearSpans() {
+        if (!spanEnabled) {
+            return;
+        }
+        SpanStack spans = spanStack.get();
+        String executionId = spans.getExecutionId();
+        Span root = spans.clear();
+        if (root != null) {
+            contextStack.get().pop(executionId, root.point);
+        }
+    }
+    
+    /**
+     * スレッドをまたいで終了できる測定を開始する。
+     * <p/>
+     * スパンモードが有効な場合でも、本メソッドで開始した測定はスパンとして扱わない。<br>
+     * 終了していないハンドルの数が上限(performanceLogFormatter.maxPendingTokens)に達した場合は、
+     * タイムアウト(performanceLogFormatter.pendingTokenTimeout)を経過したハンドルを破棄する。
+     * それでも上限に達している場合は、測定を開始せずにnullを返す。
+     * @param point 測定対象を識別するID
+     * @return 測定ハンドル。終了していないハンドルの数が上限に達している場合はnull
+     */
+    public PerformanceLogToken startAsync(String point) {
+        if (pendingTokens.size() >= maxPendingTokens) {
+            purgeExpiredTokens();
+            if (pendingTokens.size() >= maxPendingTokens) {
+                return null;
+            }
+        }
+        PerformanceLogToken token = new PerformanceLogToken(point, ThreadContext.getExecutionId());
+        PerformanceLogContext context = token.getContext();
+        startMeasurement(context);
+        pendingTokens.put(token, context.getStartNanoTime());
+        return token;
+    }
+    
+    /**
+     * タイムアウトを経過した終了していないハンドルを破棄する。
+     */
+    private void purgeExpiredTokens() {
+        long now = System.nanoTime();
+        for (Map.Entry<PerformanceLogToken, Long> entry : pendingTokens.entrySet()) {
+            if (now - entry.getValue() > pendingTokenTimeoutNanos) {
+                pendingTokens.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+    
+    /**
+     * 終了していないハンドルの数を取得する。
+     * @return 終了していないハンドルの数
+     */
+    public int getPendingTokenCount() {
+        return pendingTokens.size();
+    }
+    
+    /**
+     * 測定開始時の値をコンテキストに設定する。
+     * @param context パフォーマンスログのコンテキスト
+     */
+    private void startMeasurement(PerformanceLogContext context) {
+        
+        if (containsMemoryItem) {
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            MemoryUsage heapMemory = memory.getHeapMemoryUsage();
+            long max = heapMemory.getMax();
+            long used = heapMemory.getUsed();
+            long free = max - used;
+            context.setMaxMemory(max);
+            context.setStartUsedMemory(used);
+            context.setStartFreeMemory(free);
+        }
+        
+        if (containsAllocatedBytesItem) {
+            context.setStartAllocatedBytes(ThreadUsageReader.getAllocatedBytes());
+        }
+        
+        if (containsGcItem) {
+            context.setStartGcCount(GarbageCollectionReader.getCollectionCount());
+            context.setStartGcTime(GarbageCollectionReader.getCollectionTime());
+        }
+        
+        if (containsCpuTimeItem) {
+            context.setStartCpuTime(ThreadUsageReader.getCpuTime());
+            context.setStartUserTime(ThreadUsageReader.getUserTime());
+        }
+        
+        context.setStartTime(System.currentTimeMillis());
+        context.setStartNanoTime(System.nanoTime());
+    }
+    
+    /**
+     * 測定を終了し、パフォーマンスログのメッセージをフォーマットする。
+     * <p/>
+     * スパンモードが有効な場合は、最も外側のスパンの終了時のみスパンのツリー全体をフォーマットし、
+     * それ以外のスパンの終了時はnullを返す。
+     * @param point 測定対象を識別するID
+     * @param result 処理結果を表す文字列
+     * @return フォーマット済みのメッセージ。スパンモードで最も外側のスパン以外の場合はnull
+     */
+    public String end(String point, String result) {
+        
+        if (spanEnabled) {
+            return endSpan(point, result);
+        }
+        
+        return endMeasurement(removeContext(point), result, true);
+    }
+    
+    /**
+     * 測定ハンドルを使用して測定を終了し、パフォーマンスログのメッセージをフォーマットする。
+     * <p/>
+     * 測定を開始したスレッドと異なるスレッドから呼び出すことができる。
+     * @param token 測定ハンドル
+     * @param result 処理結果を表す文字列
+     * @return フォーマット済みのメッセージ
+     * @throws IllegalStateException 測定ハンドルの測定が終了済みの場合
+     */
+    public String end(PerformanceLogToken token, String result) throws IllegalStateException {
+        return endMeasurement(removeToken(token), result, token.isStartedOnCurrentThread());
+    }
+    
+    /**
+     * 測定ハンドルを使用して、メッセージをフォーマットせずに測定を終了する。
+     * <p/>
+     * 測定の開始後にログを出力しなくなった場合に、終了していないハンドルを破棄するために使用する。
+     * @param token 測定ハンドル
+     * @throws IllegalStateException 測定ハンドルの測定が終了済みの場合
+     */
+    public void discard(PerformanceLogToken token) throws IllegalStateException {
+        removeToken(token);
+    }
+    
+    /**
+     * 測定終了時の値をコンテキストに設定し、パフォーマンスログのメッセージをフォーマットする。
+     * @param context パフォーマンスログのコンテキスト
+     * @param result 処理結果を表す文字列
+     * @param sameThread 測定を開始したスレッドで終了する場合はtrue
+     * @return フォーマット済みのメッセージ
+     */
+    private String endMeasurement(PerformanceLogContext context, String result, boolean sameThread) {
+        
+        context.setEndNanoTime(System.nanoTime());
+        context.setEndTime(context.getStartTime() + context.getExecutionTime());
+        recordCumulative(context.getPoint(), context.getExecutionTimeNanos());
+        
+        if (containsCpuTimeItem) {
+            context.setEndCpuTime(sameThread ? ThreadUsageReader.getCpuTime() : -1);
+            context.setEndUserTime(sameThread ? ThreadUsageReader.getUserTime() : -1);
+        }
+        
+        if (containsGcItem) {
+            context.setEndGcCount(GarbageCollectionReader.getCollectionCount());
+            context.setEndGcTime(GarbageCollectionReader.getCollectionTime());
+        }
+        
+        if (containsAllocatedBytesItem) {
+            context.setEndAllocatedBytes(sameThread ? ThreadUsageReader.getAllocatedBytes() : -1);
+        }
+        
+        if (containsMemoryItem) {
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            MemoryUsage heapMemory = memory.getHeapMemoryUsage();
+            long max = heapMemory.getMax();
+            long used = heapMemory.getUsed();
+            long free = max - used;
+            context.setEndUsedMemory(used);
+            context.setEndFreeMemory(free);
+        }
+        
+        context.setResult(result);
+        
+        return LogUtil.formatMessage(formattedLogItems, context);
+    }
+    
+    /**
+     * スパンの測定を終了する。
+     * @param point 測定対象を識別するID
+     * @param result 処理結果を表す文字列
+     * @return 最も外側のスパンの場合はフォーマット済みのスパンのツリー。それ以外の場合はnull
+     * @throws IllegalStateException 測定中のスパンが存在しない場合
+     */
+    private String endSpan(String point, String result) throws IllegalStateException {
+        SpanStack spans = spanStack.get();
+        String executionId = spans.getExecutionId();
+        Span span = spans.pop(point, result, System.nanoTime());
+        PerformanceLogContext context = span != null && span.parent == null
+                ? contextStack.get().pop(executionId, point) : null;
+        if (span == null || (span.parent == null && context == null)) {
+            throw new IllegalStateException(
+                String.format("PerformanceLogContext was not found. point = [%s], execution id = [%s]",
+                              point, ThreadContext.getExecutionId()));
+        }
+        if (span.parent != null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append(endMeasurement(context, result, true));
+        sb.append("\n\tspan tree. unit = [ms]");
+        appendSpan(sb, span, 1);
+        return sb.toString();
+    }
+    
+    /**
+     * スパンとその子スパンをフォーマットする。
+     * @param sb フォーマット済みのメッセージを格納するバッファ
+     * @param span スパン
+     * @param depth スパンの深さ(最も外側のスパンは1)
+     */
+    private static void appendSpan(StringBuilder sb, Span span, int depth) {
+        sb.append('\n');
+        for (int i = 0; i <= depth; i++) {
+            sb.append('\t');
+        }
+        sb.append("point = [").append(span.point).append(']')
+          .append(" count = [").append(span.count).append(']')
+          .append(" total_time = [").append(toMillis(span.totalNanos)).append(']')
+          .append(" self_time = [").append(toMillis(span.totalNanos - span.childNanos)).append(']')
+          .append(" result = [").append(span.result).append(']');
+        for (Span child : span.children) {
+            appendSpan(sb, child, depth + 1);
+        }
+    }
+    
+    /**
+     * 測定を終了し、実行時間をポイント毎のヒストグラムに記録する。
+     * <p/>
+     * 集計モードで使用する。メッセージのフォーマットは行わない。
+     * @param point 測定対象を識別するID
+     * @param result 処理結果を表す文字列
+     */
+    public void aggregate(String point, String result) {
+        
+        long endNanoTime = System.nanoTime();
+        
+        PerformanceLogContext context = removeContext(point);
+        
+        context.setEndNanoTime(endNanoTime);
+        record(point, context.getExecutionTimeNanos());
+    }
+    
+    /**
+     * 測定ハンドルを使用して測定を終了し、実行時間をポイント毎のヒストグラムに記録する。
+     * <p/>
+     * 集計モードで使用する。測定を開始したスレッドと異なるスレッドから呼び出すことができる。
+     * @param token 測定ハンドル
+     * @param result 処理結果を表す文字列
+     * @throws IllegalStateException 測定ハンドルの測定が終了済みの場合
+     */
+    public void aggregate(PerformanceLogToken token, String result) throws IllegalStateException {
+        
+        long endNanoTime = System.nanoTime();
+        
+        PerformanceLogContext context = removeToken(token);
+        
+        context.setEndNanoTime(endNanoTime);
+        record(context.getPoint(), context.getExecutionTimeNanos());
+    }
+    
+    /**
+     * 実行時間をポイント毎の集計中のヒストグラムと累積のヒストグラムに記録する。
+     * <p/>
+     * ポイントの数が上限に達している場合は記録しない。
+     * 集計結果の出力で破棄されたヒストグラムを取得した場合は、ヒストグラムを取得し直す。
+     * @param point 測定対象を識別するID
+     * @param executionTimeNanos 実行時間(ナノ秒)
+     */
+    private void record(String point, long executionTimeNanos) {
+        while (true) {
+            AtomicReference<PerformanceHistogram> histogram = getHistogram(point);
+            if (histogram == null) {
+                unrecordedCount.incrementAndGet();
+                return;
+            }
+            PerformanceHistogram current = histogram.get();
+            if (current != null) {
+                current.record(executionTimeNanos);
+                break;
+            }
+            histograms.remove(point, histogram);
+        }
+        recordCumulative(point, executionTimeNanos);
+    }
+    
+    /**
+     * {@link PerformanceMetricsExporter}を使用する場合に、実行時間をポイント毎の累積のヒストグラムに記録する。
+     * @param point 測定対象を識別するID
+     * @param executionTimeNanos 実行時間(ナノ秒)
+     */
+    private void recordCumulative(String point, long executionTimeNanos) {
+        if (metricsExporter == null) {
+            return;
+        }
+        PerformanceHistogram histogram = cumulativeHistograms.get(point);
+        if (histogram == null) {
+            PerformanceHistogram created = new PerformanceHistogram();
+            histogram = cumulativeHistograms.putIfAbsent(point, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(executionTimeNanos);
+    }
+    
+    /**
+     * ポイント毎の起動時からの累積のヒストグラムを取得する。
+     * @return ポイント毎の累積のヒストグラム
+     */
+    Map<String, PerformanceHistogram> getCumulativeHistograms() {
+        return cumulativeHistograms;
+    }
+    
+    /**
+     * 終了していないハンドルから測定ハンドルを取り除き、コンテキストを取得する。
+     * @param token 測定ハンドル
+     * @return 測定ハンドルのコンテキスト
+     * @throws IllegalStateException 測定ハンドルの測定が終了済みの場合
+     */
+    private PerformanceLogContext removeToken(PerformanceLogToken token) throws IllegalStateException {
+        if (!token.markEnded()) {
+            throw new IllegalStateException(
+                String.format("PerformanceLogToken was already ended. point = [%s], execution id = [%s]",
+                              token.getPoint(), token.getExecutionId()));
+        }
+        pendingTokens.remove(token);
+        return token.getContext();
+    }
+    
+    /**
+     * カレントスレッドの測定中のコンテキストから、指定されたポイントのコンテキストを取り除く。
+     * <p/>
+     * 取り除いたコンテキストは、カレントスレッドで次に測定を開始するまで使用できる。
+     * @param point 測定対象を識別するID
+     * @return 取り除いたコンテキスト
+     * @throws IllegalStateException 測定中のコンテキストが存在しない場合
+     */
+    private PerformanceLogContext removeContext(String point) throws IllegalStateException {
+        String executionId = ThreadContext.getExecutionId();
+        PerformanceLogContext context = contextStack.get().pop(executionId, point);
+        if (context == null) {
+            throw new IllegalStateException(
+                String.format("PerformanceLogContext was not found. point = [%s], execution id = [%s]",
+                              point, executionId));
+        }
+        return context;
+    }
+    
+    /**
+     * ポイントに対応する集計中のヒストグラムを取得する。
+     * <p/>
+     * ヒストグラムが存在しない場合は作成する。
+     * 同時に作成されたヒストグラムは上限の判定から漏れるため、ポイントの数は上限をわずかに超えることがある。
+     * @param point 測定対象を識別するID
+     * @return 集計中のヒストグラム。ポイントの数が上限に達している場合はnull
+     */
+    private AtomicReference<PerformanceHistogram> getHistogram(String point) {
+        AtomicReference<PerformanceHistogram> histogram = histograms.get(point);
+        if (histogram == null) {
+            if (histograms.size() >= maxPoints) {
+                return null;
+            }
+            AtomicReference<PerformanceHistogram> created
+                    = new AtomicReference<PerformanceHistogram>(new PerformanceHistogram());
+            histogram = histograms.putIfAbsent(point, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+    
+    /**
+     * 集計結果のメッセージをフォーマットし、集計中のヒストグラムをリセットする。
+     * <p/>
+     * 集計期間内に測定が行われなかったポイントは出力せず、集計中のヒストグラムと累積のヒストグラムを破棄する。
+     * 破棄したポイントの参照先をnullにすることで、記録中のスレッドにヒストグラムを取得し直させる。<br>
+     * 判定と入れ替えの間に記録された実行時間を失わないよう、ヒストグラムは判定の前に入れ替える。
+     * ただし、破棄と同時に記録された実行時間は失われることがある。
+     * @return フォーマット済みのメッセージ。出力対象のポイントがない場合はnull
+     */
+    public synchronized String formatSummary() {
+        long now = System.nanoTime();
+        long windowNanos = now - summaryStartNanoTime;
+        summaryStartNanoTime = now;
+        StringBuilder sb = null;
+        long unrecorded = unrecordedCount.getAndSet(0);
+        if (unrecorded > 0) {
+            sb = createSummaryHeader(windowNanos);
+            sb.append("\n\t").append(unrecorded)
+              .append(" executions were not recorded because the number of points reached the upper limit. max points = [")
+              .append(maxPoints).append(']');
+        }
+        for (Map.Entry<String, AtomicReference<PerformanceHistogram>> entry : histograms.entrySet()) {
+            AtomicReference<PerformanceHistogram> reference = entry.getValue();
+            PerformanceHistogram current = reference.get();
+            if (current == null) {
+                histograms.remove(entry.getKey(), reference);
+                continue;
+            }
+            if (current.getCount() == 0 && reference.compareAndSet(current, null)) {
+                histograms.remove(entry.getKey(), reference);
+                continue;
+            }
+            PerformanceHistogram histogram = reference.getAndSet(new PerformanceHistogram());
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            if (sb == null) {
+                sb = createSummaryHeader(windowNanos);
+            }
+            sb.append("\n\tpoint = [").append(entry.getKey()).append(']')
+              .append(" count = [").append(histogram.getCount()).append(']')
+              .append(" min = [").append(toMillis(histogram.getMin())).append(']')
+              .append(" max = [").append(toMillis(histogram.getMax())).append(']')
+              .append(" mean = [").append(toMillis(histogram.getMean())).append(']');
+            for (int i = 0; i < SUMMARY_PERCENTILES.length; i++) {
+                sb.append(' ').append(SUMMARY_PERCENTILE_LABELS[i]).append(" = [")
+                  .append(toMillis(histogram.getValueAtPercentile(SUMMARY_PERCENTILES[i]))).append(']');
+            }
+        }
+        for (String point : cumulativeHistograms.keySet()) {
+            if (!histograms.containsKey(point)) {
+                cumulativeHistograms.remove(point);
+            }
+        }
+        return sb == null ? null : sb.toString();
+    }
+    
+    /**
+     * 集計結果のメッセージの先頭部分を作成する。
+     * @param windowNanos 集計期間(ナノ秒)
+     * @return 先頭部分を追加したバッファ
+     */
+    private StringBuilder createSummaryHeader(long windowNanos) {
+        StringBuilder sb = new StringBuilder(256 * (histograms.size() + 1));
+        sb.append("performance summary. interval = [")
+          .append(String.format(Locale.ROOT, "%.3f", windowNanos / (double) TimeUnit.SECONDS.toNanos(1)))
+          .append("s] unit = [ms]");
+        return sb;
+    }
+    
+    /**
+     * ナノ秒をミリ秒(小数点以下3桁)の文字列に変換する。
+     * @param nanos ナノ秒
+     * @return ミリ秒の文字列
+     */
+    private static String toMillis(double nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    
+    /**
+     * 集計結果を出力する。
+     * <p/>
+     * 出力で例外が発生した場合は、発生した例外をキャッチし、標準エラーにスタックトレースを出力する。
+     */
+    protected void writeSummary() {
+        try {
+            if (!SUMMARY_LOGGER.isInfoEnabled()) {
+                return;
+            }
+            String summary = formatSummary();
+            if (summary != null) {
+                SUMMARY_LOGGER.logInfo(summary);
+            }
+        } catch (Throwable t) {
+            t.printStackTrace(System.err);
+        }
+    }
+    
+    /**
+     * 終了処理を行う。
+     * <p/>
+     * 集計モードが有効な場合は、集計結果を出力するタイマーを停止し、未出力の集計結果を出力する。
+     */
+    public void terminate() {
+        synchronized (this) {
+            if (summaryTimer != null) {
+                summaryTimer.cancel();
+                summaryTimer = null;
+            }
+        }
+        if (metricsExporter != null) {
+            metricsExporter.terminate();
+        }
+        if (aggregationEnabled) {
+            writeSummary();
+        }
+    }
+    
+    /**
+     * スレッド毎の測定中のコンテキストを保持するクラス。
+     * <p/>
+     * 測定中のコンテキストを開始順のスタックで管理し、実行時IDとポイントの組み合わせで検索する。
+     * 検索キーの文字列を連結しないため、測定の開始と終了でキーの生成は発生しない。<br>
+     * 測定が終了したコンテキストはスタックの空き領域に残し、次の測定開始時に再利用する。
+     * 同じ実行時IDとポイントで測定中のコンテキストがある場合は、そのコンテキストを上書きする。
+     * @author Kiyohito Itoh
+     */
+    private static final class ContextStack {
+        
+        /** 初期容量 */
+        private static final int INITIAL_CAPACITY = 8;
+        
+        /** コンテキスト(インデックスがsize以上の要素は再利用待ち) */
+        private PerformanceLogContext[] contexts = new PerformanceLogContext[INITIAL_CAPACITY];
+        
+        /** コンテキストに対応する実行時ID */
+        private String[] executionIds = new String[INITIAL_CAPACITY];
+        
+        /** 測定中のコンテキストの数 */
+        private int size;
+        
+        /**
+         * 測定を開始するコンテキストを取得する。
+         * @param executionId 実行時ID
+         * @param point 測定対象を識別するID
+         * @return コンテキスト
+         */
+        private PerformanceLogContext push(String executionId, String point) {
+            int index = indexOf(executionId, point);
+            if (index < 0) {
+                if (size == contexts.length) {
+                    contexts = Arrays.copyOf(contexts, size * 2);
+                    executionIds = Arrays.copyOf(executionIds, size * 2);
+                }
+                index = size++;
+                if (contexts[index] == null) {
+                    contexts[index] = new PerformanceLogContext();
+                }
+                executionIds[index] = executionId;
+            }
+            PerformanceLogContext context = contexts[index];
+            context.setPoint(point);
+            context.setResult(null);
+            return context;
+        }
+        
+        /**
+         * 測定中のコンテキストを取り除く。
+         * @param executionId 実行時ID
+         * @param point 測定対象を識別するID
+         * @return 取り除いたコンテキスト。見つからない場合はnull
+         */
+        private PerformanceLogContext pop(String executionId, String point) {
+            int index = indexOf(executionId, point);
+            if (index < 0) {
+                return null;
+            }
+            PerformanceLogContext context = contexts[index];
+            int last = size - 1;
+            if (index < last) {
+                System.arraycopy(contexts, index + 1, contexts, index, last - index);
+                System.arraycopy(executionIds, index + 1, executionIds, index, last - index);
+            }
+            contexts[last] = context;
+            executionIds[last] = null;
+            size = last;
+            return context;
+        }
+        
+        /**
+         * 測定中のコンテキストを、最後に開始したものから順に検索する。
+         * @param executionId 実行時ID
+         * @param point 測定対象を識別するID
+         * @return インデックス。見つからない場合は-1
+         */
+        private int indexOf(String executionId, String point) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (equals(point, contexts[i].getPoint()) && equals(executionId, executionIds[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        /**
+         * 文字列が等しいか否かを判定する。
+         * @param s1 文字列
+         * @param s2 文字列
+         * @return 等しい場合はtrue
+         */
+        private static boolean equals(String s1, String s2) {
+            return s1 == null ? s2 == null : s1.equals(s2);
+        }
     }
     
     /**
-     * 測定を開始する。
-     * @param point 測定対象を識別するID
+     * 入れ子になったポイントの測定結果を保持するクラス。
+     * @author Kiyohito Itoh
      */
-    public void start(String point) {
+    private static final class Span {
         
-        String contextId = ThreadContext.getExecutionId() + point;
-        PerformanceLogContext context = new PerformanceLogContext();
-        contextMap.get().put(contextId, context);
+        /** 親スパン。最も外側のスパンの場合はnull */
+        private final Span parent;
         
-        context.setPoint(point);
+        /** 測定対象を識別するID */
+        private final String point;
         
-        if (containsMemoryItem) {
-            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
-            MemoryUsage heapMemory = memory.getHeapMemoryUsage();
-            long max = heapMemory.getMax();
-            long used = heapMemory.getUsed();
-            long free = max - used;
-            context.setMaxMemory(max);
-            context.setStartUsedMemory(used);
-            context.setStartFreeMemory(free);
+        /** 子スパン */
+        private final List<Span> children = new ArrayList<Span>();
+        
+        /** 最後に終了した測定の処理結果 */
+        private String result;
+        
+        /** 測定回数 */
+        private int count;
+        
+        /** 測定中の開始時の{@link System#nanoTime()}の値 */
+        private long startNanoTime;
+        
+        /** 子スパンを含む実行時間の合計(ナノ秒) */
+        private long totalNanos;
+        
+        /** 子スパンの実行時間の合計(ナノ秒) */
+        private long childNanos;
+        
+        /**
+         * コンストラクタ。
+         * @param parent 親スパン
+         * @param point 測定対象を識別するID
+         */
+        private Span(Span parent, String point) {
+            this.parent = parent;
+            this.point = point;
         }
         
-        context.setStartTime(System.currentTimeMillis());
+        /**
+         * 指定されたポイントの子スパンを取得する。
+         * @param childPoint 測定対象を識別するID
+         * @return 子スパン。存在しない場合はnull
+         */
+        private Span findChild(String childPoint) {
+            for (Span child : children) {
+                if (ContextStack.equals(childPoint, child.point)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * 測定を終了する。
+         * @param endResult 処理結果
+         * @param endNanoTime 終了時の{@link System#nanoTime()}の値
+         */
+        private void end(String endResult, long endNanoTime) {
+            long elapsed = endNanoTime - startNanoTime;
+            result = endResult;
+            count++;
+            totalNanos += elapsed;
+            if (parent != null) {
+                parent.childNanos += elapsed;
+            }
+        }
     }
     
     /**
-     * 測定を終了し、パフォーマンスログのメッセージをフォーマットする。
-     * @param point 測定対象を識別するID
-     * @param result 処理結果を表す文字列
-     * @return フォーマット済みのメッセージ
+     * スレッド毎の測定中のスパンを保持するクラス。
+     * @author Kiyohito Itoh
      */
-    public String end(String point, String result) {
+    private static final class SpanStack {
         
-        String contextId = ThreadContext.getExecutionId() + point;
-        PerformanceLogContext context = contextMap.get().remove(contextId);
-        if (context == null) {
-            throw new IllegalStateException(
-                String.format("PerformanceLogContext was not found. point = [%s], execution id = [%s]",
-                              point, ThreadContext.getExecutionId()));
+        /** 測定中のスパン(末尾が最後に開始したスパン) */
+        private final List<Span> stack = new ArrayList<Span>();
+        
+        /** 最も外側のスパンを開始した実行時ID */
+        private String executionId;
+        
+        /**
+         * 測定中のスパンが存在しないか否かを判定する。
+         * @return 測定中のスパンが存在しない場合はtrue
+         */
+        private boolean isEmpty() {
+            return stack.isEmpty();
         }
         
-        context.setEndTime(System.currentTimeMillis());
+        /**
+         * 最も外側のスパンを開始した実行時IDを取得する。
+         * @return 実行時ID
+         */
+        private String getExecutionId() {
+            return executionId;
+        }
         
-        if (containsMemoryItem) {
-            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
-            MemoryUsage heapMemory = memory.getHeapMemoryUsage();
-            long max = heapMemory.getMax();
-            long used = heapMemory.getUsed();
-            long free = max - used;
-            context.setEndUsedMemory(used);
-            context.setEndFreeMemory(free);
+        /**
+         * 測定中のスパンを全て破棄する。
+         * @return 破棄した最も外側のスパン。測定中のスパンが存在しない場合はnull
+         */
+        private Span clear() {
+            Span root = stack.isEmpty() ? null : stack.get(0);
+            stack.clear();
+            executionId = null;
+            return root;
         }
         
-        context.setResult(result);
+        /**
+         * スパンを開始する。
+         * <p/>
+         * 測定中のスパンがある場合は、その子スパンとして開始する。
+         * @param spanExecutionId 実行時ID
+         * @param point 測定対象を識別するID
+         * @param startNanoTime 開始時の{@link System#nanoTime()}の値
+         * @return 最も外側のスパンを開始した場合はtrue
+         */
+        private boolean push(String spanExecutionId, String point, long startNanoTime) {
+            boolean root = stack.isEmpty();
+            if (root) {
+                executionId = spanExecutionId;
+            }
+            Span parent = root ? null : stack.get(stack.size() - 1);
+            Span span = parent != null ? parent.findChild(point) : null;
+            if (span == null) {
+                span = new Span(parent, point);
+                if (parent != null) {
+                    parent.children.add(span);
+                }
+            }
+            span.startNanoTime = startNanoTime;
+            stack.add(span);
+            return root;
+        }
         
-        return LogUtil.formatMessage(formattedLogItems, context);
+        /**
+         * スパンを終了する。
+         * <p/>
+         * 指定されたスパンより後に開始され、終了していないスパンは、同時に終了したものとみなす。
+         * @param point 測定対象を識別するID
+         * @param result 処理結果
+         * @param endNanoTime 終了時の{@link System#nanoTime()}の値
+         * @return 終了したスパン。測定中のスパンが存在しない場合はnull
+         */
+        private Span pop(String point, String result, long endNanoTime) {
+            for (int i = stack.size() - 1; i >= 0; i--) {
+                if (!ContextStack.equals(point, stack.get(i).point)) {
+                    continue;
+                }
+                for (int j = stack.size() - 1; j > i; j--) {
+                    stack.remove(j).end(null, endNanoTime);
+                }
+                Span span = stack.remove(i);
+                span.end(result, endNanoTime);
+                return span;
+            }
+            return null;
+        }
     }
     
     /**
      * パフォーマンスログのコンテキスト情報を保持するクラス。
+     * <p/>
+     * 本クラスのインスタンスは測定終了後に再利用されるため、ログ出力項目でインスタンスを保持してはならない。
      * @author Kiyohito Itoh
      */
     @Published(tag = "architect")
@@ -199,6 +1291,10 @@ public class PerformanceLogFormatter {
         private long startTime;
         /** 終了日時 */
         private long endTime;
+        /** 開始時の{@link System#nanoTime()}の値 */
+        private long startNanoTime;
+        /** 終了時の{@link System#nanoTime()}の値 */
+        private long endNanoTime;
         /** 最大メモリ量(開始時) */
         private long maxMemory;
         /** 空きメモリ量(開始時) */
@@ -209,6 +1305,26 @@ public class PerformanceLogFormatter {
         private long startUsedMemory;
         /** 使用メモリ量(終了時) */
         private long endUsedMemory;
+        /** カレントスレッドのCPU時間(開始時) */
+        private long startCpuTime;
+        /** カレントスレッドのCPU時間(終了時) */
+        private long endCpuTime;
+        /** カレントスレッドのユーザモードのCPU時間(開始時) */
+        private long startUserTime;
+        /** カレントスレッドのユーザモードのCPU時間(終了時) */
+        private long endUserTime;
+        /** カレントスレッドのヒープ割り当て量(開始時) */
+        private long startAllocatedBytes;
+        /** カレントスレッドのヒープ割り当て量(終了時) */
+        private long endAllocatedBytes;
+        /** ガベージコレクションの累計回数(開始時) */
+        private long startGcCount;
+        /** ガベージコレクションの累計回数(終了時) */
+        private long endGcCount;
+        /** ガベージコレクションの累計時間(開始時) */
+        private long startGcTime;
+        /** ガベージコレクションの累計時間(終了時) */
+        private long endGcTime;
         /**
          * 測定対象を識別するIDを取得する。
          * @return 測定対象を識別するID
@@ -266,11 +1382,53 @@ public class PerformanceLogFormatter {
             this.endTime = endTime;
         }
         /**
-         * 実行時間を取得する。
-         * @return 実行時間
+         * 開始時の{@link System#nanoTime()}の値を取得する。
+         * @return 開始時の{@link System#nanoTime()}の値
+         */
+        public long getStartNanoTime() {
+            return startNanoTime;
+        }
+        /**
+         * 開始時の{@link System#nanoTime()}の値を設定する。
+         * @param startNanoTime 開始時の{@link System#nanoTime()}の値
+         */
+        public void setStartNanoTime(long startNanoTime) {
+            this.startNanoTime = startNanoTime;
+        }
+        /**
+         * 終了時の{@link System#nanoTime()}の値を取得する。
+         * @return 終了時の{@link System#nanoTime()}の値
+         */
+        public long getEndNanoTime() {
+            return endNanoTime;
+        }
+        /**
+         * 終了時の{@link System#nanoTime()}の値を設定する。
+         * @param endNanoTime 終了時の{@link System#nanoTime()}の値
+         */
+        public void setEndNanoTime(long endNanoTime) {
+            this.endNanoTime = endNanoTime;
+        }
+        /**
+         * 実行時間(ミリ秒)を取得する。
+         * @return 実行時間(ミリ秒)
          */
         public long getExecutionTime() {
-            return endTime - startTime;
+            return TimeUnit.NANOSECONDS.toMillis(getExecutionTimeNanos());
+        }
+        /**
+         * 実行時間(マイクロ秒)を取得する。
+         * @return 実行時間(マイクロ秒)
+         */
+        public long getExecutionTimeMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(getExecutionTimeNanos());
+        }
+        /**
+         * 実行時間(ナノ秒)を取得する。
+         * @return 実行時間(ナノ秒)
+         */
+        public long getExecutionTimeNanos() {
+            return endNanoTime - startNanoTime;
         }
         /**
          * 最大メモリ量(開始時)を取得する。
@@ -342,6 +1500,190 @@ public class PerformanceLogFormatter {
         public void setEndUsedMemory(long endUsedMemory) {
             this.endUsedMemory = endUsedMemory;
         }
+        /**
+         * カレントスレッドのCPU時間(開始時)を取得する。
+         * @return カレントスレッドのCPU時間(開始時)。単位はナノ秒
+         */
+        public long getStartCpuTime() {
+            return startCpuTime;
+        }
+        /**
+         * カレントスレッドのCPU時間(開始時)を設定する。
+         * @param startCpuTime カレントスレッドのCPU時間(開始時)。単位はナノ秒
+         */
+        public void setStartCpuTime(long startCpuTime) {
+            this.startCpuTime = startCpuTime;
+        }
+        /**
+         * カレントスレッドのCPU時間(終了時)を取得する。
+         * @return カレントスレッドのCPU時間(終了時)。単位はナノ秒
+         */
+        public long getEndCpuTime() {
+            return endCpuTime;
+        }
+        /**
+         * カレントスレッドのCPU時間(終了時)を設定する。
+         * @param endCpuTime カレントスレッドのCPU時間(終了時)。単位はナノ秒
+         */
+        public void setEndCpuTime(long endCpuTime) {
+            this.endCpuTime = endCpuTime;
+        }
+        /**
+         * 測定中に消費したCPU時間を取得する。
+         * @return 測定中に消費したCPU時間(ナノ秒)。取得できない場合は-1
+         */
+        public long getCpuTime() {
+            return difference(startCpuTime, endCpuTime);
+        }
+        /**
+         * カレントスレッドのユーザモードのCPU時間(開始時)を取得する。
+         * @return カレントスレッドのユーザモードのCPU時間(開始時)。単位はナノ秒
+         */
+        public long getStartUserTime() {
+            return startUserTime;
+        }
+        /**
+         * カレントスレッドのユーザモードのCPU時間(開始時)を設定する。
+         * @param startUserTime カレントスレッドのユーザモードのCPU時間(開始時)。単位はナノ秒
+         */
+        public void setStartUserTime(long startUserTime) {
+            this.startUserTime = startUserTime;
+        }
+        /**
+         * カレントスレッドのユーザモードのCPU時間(終了時)を取得する。
+         * @return カレントスレッドのユーザモードのCPU時間(終了時)。単位はナノ秒
+         */
+        public long getEndUserTime() {
+            return endUserTime;
+        }
+        /**
+         * カレントスレッドのユーザモードのCPU時間(終了時)を設定する。
+         * @param endUserTime カレントスレッドのユーザモードのCPU時間(終了時)。単位はナノ秒
+         */
+        public void setEndUserTime(long endUserTime) {
+            this.endUserTime = endUserTime;
+        }
+        /**
+         * 測定中に消費したユーザモードのCPU時間を取得する。
+         * @return 測定中に消費したユーザモードのCPU時間(ナノ秒)。取得できない場合は-1
+         */
+        public long getUserTime() {
+            return difference(startUserTime, endUserTime);
+        }
+        /**
+         * カレントスレッドのヒープ割り当て量(開始時)を取得する。
+         * @return カレントスレッドのヒープ割り当て量(開始時)
+         */
+        public long getStartAllocatedBytes() {
+            return startAllocatedBytes;
+        }
+        /**
+         * カレントスレッドのヒープ割り当て量(開始時)を設定する。
+         * @param startAllocatedBytes カレントスレッドのヒープ割り当て量(開始時)
+         */
+        public void setStartAllocatedBytes(long startAllocatedBytes) {
+            this.startAllocatedBytes = startAllocatedBytes;
+        }
+        /**
+         * カレントスレッドのヒープ割り当て量(終了時)を取得する。
+         * @return カレントスレッドのヒープ割り当て量(終了時)
+         */
+        public long getEndAllocatedBytes() {
+            return endAllocatedBytes;
+        }
+        /**
+         * カレントスレッドのヒープ割り当て量(終了時)を設定する。
+         * @param endAllocatedBytes カレントスレッドのヒープ割り当て量(終了時)
+         */
+        public void setEndAllocatedBytes(long endAllocatedBytes) {
+            this.endAllocatedBytes = endAllocatedBytes;
+        }
+        /**
+         * 測定中のヒープ割り当て量を取得する。
+         * @return 測定中のヒープ割り当て量(バイト)。取得できない場合は-1
+         */
+        public long getAllocatedBytes() {
+            return difference(startAllocatedBytes, endAllocatedBytes);
+        }
+        /**
+         * ガベージコレクションの累計回数(開始時)を取得する。
+         * @return ガベージコレクションの累計回数(開始時)
+         */
+        public long getStartGcCount() {
+            return startGcCount;
+        }
+        /**
+         * ガベージコレクションの累計回数(開始時)を設定する。
+         * @param startGcCount ガベージコレクションの累計回数(開始時)
+         */
+        public void setStartGcCount(long startGcCount) {
+            this.startGcCount = startGcCount;
+        }
+        /**
+         * ガベージコレクションの累計回数(終了時)を取得する。
+         * @return ガベージコレクションの累計回数(終了時)
+         */
+        public long getEndGcCount() {
+            return endGcCount;
+        }
+        /**
+         * ガベージコレクションの累計回数(終了時)を設定する。
+         * @param endGcCount ガベージコレクションの累計回数(終了時)
+         */
+        public void setEndGcCount(long endGcCount) {
+            this.endGcCount = endGcCount;
+        }
+        /**
+         * 測定中のガベージコレクションの回数を取得する。
+         * @return 測定中のガベージコレクションの回数。取得できない場合は-1
+         */
+        public long getGcCount() {
+            return difference(startGcCount, endGcCount);
+        }
+        /**
+         * ガベージコレクションの累計時間(開始時)を取得する。
+         * @return ガベージコレクションの累計時間(開始時)。単位はミリ秒
+         */
+        public long getStartGcTime() {
+            return startGcTime;
+        }
+        /**
+         * ガベージコレクションの累計時間(開始時)を設定する。
+         * @param startGcTime ガベージコレクションの累計時間(開始時)。単位はミリ秒
+         */
+        public void setStartGcTime(long startGcTime) {
+            this.startGcTime = startGcTime;
+        }
+        /**
+         * ガベージコレクションの累計時間(終了時)を取得する。
+         * @return ガベージコレクションの累計時間(終了時)。単位はミリ秒
+         */
+        public long getEndGcTime() {
+            return endGcTime;
+        }
+        /**
+         * ガベージコレクションの累計時間(終了時)を設定する。
+         * @param endGcTime ガベージコレクションの累計時間(終了時)。単位はミリ秒
+         */
+        public void setEndGcTime(long endGcTime) {
+            this.endGcTime = endGcTime;
+        }
+        /**
+         * 測定中のガベージコレクションの時間を取得する。
+         * @return 測定中のガベージコレクションの時間(ミリ秒)。取得できない場合は-1
+         */
+        public long getGcTime() {
+            return difference(startGcTime, endGcTime);
+        }
+        /**
+         * 開始時と終了時の値の差を求める。
+         * @param start 開始時の値
+         * @param end 終了時の値
+         * @return 開始時と終了時の値の差。いずれかの値が取得できていない(負の値)場合は-1
+         */
+        private static long difference(long start, long end) {
+            return (start < 0 || end < 0) ? -1 : end - start;
+        }
     }
     /**
      * ポイントを取得するクラス。
@@ -419,6 +1761,34 @@ public class PerformanceLogFormatter {
             return String.valueOf(context.getExecutionTime());
         }
     }
+    /**
+     * 実行時間(マイクロ秒)を取得するクラス。
+     * @author Kiyohito Itoh
+     */
+    public static class ExecutionTimeMicrosItem implements LogItem<PerformanceLogContext> {
+        /**
+         * 実行時間(マイクロ秒)を取得する。
+         * @param context {@link PerformanceLogContext}
+         * @return 実行時間(マイクロ秒)
+         */
+        public String get(PerformanceLogContext context) {
+            return String.valueOf(context.getExecutionTimeMicros());
+        }
+    }
+    /**
+     * 実行時間(ナノ秒)を取得するクラス。
+     * @author Kiyohito Itoh
+     */
+    public static class ExecutionTimeNanosItem implements LogItem<PerformanceLogContext> {
+        /**
+         * 実行時間(ナノ秒)を取得する。
+         * @param context {@link PerformanceLogContext}
+         * @return 実行時間(ナノ秒)
+         */
+        public String get(PerformanceLogContext context) {
+            return String.valueOf(context.getExecutionTimeNanos());
+        }
+    }
     /**
      * 最大メモリ量を取得するクラス。
      * @author Kiyohito Itoh
@@ -489,4 +1859,104 @@ public class PerformanceLogFormatter {
             return String.valueOf(context.getEndUsedMemory());
         }
     }
+    /**
+     * 測定中に消費したカレントスレッドのCPU時間を取得するクラス。
+     * @author Kiyohito Itoh
+     */
+    public static class CpuTimeItem implements LogItem<PerformanceLogContext> {
+        /**
+         * 測定中に消費したカレントスレッドのCPU時間を取得する。
+         * @param context {@link PerformanceLogContext}
+         * @return CPU時間(マイクロ秒)。取得できない場合は-1
+         */
+        public String get(PerformanceLogContext context) {
+            long cpuTime = context.getCpuTime();
+            return String.valueOf(cpuTime < 0 ? cpuTime : TimeUnit.NANOSECONDS.toMicros(cpuTime));
+        }
+    }
+    /**
+     * 測定中に消費したカレントスレッドのユーザモードのCPU時間を取得するクラス。
+     * @author Kiyohito Itoh
+     */
+    public static class UserTimeItem implements LogItem<PerformanceLogContext> {
+        /**
+         * 測定中に消費したカレントスレッドのユーザモードのCPU時間を取得する。
+         * @param context {@link PerformanceLogContext}
+         * @return ユーザモードのCPU時間(マイクロ秒)。取得できない場合は-1
+         */
+        public String get(PerformanceLogContext context) {
+            long userTime = context.getUserTime();
+            return String.valueOf(userTime < 0 ? userTime : TimeUnit.NANOSECONDS.toMicros(userTime));
+        }
+    }
+    /**
+     * 測定中のカレントスレッドのヒープ割り当て量を取得するクラス。
+     * @author Kiyohito Itoh
+     */
+    public static class AllocatedBytesItem implements LogItem<PerformanceLogContext> {
+        /**
+         * 測定中のカレントスレッドのヒープ割り当て量を取得する。
+         * @param context {@link PerformanceLogContext}
+         * @return ヒープ割り当て量(バイト)。取得できない場合は-1
+         */
+        public String get(PerformanceLogContext context) {
+            return String.valueOf(context.getAllocatedBytes());
+        }
+    }
+    /**
+     * 測定中のガベージコレクションの回数を取得するクラス。
+     * @author Kiyohito Itoh
+     */
+    public static class GcCountItem implements LogItem<PerformanceLogContext> {
+        /**
+         * 測定中のガベージコレクションの回数を取得する。
+         * @param context {@link PerformanceLogContext}
+         * @return ガベージコレクションの回数。取得できない場合は-1
+         */
+        public String get(PerformanceLogContext context) {
+            return String.valueOf(context.getGcCount());
+        }
+    }
+    /**
+     * 測定中のガベージコレクションの時間を取得するクラス。
+     * @author Kiyohito Itoh
+     */
+    public static class GcTimeItem implements LogItem<PerformanceLogContext> {
+        /**
+         * 測定中のガベージコレクションの時間を取得する。
+         * @param context {@link PerformanceLogContext}
+         * @return ガベージコレクションの時間(ミリ秒)。取得できない場合は-1
+         */
+        public String get(PerformanceLogContext context) {
+            return String.valueOf(context.getGcTime());
+        }
+    }
+    /**
+     * 実行時間の大半をガベージコレクションが占めたか否かを取得するクラス。
+     * @author Kiyohito Itoh
+     */
+    public static class GcDominatedItem implements LogItem<PerformanceLogContext> {
+        /** 実行時間の大半をガベージコレクションが占めたとみなす割合 */
+        private final double ratio;
+        /**
+         * コンストラクタ。
+         * @param ratio 実行時間の大半をガベージコレクションが占めたとみなす割合
+         */
+        public GcDominatedItem(double ratio) {
+            this.ratio = ratio;
+        }
+        /**
+         * 実行時間の大半をガベージコレクションが占めたか否かを取得する。
+         * @param context {@link PerformanceLogContext}
+         * @return ガベージコレクションの時間が実行時間に占める割合が指定された割合以上の場合は"true"
+         */
+        public String get(PerformanceLogContext context) {
+            long gcTime = context.getGcTime();
+            if (gcTime <= 0) {
+                return String.valueOf(false);
+            }
+            double executionTime = (double) context.getExecutionTimeNanos() / TimeUnit.MILLISECONDS.toNanos(1);
+            return String.valueOf(gcTime >= executionTime * ratio);
+        }
+    }
 }
@@ -0,0 +1,85 @@
+package nablarch.core.log.app;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import nablarch.core.log.app.PerformanceLogFormatter.PerformanceLogContext;
+import nablarch.core.util.annotation.Published;
+
+/**
+ * スレッドをまたいで測定を終了するためのパフォーマンスログの測定ハンドル。
+ * <p/>
+ * {@link PerformanceLogUtil#startAsync(String)}で取得し、
+ * 任意のスレッドから{@link PerformanceLogUtil#endAsync(PerformanceLogToken, String, Object...)}に指定して測定を終了する。<br>
+ * 1つのハンドルで測定を終了できるのは1回のみである。
+ * <p/>
+ * CPU時間とヒープ割り当て量はスレッド毎の値のため、測定を開始したスレッドと異なるスレッドで測定を終了した場合は-1を出力する。
+ *
+ * @author Kiyohito Itoh
+ */
+@Published(tag = "architect")
+public final class PerformanceLogToken {
+
+    /** パフォーマンスログのコンテキスト */
+    private final PerformanceLogContext context;
+
+    /** 測定を開始したスレッドのID */
+    private final long threadId;
+
+    /** 測定を開始した実行時ID */
+    private final String executionId;
+
+    /** 測定が終了済みか否か */
+    private final AtomicBoolean ended = new AtomicBoolean(false);
+
+    /**
+     * コンストラクタ。
+     * @param point 測定対象を識別するID
+     * @param executionId 測定を開始した実行時ID
+     */
+    PerformanceLogToken(String point, String executionId) {
+        this.context = new PerformanceLogContext();
+        this.context.setPoint(point);
+        this.threadId = Thread.currentThread().getId();
+        this.executionId = executionId;
+    }
+
+    /**
+     * 測定対象を識別するIDを取得する。
+     * @return 測定対象を識別するID
+     */
+    public String getPoint() {
+        return context.getPoint();
+    }
+
+    /**
+     * 測定を開始した実行時IDを取得する。
+     * @return 測定を開始した実行時ID
+     */
+    public String getExecutionId() {
+        return executionId;
+    }
+
+    /**
+     * パフォーマンスログのコンテキストを取得する。
+     * @return パフォーマンスログのコンテキスト
+     */
+    PerformanceLogContext getContext() {
+        return context;
+    }
+
+    /**
+     * 測定を終了済みにする。
+     * @return 終了済みにした場合はtrue。既に終了済みの場合はfalse
+     */
+    boolean markEnded() {
+        return ended.compareAndSet(false, true);
+    }
+
+    /**
+     * カレントスレッドが測定を開始したスレッドであるかを判定する。
+     * @return 測定を開始したスレッドの場合はtrue
+     */
+    boolean isStartedOnCurrentThread() {
+        return threadId == Thread.currentThread().getId();
+    }
+}
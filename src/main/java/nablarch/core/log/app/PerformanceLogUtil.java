@@ -11,6 +11,10 @@ import nablarch.core.util.annotation.Published;
 
 /**
  * パフォーマンスログを出力するクラス。
+ * <p/>
+ * 測定毎にパフォーマンスログを出力する場合は、"PERFORMANCE"ロガーのDEBUGレベルが有効な場合のみ測定を行う。<br>
+ * {@link PerformanceLogFormatter}の集計モードが有効な場合は、測定毎のログ出力は行わず、
+ * "PERFORMANCE"ロガーのINFOレベルが有効な場合に測定を行い、集計結果のみを出力する。
  * @author Kiyohito Itoh
  */
 public final class PerformanceLogUtil {
@@ -25,21 +29,30 @@ public final class PerformanceLogUtil {
     /** {@link PerformanceLogFormatter}のクラス名 */
     private static final String PROPS_CLASS_NAME = PerformanceLogFormatter.PROPS_PREFIX + "className";
     
-    /** {@link PerformanceLogFormatter}を生成する{@link ObjectCreator} */
-    private static final ObjectCreator<PerformanceLogFormatter> PERFORMANCE_LOG_FORMATTER_CREATOR = new ObjectCreator<PerformanceLogFormatter>() {
-        public PerformanceLogFormatter create() {
-            PerformanceLogFormatter formatter = null;
-            Map<String, String> props = AppLogUtil.getProps();
-            if (props.containsKey(PROPS_CLASS_NAME)) {
-                String className =  props.get(PROPS_CLASS_NAME);
-                formatter = ObjectUtil.createInstance(className);
-            } else {
-                formatter = new PerformanceLogFormatter();
-            }
-            return formatter;
+    /** クラスローダ毎の{@link PerformanceLogFormatterHolder}を生成する{@link ObjectCreator} */
+    private static final ObjectCreator<PerformanceLogFormatterHolder> PERFORMANCE_LOG_FORMATTER_HOLDER_CREATOR = new ObjectCreator<PerformanceLogFormatterHolder>() {
+        public PerformanceLogFormatterHolder create() {
+            return new PerformanceLogFormatterHolder();
         }
     };
     
+    /**
+     * {@link PerformanceLogFormatter}を生成する。
+     * @return {@link PerformanceLogFormatter}
+     */
+    private static PerformanceLogFormatter createPerformanceLogFormatter() {
+        PerformanceLogFormatter formatter = null;
+        Map<String, String> props = AppLogUtil.getProps();
+        if (props.containsKey(PROPS_CLASS_NAME)) {
+            String className =  props.get(PROPS_CLASS_NAME);
+            formatter = ObjectUtil.createInstance(className);
+        } else {
+            formatter = new PerformanceLogFormatter();
+        }
+        formatter.initialize();
+        return formatter;
+    }
+    
     /**
      * クラスローダに紐付く{@link PerformanceLogFormatter}を生成する。
      */
@@ -47,12 +60,79 @@ public final class PerformanceLogUtil {
         getPerformanceLogFormatter();
     }
     
+    /**
+     * クラスローダに紐付く{@link PerformanceLogFormatter}の終了処理を行う。
+     * <p/>
+     * 集計モードが有効な場合は、未出力の集計結果を出力する。
+     * 集計結果の出力タイマーと{@link PerformanceMetricsExporter}は、ログの出力可否に関わらず停止する。<br>
+     * 本メソッドは、{@link nablarch.core.log.basic.BasicLoggerFactory}の終了処理から呼び出される。
+     * 他の{@link nablarch.core.log.LoggerFactory}を使用する場合は、ログ出力の終了処理の前に呼び出すこと。
+     * {@link PerformanceLogFormatter}を生成していない場合は何もしない。
+     */
+    @Published(tag = "architect")
+    public static void terminate() {
+        PerformanceLogFormatter formatter = LogUtil.getObjectBoundToClassLoader(PERFORMANCE_LOG_FORMATTER_HOLDER_CREATOR).getIfCreated();
+        if (formatter == null) {
+            return;
+        }
+        formatter.terminate();
+    }
+    
+    /**
+     * 測定を行うか否かを判定する。
+     * @param formatter {@link PerformanceLogFormatter}
+     * @return 測定を行う場合はtrue
+     */
+    private static boolean isEnabled(PerformanceLogFormatter formatter) {
+        return formatter.isAggregationEnabled() || PERFORMANCE_LOGGER.isDebugEnabled();
+    }
+    
     /**
      * クラスローダに紐付く{@link PerformanceLogFormatter}を取得する。
      * @return {@link PerformanceLogFormatter}
      */
     private static PerformanceLogFormatter getPerformanceLogFormatter() {
-        return LogUtil.getObjectBoundToClassLoader(PERFORMANCE_LOG_FORMATTER_CREATOR);
+        return LogUtil.getObjectBoundToClassLoader(PERFORMANCE_LOG_FORMATTER_HOLDER_CREATOR).get();
+    }
+    
+    /**
+     * クラスローダ毎に{@link PerformanceLogFormatter}を保持するクラス。
+     * <p/>
+     * {@link PerformanceLogFormatter}は最初に取得した時点で生成する。<br>
+     * 生成したか否かをクラスローダ毎に判定できるため、
+     * 終了処理で生成していない{@link PerformanceLogFormatter}を生成せずに済む。
+     * @author Kiyohito Itoh
+     */
+    private static final class PerformanceLogFormatterHolder {
+        
+        /** 生成した{@link PerformanceLogFormatter}。生成していない場合はnull */
+        private volatile PerformanceLogFormatter formatter;
+        
+        /**
+         * {@link PerformanceLogFormatter}を取得する。生成していない場合は生成する。
+         * @return {@link PerformanceLogFormatter}
+         */
+        PerformanceLogFormatter get() {
+            PerformanceLogFormatter result = formatter;
+            if (result == null) {
+                synchronized (this) {
+                    result = formatter;
+                    if (result == null) {
+                        result = createPerformanceLogFormatter();
+                        formatter = result;
+                    }
+                }
+            }
+            return result;
+        }
+        
+        /**
+         * 生成済みの{@link PerformanceLogFormatter}を取得する。
+         * @return 生成済みの{@link PerformanceLogFormatter}。生成していない場合はnull
+         */
+        PerformanceLogFormatter getIfCreated() {
+            return formatter;
+        }
     }
     
     /**
@@ -61,11 +141,11 @@ public final class PerformanceLogUtil {
      */
     @Published(tag = "architect")
     public static void start(String point) {
-        if (!PERFORMANCE_LOGGER.isDebugEnabled()) {
+        if (!PERFORMANCE_LOGGER.isInfoEnabled()) {
             return;
         }
         PerformanceLogFormatter formatter = getPerformanceLogFormatter();
-        if (!formatter.isTargetPoint(point)) {
+        if (!isEnabled(formatter) || !formatter.isTargetPoint(point)) {
             return;
         }
         formatter.start(point);
@@ -73,20 +153,78 @@ public final class PerformanceLogUtil {
     
     /**
      * 測定を終了しパフォーマンスログを出力する。
+     * <p/>
+     * 集計モードが有効な場合は、実行時間を集計するのみでログ出力は行わない。<br>
+     * スパンモードが有効な場合は、最も外側のスパンの終了時のみスパンのツリー全体を出力する。
      * @param point 測定対象を識別するID
      * @param result 処理結果を表す文字列
      * @param logOptions ログのオプション情報
      */
     @Published(tag = "architect")
     public static void end(String point, String result, Object... logOptions) {
-        if (!PERFORMANCE_LOGGER.isDebugEnabled()) {
+        if (!PERFORMANCE_LOGGER.isInfoEnabled()) {
+            return;
+        }
+        PerformanceLogFormatter formatter = getPerformanceLogFormatter();
+        if (!isEnabled(formatter) || !formatter.isTargetPoint(point)) {
+            return;
+        }
+        if (formatter.isAggregationEnabled()) {
+            formatter.aggregate(point, result);
+            return;
+        }
+        String message = formatter.end(point, result);
+        if (message != null) {
+            PERFORMANCE_LOGGER.logDebug(message, logOptions);
+        }
+    }
+    
+    /**
+     * スレッドをまたいで終了できる測定を開始する。
+     * <p/>
+     * 返却された測定ハンドルを{@link #endAsync(PerformanceLogToken, String, Object...)}に指定して測定を終了する。
+     * 測定を終了するスレッドは、測定を開始したスレッドと異なっていてもよい。
+     * @param point 測定対象を識別するID
+     * @return 測定ハンドル。測定を行わない場合はnull
+     */
+    @Published(tag = "architect")
+    public static PerformanceLogToken startAsync(String point) {
+        if (!PERFORMANCE_LOGGER.isInfoEnabled()) {
+            return null;
+        }
+        PerformanceLogFormatter formatter = getPerformanceLogFormatter();
+        if (!isEnabled(formatter) || !formatter.isTargetPoint(point)) {
+            return null;
+        }
+        return formatter.startAsync(point);
+    }
+    
+    /**
+     * 測定ハンドルを使用して測定を終了しパフォーマンスログを出力する。
+     * <p/>
+     * 測定ハンドルがnullの場合は何もしない。
+     * 集計モードが有効な場合は、実行時間を集計するのみでログ出力は行わない。<br>
+     * 測定の開始後に"PERFORMANCE"ロガーのDEBUGレベルが無効になった場合は、メッセージをフォーマットせずに測定を終了する。<br>
+     * 第1引数にnullを指定した呼び出しが{@link #end(String, String, Object...)}と曖昧にならないよう、
+     * メソッド名を分けている。
+     * @param token {@link #startAsync(String)}で取得した測定ハンドル
+     * @param result 処理結果を表す文字列
+     * @param logOptions ログのオプション情報
+     */
+    @Published(tag = "architect")
+    public static void endAsync(PerformanceLogToken token, String result, Object... logOptions) {
+        if (token == null) {
             return;
         }
         PerformanceLogFormatter formatter = getPerformanceLogFormatter();
-        if (!formatter.isTargetPoint(point)) {
+        if (formatter.isAggregationEnabled()) {
+            formatter.aggregate(token, result);
+            return;
+        }
+        if (!PERFORMANCE_LOGGER.isDebugEnabled()) {
+            formatter.discard(token);
             return;
         }
-        String message = getPerformanceLogFormatter().end(point, result);
-        PERFORMANCE_LOGGER.logDebug(message, logOptions);
+        PERFORMANCE_LOGGER.logDebug(formatter.end(token, result), logOptions);
     }
 }
@@ -0,0 +1,467 @@
+package nablarch.core.log.app;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import nablarch.core.log.basic.BasicLoggerFactory;
+import nablarch.core.log.basic.LogLevel;
+import nablarch.core.log.basic.LogWriterSupport;
+
+/**
+ * パフォーマンスログの測定結果とログの出力件数を、Prometheusのテキスト形式で公開するクラス。
+ * <p/>
+ * 公開する値を下記に示す。
+ * <ul>
+ * <li>nablarch_performance_point_seconds: ポイント毎の実行時間(秒)。件数、合計、50/90/99/99.9パーセンタイル値を出力する。</li>
+ * <li>nablarch_performance_pending_tokens: 終了していない測定ハンドルの数</li>
+ * <li>nablarch_log_writes_total: {@link LogWriterSupport}を継承した{@link nablarch.core.log.basic.LogWriter}毎、
+ *     {@link LogLevel}毎の出力したログの件数</li>
+ * </ul>
+ * ポイント毎の実行時間は、{@link PerformanceLogFormatter}が測定終了時に{@link PerformanceHistogram}に記録した
+ * 起動時からの累積値を使用する。値の読み出しはロックを使用しないため、公開処理が測定処理を待たせることはない。
+ * <p/>
+ * ログの出力件数は、{@link BasicLoggerFactory}で初期化された{@link LogWriterSupport}のうち、
+ * 本クラスが件数の記録を有効にした時点以降の件数を公開する。件数の記録は、本クラスの生成時と公開時に有効にする。
+ * <p/>
+ * ファイル出力に失敗した場合は、標準エラーにスタックトレースを出力し、次の出力間隔で再度出力する。
+ * <p/>
+ * HTTPサーバとファイル出力は、生成時ではなく{@link #start()}の呼び出し時に開始する。<br>
+ * 同一ホストで複数のJVMが同じ設定を使用する場合など、指定されたポートで待ち受けできない場合は、
+ * 標準エラーにスタックトレースを出力し、HTTPサーバを使用せずに動作する。
+ * <p/>
+ * 公開方法には、ローカルホストのみで待ち受ける組み込みのHTTPサーバと、
+ * node exporterのtextfile collector向けのファイル出力がある。いずれか、または両方を使用できる。
+ * 本クラスの設定は、{@link AppLogUtil#getProps()}から取得する。
+ * <dl>
+ * <dt>performanceMetricsExporter.port
+ * <dd>HTTPサーバが待ち受けるポート番号。オプション。<br>
+ *     指定した場合は、127.0.0.1の指定されたポートで待ち受け、GETリクエストに対して測定結果を返す。
+ *     0を指定した場合は空いているポートを使用する。
+ * <dt>performanceMetricsExporter.textFilePath
+ * <dd>測定結果を出力するファイルのパス。オプション。<br>
+ *     指定した場合は、一時ファイルに出力した後に指定されたパスに移動する。
+ * <dt>performanceMetricsExporter.textFileInterval
+ * <dd>ファイルの出力間隔(秒)。オプション。指定しなければ15秒。
+ * </dl>
+ * @author Kiyohito Itoh
+ */
+public class PerformanceMetricsExporter {
+
+    /** プロパティ名のプレフィックス */
+    public static final String PROPS_PREFIX = "performanceMetricsExporter.";
+
+    /** HTTPサーバが待ち受けるポート番号を取得する際に使用するプロパティ名 */
+    private static final String PROPS_PORT = PROPS_PREFIX + "port";
+
+    /** 測定結果を出力するファイルのパスを取得する際に使用するプロパティ名 */
+    private static final String PROPS_TEXT_FILE_PATH = PROPS_PREFIX + "textFilePath";
+
+    /** ファイルの出力間隔(秒)を取得する際に使用するプロパティ名 */
+    private static final String PROPS_TEXT_FILE_INTERVAL = PROPS_PREFIX + "textFileInterval";
+
+    /** ファイルの出力間隔(秒)のデフォルト値 */
+    private static final long DEFAULT_TEXT_FILE_INTERVAL = 15;
+
+    /** 出力するパーセンタイル */
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    /** 出力するパーセンタイルのquantileラベルの値 */
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    /** 1秒のナノ秒 */
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /** 出力する{@link LogLevel} */
+    private static final LogLevel[] LEVELS = LogLevel.values();
+
+    /** 出力の文字エンコーディング */
+    private static final String ENCODING = "UTF-8";
+
+    /** HTTPリクエストのヘッダの最大長 */
+    private static final int MAX_REQUEST_HEADER_LENGTH = 8192;
+
+    /** HTTP接続の読み込みタイムアウト(ミリ秒) */
+    private static final int SO_TIMEOUT = 5000;
+
+    /** 測定結果を保持する{@link PerformanceLogFormatter} */
+    private final PerformanceLogFormatter formatter;
+
+    /** HTTPサーバが待ち受けるポート番号。HTTPサーバを使用しない場合は-1 */
+    private final int port;
+
+    /** 測定結果を出力するファイル。ファイル出力を行わない場合はnull */
+    private final File textFile;
+
+    /** ファイルの出力間隔(ミリ秒) */
+    private final long textFilePeriodMillis;
+
+    /** HTTPサーバのソケット。HTTPサーバを使用しない場合、または開始前はnull */
+    private ServerSocket serverSocket;
+
+    /** ファイル出力に使用するタイマー。ファイル出力を行わない場合、または開始前はnull */
+    private Timer textFileTimer;
+
+    /**
+     * 設定を読み込む。
+     * <p/>
+     * HTTPサーバとファイル出力は開始しない。{@link #start()}を呼び出して開始する。
+     * @param formatter 測定結果を保持する{@link PerformanceLogFormatter}
+     * @param props 各種ログの設定情報
+     */
+    public PerformanceMetricsExporter(PerformanceLogFormatter formatter, Map<String, String> props) {
+
+        this.formatter = formatter;
+
+        port = props.containsKey(PROPS_PORT) ? getNonNegativeInt(props, PROPS_PORT) : -1;
+
+        if (props.containsKey(PROPS_TEXT_FILE_PATH)) {
+            textFile = new File(props.get(PROPS_TEXT_FILE_PATH));
+            long interval = props.containsKey(PROPS_TEXT_FILE_INTERVAL)
+                    ? getNonNegativeInt(props, PROPS_TEXT_FILE_INTERVAL) : DEFAULT_TEXT_FILE_INTERVAL;
+            if (interval == 0) {
+                throw new IllegalArgumentException(
+                    String.format("%s must be 1 or more. value = [%s]",
+                                  PROPS_TEXT_FILE_INTERVAL, props.get(PROPS_TEXT_FILE_INTERVAL)));
+            }
+            textFilePeriodMillis = TimeUnit.SECONDS.toMillis(interval);
+        } else {
+            textFile = null;
+            textFilePeriodMillis = 0;
+        }
+    }
+
+    /**
+     * 設定に応じてHTTPサーバとファイル出力を開始する。
+     * <p/>
+     * 指定されたポートで待ち受けできない場合は、標準エラーにスタックトレースを出力し、
+     * HTTPサーバを使用せずにファイル出力のみを開始する。<br>
+     * 開始済みの場合は何もしない。
+     */
+    public synchronized void start() {
+
+        if (serverSocket != null || textFileTimer != null) {
+            return;
+        }
+
+        for (LogWriterSupport writer : BasicLoggerFactory.getActiveWriters().values()) {
+            writer.enableWriteCount();
+        }
+
+        if (port >= 0) {
+            try {
+                serverSocket = new ServerSocket(port, 0, InetAddress.getByName("127.0.0.1"));
+            } catch (IOException e) {
+                new IllegalStateException(
+                    String.format("failed to start metrics server. metrics are not served over HTTP. %s = [%s]",
+                                  PROPS_PORT, port), e).printStackTrace(System.err);
+            }
+        }
+        if (serverSocket != null) {
+            final ServerSocket socket = serverSocket;
+            Thread serverThread = new Thread(new Runnable() {
+                public void run() {
+                    serve(socket);
+                }
+            }, PerformanceMetricsExporter.class.getSimpleName() + "-http");
+            serverThread.setDaemon(true);
+            serverThread.start();
+        }
+
+        if (textFile != null) {
+            textFileTimer = new Timer(PerformanceMetricsExporter.class.getSimpleName() + "-textfile", true);
+            textFileTimer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    // 出力に失敗してもタイマーを停止させず、次回の出力で再試行する。
+                    try {
+                        writeTextFile();
+                    } catch (Throwable t) {
+                        t.printStackTrace(System.err);
+                    }
+                }
+            }, 0, textFilePeriodMillis);
+        }
+    }
+
+    /**
+     * 公開を行う設定が含まれているかを判定する。
+     * @param props 各種ログの設定情報
+     * @return 公開を行う設定が含まれている場合はtrue
+     */
+    public static boolean isConfigured(Map<String, String> props) {
+        return props.containsKey(PROPS_PORT) || props.containsKey(PROPS_TEXT_FILE_PATH);
+    }
+
+    /**
+     * 0以上の整数を指定するプロパティの値を取得する。
+     * @param props 各種ログの設定情報
+     * @param propName プロパティ名
+     * @return プロパティの値
+     */
+    private static int getNonNegativeInt(Map<String, String> props, String propName) {
+        String value = props.get(propName);
+        int number;
+        try {
+            number = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                String.format("%s must be able to convert to Integer. value = [%s]", propName, value), e);
+        }
+        if (number < 0) {
+            throw new IllegalArgumentException(
+                String.format("%s must be 0 or more. value = [%s]", propName, value));
+        }
+        return number;
+    }
+
+    /**
+     * HTTPサーバが待ち受けているポート番号を取得する。
+     * @return ポート番号。HTTPサーバを使用していない場合は-1
+     */
+    public synchronized int getPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    /**
+     * HTTPサーバとファイル出力を終了する。
+     */
+    public synchronized void terminate() {
+        if (textFileTimer != null) {
+            textFileTimer.cancel();
+            textFileTimer = null;
+        }
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // 終了処理のため例外は無視する。
+            }
+            serverSocket = null;
+        }
+    }
+
+    /**
+     * HTTPリクエストを待ち受け、順に応答する。
+     * @param serverSocket HTTPサーバのソケット
+     */
+    private void serve(ServerSocket serverSocket) {
+        StringBuilder buffer = new StringBuilder(4096);
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                // ソケットがクローズされた場合は終了する。
+                return;
+            } catch (IOException e) {
+                continue;
+            }
+            try {
+                socket.setSoTimeout(SO_TIMEOUT);
+                respond(socket, buffer);
+            } catch (IOException e) {
+                // 応答に失敗した接続は破棄し、次のリクエストを待ち受ける。
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // 接続の破棄のため例外は無視する。
+                }
+            }
+        }
+    }
+
+    /**
+     * HTTPリクエストを読み込み、測定結果を応答する。
+     * @param socket 接続
+     * @param buffer 測定結果の出力に使用するバッファ
+     * @throws IOException 入出力エラーが発生した場合
+     */
+    private void respond(Socket socket, StringBuilder buffer) throws IOException {
+        String requestLine = readRequestHeader(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        if (requestLine == null || !requestLine.startsWith("GET ")) {
+            out.write(toBytes("HTTP/1.0 405 Method Not Allowed\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"));
+            out.flush();
+            return;
+        }
+        buffer.setLength(0);
+        appendMetrics(buffer);
+        byte[] body = toBytes(buffer.toString());
+        out.write(toBytes("HTTP/1.0 200 OK\r\n"
+                          + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                          + "Content-Length: " + body.length + "\r\n"
+                          + "Connection: close\r\n\r\n"));
+        out.write(body);
+        out.flush();
+    }
+
+    /**
+     * HTTPリクエストのヘッダを読み込み、リクエスト行を取得する。
+     * @param in 入力ストリーム
+     * @return リクエスト行。ヘッダの終端までに接続が閉じられた場合、またはヘッダが長すぎる場合はnull
+     * @throws IOException 入出力エラーが発生した場合
+     */
+    private static String readRequestHeader(InputStream in) throws IOException {
+        StringBuilder requestLine = new StringBuilder(64);
+        boolean inRequestLine = true;
+        int matched = 0;
+        for (int i = 0; i < MAX_REQUEST_HEADER_LENGTH; i++) {
+            int b = in.read();
+            if (b == -1) {
+                return null;
+            }
+            if (b == '\r' || b == '\n') {
+                inRequestLine = false;
+            } else if (inRequestLine) {
+                requestLine.append((char) b);
+            }
+            // 空行(CRLFCRLF、またはLFLF)でヘッダの終端とみなす。
+            if (b == '\n') {
+                matched++;
+                if (matched == 2) {
+                    return requestLine.toString();
+                }
+            } else if (b != '\r') {
+                matched = 0;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 測定結果をファイルに出力する。
+     * <p/>
+     * 出力途中のファイルが読み込まれないよう、一時ファイルに出力した後にファイルを置き換える。
+     */
+    protected void writeTextFile() {
+        StringBuilder sb = new StringBuilder(4096);
+        appendMetrics(sb);
+        File tmpFile = new File(textFile.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmpFile);
+            try {
+                out.write(toBytes(sb.toString()));
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                String.format("failed to write metrics file. path = [%s]", tmpFile.getAbsolutePath()), e);
+        }
+        if (!tmpFile.renameTo(textFile)) {
+            // 移動先が存在すると移動できない環境では、削除してから移動する。
+            textFile.delete();
+            if (!tmpFile.renameTo(textFile)) {
+                throw new IllegalStateException(
+                    String.format("failed to rename metrics file. path = [%s]", textFile.getAbsolutePath()));
+            }
+        }
+    }
+
+    /**
+     * 測定結果をPrometheusのテキスト形式で出力する。
+     * @param sb 出力先のバッファ
+     */
+    public void appendMetrics(StringBuilder sb) {
+
+        sb.append("# HELP nablarch_performance_point_seconds Execution time of performance points.\n")
+          .append("# TYPE nablarch_performance_point_seconds summary\n");
+        for (Map.Entry<String, PerformanceHistogram> entry : formatter.getCumulativeHistograms().entrySet()) {
+            PerformanceHistogram histogram = entry.getValue();
+            long count = histogram.getCount();
+            if (count == 0) {
+                continue;
+            }
+            String point = entry.getKey();
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                sb.append("nablarch_performance_point_seconds{point=\"");
+                appendLabelValue(sb, point);
+                sb.append("\",quantile=\"").append(QUANTILES[i]).append("\"} ");
+                appendSeconds(sb, histogram.getValueAtPercentile(PERCENTILES[i]));
+                sb.append('\n');
+            }
+            sb.append("nablarch_performance_point_seconds_sum{point=\"");
+            appendLabelValue(sb, point);
+            sb.append("\"} ");
+            appendSeconds(sb, histogram.getSum());
+            sb.append('\n');
+            sb.append("nablarch_performance_point_seconds_count{point=\"");
+            appendLabelValue(sb, point);
+            sb.append("\"} ").append(count).append('\n');
+        }
+
+        sb.append("# HELP nablarch_performance_pending_tokens Number of performance measurement tokens not yet ended.\n")
+          .append("# TYPE nablarch_performance_pending_tokens gauge\n")
+          .append("nablarch_performance_pending_tokens ").append(formatter.getPendingTokenCount()).append('\n');
+
+        sb.append("# HELP nablarch_log_writes_total Number of log records written.\n")
+          .append("# TYPE nablarch_log_writes_total counter\n");
+        for (Map.Entry<String, LogWriterSupport> entry : BasicLoggerFactory.getActiveWriters().entrySet()) {
+            LogWriterSupport writer = entry.getValue();
+            writer.enableWriteCount();
+            for (LogLevel level : LEVELS) {
+                sb.append("nablarch_log_writes_total{writer=\"");
+                appendLabelValue(sb, entry.getKey());
+                sb.append("\",level=\"").append(level.name()).append("\"} ")
+                  .append(writer.getWriteCount(level)).append('\n');
+            }
+        }
+    }
+
+    /**
+     * ナノ秒の値を秒に変換して出力する。
+     * @param sb 出力先のバッファ
+     * @param nanos ナノ秒の値
+     */
+    private static void appendSeconds(StringBuilder sb, long nanos) {
+        long fraction = nanos % NANOS_PER_SECOND;
+        sb.append(nanos / NANOS_PER_SECOND).append('.');
+        for (long digit = NANOS_PER_SECOND / 10; digit > 1 && fraction < digit; digit /= 10) {
+            sb.append('0');
+        }
+        sb.append(fraction);
+    }
+
+    /**
+     * ラベルの値をエスケープして出力する。
+     * @param sb 出力先のバッファ
+     * @param value ラベルの値
+     */
+    private static void appendLabelValue(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': sb.append("\\\\"); break;
+                case '"': sb.append("\\\""); break;
+                case '\n': sb.append("\\n"); break;
+                default: sb.append(c); break;
+            }
+        }
+    }
+
+    /**
+     * 文字列をバイト配列に変換する。
+     * @param s 文字列
+     * @return バイト配列
+     */
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes(ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package nablarch.core.log.app;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * ポイントが測定対象であるかを判定するクラス。
+ * <p/>
+ * パターンには、ポイントをそのまま指定するほか、任意の文字列に一致する"*"を使用できる。
+ * <ul>
+ * <li>"*"を含まないパターンは、ポイントと完全一致する場合に一致とみなす。</li>
+ * <li>末尾のみに"*"を含むパターン(例:"/action/order/*")は前方一致、
+ *     先頭のみに"*"を含むパターン(例:"*Dao")は後方一致とみなす。</li>
+ * <li>上記以外の"*"を含むパターンは、"*"以外の部分が順に出現する場合に一致とみなす。</li>
+ * </ul>
+ * 前方一致と後方一致のパターンはインスタンス生成時にトライ木に変換し、ポイントの長さに比例する時間で判定する。<br>
+ * 判定結果はポイント毎にキャッシュし、同じポイントの2回目以降の判定はキャッシュから取得する。
+ * キャッシュに格納するポイントの数は指定された上限までとし、上限を超えたポイントはキャッシュせずに都度判定する。
+ *
+ * @author Kiyohito Itoh
+ */
+final class PointMatcher {
+
+    /** ワイルドカード */
+    private static final char WILDCARD = '*';
+
+    /** 完全一致のパターン */
+    private final Set<String> exactPoints = new HashSet<String>();
+
+    /** 前方一致のパターンのトライ木 */
+    private final Node prefixes = new Node();
+
+    /** 後方一致のパターンのトライ木(パターンを逆順に格納する) */
+    private final Node suffixes = new Node();
+
+    /** 前方一致と後方一致以外のワイルドカードを含むパターン("*"で分割した文字列) */
+    private final List<String[]> globs = new ArrayList<String[]>();
+
+    /** 全てのポイントに一致するか否か */
+    private boolean matchesAll;
+
+    /** 判定結果のキャッシュ */
+    private final ConcurrentMap<String, Boolean> cache = new ConcurrentHashMap<String, Boolean>();
+
+    /** キャッシュに格納するポイントの上限 */
+    private final int cacheSize;
+
+    /**
+     * コンストラクタ。
+     * @param patterns パターン
+     * @param cacheSize キャッシュに格納するポイントの上限
+     */
+    PointMatcher(Collection<String> patterns, int cacheSize) {
+        this.cacheSize = cacheSize;
+        for (String pattern : patterns) {
+            addPattern(pattern);
+        }
+    }
+
+    /**
+     * パターンを追加する。
+     * @param pattern パターン
+     */
+    private void addPattern(String pattern) {
+        int first = pattern.indexOf(WILDCARD);
+        if (first == -1) {
+            exactPoints.add(pattern);
+            return;
+        }
+        int last = pattern.lastIndexOf(WILDCARD);
+        if (first == last && last == pattern.length() - 1) {
+            if (last == 0) {
+                matchesAll = true;
+            } else {
+                prefixes.add(pattern.substring(0, last), false);
+            }
+        } else if (first == last && first == 0) {
+            suffixes.add(pattern.substring(1), true);
+        } else {
+            globs.add(pattern.split("\\*", -1));
+        }
+    }
+
+    /**
+     * ポイントがいずれかのパターンに一致するかを判定する。
+     * @param point 測定対象を識別するID
+     * @return いずれかのパターンに一致する場合はtrue
+     */
+    boolean matches(String point) {
+        if (point == null) {
+            return false;
+        }
+        Boolean cached = cache.get(point);
+        if (cached != null) {
+            return cached;
+        }
+        boolean matched = evaluate(point);
+        if (cache.size() < cacheSize) {
+            cache.putIfAbsent(point, matched);
+        }
+        return matched;
+    }
+
+    /**
+     * キャッシュを使用せずに、ポイントがいずれかのパターンに一致するかを判定する。
+     * @param point 測定対象を識別するID
+     * @return いずれかのパターンに一致する場合はtrue
+     */
+    private boolean evaluate(String point) {
+        if (matchesAll || exactPoints.contains(point)
+                || prefixes.matches(point, false) || suffixes.matches(point, true)) {
+            return true;
+        }
+        for (String[] glob : globs) {
+            if (matchesGlob(point, glob)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * ポイントが"*"で分割したパターンに一致するかを判定する。
+     * @param point 測定対象を識別するID
+     * @param parts "*"で分割したパターン
+     * @return 一致する場合はtrue
+     */
+    private static boolean matchesGlob(String point, String[] parts) {
+        String head = parts[0];
+        String tail = parts[parts.length - 1];
+        if (point.length() < head.length() + tail.length()
+                || !point.startsWith(head) || !point.endsWith(tail)) {
+            return false;
+        }
+        int from = head.length();
+        int to = point.length() - tail.length();
+        for (int i = 1; i < parts.length - 1; i++) {
+            int index = point.indexOf(parts[i], from);
+            if (index == -1 || index + parts[i].length() > to) {
+                return false;
+            }
+            from = index + parts[i].length();
+        }
+        return true;
+    }
+
+    /**
+     * トライ木のノード。
+     * @author Kiyohito Itoh
+     */
+    private static final class Node {
+
+        /** 子ノード */
+        private final Map<Character, Node> children = new HashMap<Character, Node>();
+
+        /** ルートからこのノードまでの文字列がパターンであるか否か */
+        private boolean terminal;
+
+        /**
+         * パターンを追加する。
+         * @param pattern パターン
+         * @param reverse パターンを末尾から格納する場合はtrue
+         */
+        void add(String pattern, boolean reverse) {
+            Node node = this;
+            int length = pattern.length();
+            for (int i = 0; i < length; i++) {
+                Character c = pattern.charAt(reverse ? length - 1 - i : i);
+                Node child = node.children.get(c);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+            node.terminal = true;
+        }
+
+        /**
+         * ポイントがいずれかのパターンで始まる(reverseがtrueの場合は終わる)かを判定する。
+         * @param point 測定対象を識別するID
+         * @param reverse ポイントを末尾から照合する場合はtrue
+         * @return 一致する場合はtrue
+         */
+        boolean matches(String point, boolean reverse) {
+            Node node = this;
+            int length = point.length();
+            for (int i = 0; i < length; i++) {
+                if (node.terminal) {
+                    return true;
+                }
+                node = node.children.get(point.charAt(reverse ? length - 1 - i : i));
+                if (node == null) {
+                    return false;
+                }
+            }
+            return node.terminal;
+        }
+    }
+}
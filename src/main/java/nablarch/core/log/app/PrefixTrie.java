@@ -0,0 +1,113 @@
+package nablarch.core.log.app;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * キーのプレフィックスで値を検索するトライ木。
+ * <p/>
+ * 検索対象の文字列の先頭から1文字ずつ木をたどり、検索対象の文字列のプレフィックスとなるキーのうち、
+ * 最も長いキーの値を返す。検索は検索対象の文字列の長さに比例する時間で行い、キーの数に依存しない。<br>
+ * 子ノードは文字の昇順に配列で保持し、二分探索で検索する。
+ * 初期化後は変更しないため、複数スレッドから同時に検索できる。
+ *
+ * @author Kiyohito Itoh
+ */
+final class PrefixTrie {
+
+    /** 子ノードを持たないノードの文字の配列 */
+    private static final char[] NO_CHARS = new char[0];
+
+    /** 子ノードを持たないノードの子ノードの配列 */
+    private static final PrefixTrie[] NO_CHILDREN = new PrefixTrie[0];
+
+    /** 子ノードの文字(昇順) */
+    private char[] chars = NO_CHARS;
+
+    /** 子ノード(添字は{@link #chars}と対応する) */
+    private PrefixTrie[] children = NO_CHILDREN;
+
+    /** ルートからこのノードまでの文字列をキーとする値。キーでない場合はnull */
+    private String value;
+
+    /**
+     * コンストラクタ。
+     * <p/>
+     * ルートノードの生成には{@link #build(Collection)}を使用する。
+     */
+    private PrefixTrie() {
+    }
+
+    /**
+     * キーと値のエントリからトライ木を構築する。
+     * @param entries キーと値のエントリ
+     * @return トライ木のルートノード
+     */
+    static PrefixTrie build(Collection<Map.Entry<String, String>> entries) {
+        PrefixTrie root = new PrefixTrie();
+        if (entries == null) {
+            return root;
+        }
+        for (Map.Entry<String, String> entry : entries) {
+            PrefixTrie node = root;
+            String key = entry.getKey();
+            for (int i = 0; i < key.length(); i++) {
+                node = node.getOrAddChild(key.charAt(i));
+            }
+            if (node.value == null) {
+                node.value = entry.getValue();
+            }
+        }
+        return root;
+    }
+
+    /**
+     * 指定された文字の子ノードを取得する。存在しない場合は追加する。
+     * @param c 文字
+     * @return 子ノード
+     */
+    private PrefixTrie getOrAddChild(char c) {
+        int index = Arrays.binarySearch(chars, c);
+        if (index >= 0) {
+            return children[index];
+        }
+        int insertion = -(index + 1);
+        char[] newChars = new char[chars.length + 1];
+        PrefixTrie[] newChildren = new PrefixTrie[children.length + 1];
+        System.arraycopy(chars, 0, newChars, 0, insertion);
+        System.arraycopy(children, 0, newChildren, 0, insertion);
+        System.arraycopy(chars, insertion, newChars, insertion + 1, chars.length - insertion);
+        System.arraycopy(children, insertion, newChildren, insertion + 1, children.length - insertion);
+        PrefixTrie child = new PrefixTrie();
+        newChars[insertion] = c;
+        newChildren[insertion] = child;
+        chars = newChars;
+        children = newChildren;
+        return child;
+    }
+
+    /**
+     * 検索対象の文字列のプレフィックスとなるキーのうち、最も長いキーの値を取得する。
+     * @param s 検索対象の文字列
+     * @return 値。プレフィックスとなるキーが存在しない場合、または検索対象の文字列がnullの場合はnull
+     */
+    String findLongestPrefixValue(String s) {
+        if (s == null) {
+            return null;
+        }
+        PrefixTrie node = this;
+        String found = node.value;
+        for (int i = 0; i < s.length(); i++) {
+            int index = Arrays.binarySearch(node.chars, s.charAt(i));
+            if (index < 0) {
+                break;
+            }
+            node = node.children[index];
+            if (node.value != null) {
+                found = node.value;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,119 @@
+package nablarch.core.log.app;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * スレッド毎に異なるセルを加算するカウンタ。
+ * <p/>
+ * スレッドIDからセルを決定して加算するため、複数スレッドから同時に加算しても同一の値を奪い合わない。
+ * セルは異なるキャッシュラインに配置されるよう間隔を空けて保持する。<br>
+ * 合計値は全てのセルの値を足し合わせて算出する。<br>
+ * 合計値の算出時は、算出したスレッドのセル以外のセルの合計を、そのセルと同じキャッシュラインに保持する。
+ * セルの値は減少しないため、保持した値とセルの現在の値の和は、合計値の下限として使用できる。
+ *
+ * @author Kiyohito Itoh
+ */
+final class StripedLongCounter {
+
+    /** セルの間隔(キャッシュラインのサイズをlongの数で表したもの) */
+    private static final int PADDING = 8;
+
+    /** セル数の上限 */
+    private static final int MAX_CELLS = 64;
+
+    /** 前回合計値を算出した時点の他のセルの合計を保持する位置(セルの位置からの相対位置) */
+    private static final int OTHERS_OFFSET = 1;
+
+    /** セルと、前回合計値を算出した時点の他のセルの合計 */
+    private final AtomicLongArray cells;
+
+    /** セル数-1(セル数は2の累乗) */
+    private final int mask;
+
+    /**
+     * コンストラクタ。
+     * <p/>
+     * セル数は、利用可能なプロセッサ数の2倍以上の2の累乗(上限は64)とする。
+     */
+    StripedLongCounter() {
+        int count = 1;
+        int target = Math.min(Runtime.getRuntime().availableProcessors() * 2, MAX_CELLS);
+        while (count < target) {
+            count <<= 1;
+        }
+        mask = count - 1;
+        cells = new AtomicLongArray(count * PADDING);
+    }
+
+    /**
+     * 現在のスレッドのセルに加算する。
+     * @param delta 加算する値
+     * @return 加算後の現在のスレッドのセルの値
+     */
+    long add(long delta) {
+        return cells.addAndGet(getIndex(), delta);
+    }
+
+    /**
+     * セル数を取得する。
+     * @return セル数
+     */
+    int getCellCount() {
+        return mask + 1;
+    }
+
+    /**
+     * 現在のスレッドのセルの値から、全てのセルの合計値の下限を取得する。
+     * <p/>
+     * 現在のスレッドのセルで前回合計値を算出した時点の他のセルの合計に、指定されたセルの値を足して求める。
+     * 他のセルに加算するスレッドがない場合は、合計値と一致する。
+     * @param cellValue {@link #add(long)}が返した現在のスレッドのセルの値
+     * @return 合計値の下限
+     */
+    long getLowerBound(long cellValue) {
+        return cellValue + cells.get(getIndex() + OTHERS_OFFSET);
+    }
+
+    /**
+     * 全てのセルの合計値を取得する。
+     * <p/>
+     * 他のスレッドが加算中の場合、その加算が含まれない場合がある。<br>
+     * 現在のスレッドのセル以外のセルの合計を、{@link #getLowerBound(long)}で使用するために保持する。
+     * @return 合計値
+     */
+    long sum() {
+        int index = getIndex();
+        long sum = 0;
+        long own = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            long value = cells.get(i);
+            sum += value;
+            if (i == index) {
+                own = value;
+            }
+        }
+        cells.set(index + OTHERS_OFFSET, sum - own);
+        return sum;
+    }
+
+    /**
+     * 全てのセルを0クリアする。
+     */
+    void reset() {
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            cells.set(i, 0);
+            cells.set(i + OTHERS_OFFSET, 0);
+        }
+    }
+
+    /**
+     * 現在のスレッドのセルの添字を取得する。
+     * @return 添字
+     */
+    private int getIndex() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32));
+        hash ^= (hash >>> 16);
+        return (hash & mask) * PADDING;
+    }
+}
@@ -0,0 +1,144 @@
+package nablarch.core.log.app;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * カレントスレッドのCPU時間とヒープ割り当て量を取得するクラス。
+ * <p/>
+ * {@link ThreadMXBean}は初回使用時に一度だけ取得する。<br>
+ * ヒープ割り当て量は、JVMが"com.sun.management.ThreadMXBean"を提供する場合のみ取得できる。
+ * 取得できない値は-1を返す。
+ * 
+ * @author Kiyohito Itoh
+ */
+final class ThreadUsageReader {
+    
+    /** {@link ThreadMXBean} */
+    private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+    
+    /** CPU時間を取得できるか否か */
+    private static final boolean CPU_TIME_SUPPORTED = isCpuTimeSupported();
+    
+    /** ヒープ割り当て量を取得するオブジェクト。取得できない場合はnull */
+    private static final AllocatedBytesReader ALLOCATED_BYTES_READER = createAllocatedBytesReader();
+    
+    /** 隠蔽コンストラクタ */
+    private ThreadUsageReader() {
+    }
+    
+    /**
+     * CPU時間を取得できるか否かを判定する。<br>
+     * CPU時間の測定が無効になっている場合は、有効化を試みる。
+     * @return CPU時間を取得できる場合はtrue
+     */
+    private static boolean isCpuTimeSupported() {
+        try {
+            if (!THREAD_BEAN.isCurrentThreadCpuTimeSupported()) {
+                return false;
+            }
+            if (!THREAD_BEAN.isThreadCpuTimeEnabled()) {
+                THREAD_BEAN.setThreadCpuTimeEnabled(true);
+            }
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * ヒープ割り当て量を取得するオブジェクトを生成する。
+     * @return ヒープ割り当て量を取得するオブジェクト。取得できない場合はnull
+     */
+    private static AllocatedBytesReader createAllocatedBytesReader() {
+        try {
+            Class<?> extendedBean = Class.forName("com.sun.management.ThreadMXBean");
+            if (!extendedBean.isInstance(THREAD_BEAN)) {
+                return null;
+            }
+            SunAllocatedBytesReader reader = new SunAllocatedBytesReader();
+            return reader.isSupported() ? reader : null;
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+    
+    /**
+     * カレントスレッドのCPU時間(ナノ秒)を取得する。
+     * @return CPU時間(ナノ秒)。取得できない場合は-1
+     */
+    static long getCpuTime() {
+        return CPU_TIME_SUPPORTED ? THREAD_BEAN.getCurrentThreadCpuTime() : -1;
+    }
+    
+    /**
+     * カレントスレッドのユーザモードのCPU時間(ナノ秒)を取得する。
+     * @return ユーザモードのCPU時間(ナノ秒)。取得できない場合は-1
+     */
+    static long getUserTime() {
+        return CPU_TIME_SUPPORTED ? THREAD_BEAN.getCurrentThreadUserTime() : -1;
+    }
+    
+    /**
+     * カレントスレッドのヒープ割り当て量(バイト)の累計を取得する。
+     * @return ヒープ割り当て量(バイト)の累計。取得できない場合は-1
+     */
+    static long getAllocatedBytes() {
+        return ALLOCATED_BYTES_READER != null ? ALLOCATED_BYTES_READER.get() : -1;
+    }
+    
+    /**
+     * ヒープ割り当て量を取得するインタフェース。
+     * @author Kiyohito Itoh
+     */
+    private interface AllocatedBytesReader {
+        /**
+         * カレントスレッドのヒープ割り当て量(バイト)の累計を取得する。
+         * @return ヒープ割り当て量(バイト)の累計
+         */
+        long get();
+    }
+    
+    /**
+     * "com.sun.management.ThreadMXBean"を使用してヒープ割り当て量を取得するクラス。
+     * <p/>
+     * "com.sun.management.ThreadMXBean"を提供しないJVMでクラスのロードに失敗しないよう、
+     * 提供されていることを確認してからインスタンスを生成する。
+     * @author Kiyohito Itoh
+     */
+    private static final class SunAllocatedBytesReader implements AllocatedBytesReader {
+        
+        /** "com.sun.management.ThreadMXBean" */
+        private final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREAD_BEAN;
+        
+        /**
+         * ヒープ割り当て量を取得できるか否かを判定する。<br>
+         * ヒープ割り当て量の測定が無効になっている場合は、有効化を試みる。
+         * @return ヒープ割り当て量を取得できる場合はtrue
+         */
+        private boolean isSupported() {
+            try {
+                if (!bean.isThreadAllocatedMemorySupported()) {
+                    return false;
+                }
+                if (!bean.isThreadAllocatedMemoryEnabled()) {
+                    bean.setThreadAllocatedMemoryEnabled(true);
+                }
+                return true;
+            } catch (UnsupportedOperationException e) {
+                return false;
+            } catch (SecurityException e) {
+                return false;
+            }
+        }
+        
+        /** {@inheritDoc} */
+        public long get() {
+            return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+    }
+}
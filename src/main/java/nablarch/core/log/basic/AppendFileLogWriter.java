@@ -0,0 +1,223 @@
+package nablarch.core.log.basic;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nablarch.core.log.Logger;
+import nablarch.core.util.StringUtil;
+
+/**
+ * 追記モードでオープンしたファイルに、ロックファイルを使用せずにログを書き込むクラス。
+ * <p>
+ * 本クラスは書き込み先のファイルを追記モード(POSIXのO_APPEND)でオープンし、
+ * エンコード済みのログ1件を1回の書き込みで出力する。
+ * 追記モードの書き込みはOSにより書き込み位置の移動と書き込みが不可分に行われるため、
+ * 複数プロセスから同一のファイルに書き込む場合でも、ログ同士が混在しない。<br/>
+ * {@link SynchronousFileLogWriter}と異なりログ1件毎のロックファイルの生成と削除が不要なため、
+ * 障害通知ログのように1件のサイズが小さいログを複数プロセスから出力する用途に適している。
+ * </p>
+ * <p>
+ * 本クラスは排他制御を一切行わない。ログが混在しないことを保証できるのは、
+ * エンコード後のサイズが不可分に書き込めるサイズ(atomicWriteSize)以下のログのみである。
+ * これは本クラスのハードリミットであり、このサイズを超えるログも1回の書き込みで出力するが、
+ * ファイルシステムにより書き込みが分割された場合は、他のプロセスのログが混在する可能性がある。<br/>
+ * このサイズを超えるログを書き込んだ場合は、その件数を次に書き込むログの前にWARNレベルのログとして出力する。
+ * スタックトレースを含む障害解析ログのように、このサイズを超えるログを出力する場合は、{@link SynchronousFileLogWriter}を使用すること。
+ * </p>
+ * <p>
+ * 複数プロセスから書き込むファイルの切り替えは安全に行えないため、本クラスはログファイルの自動切り替えを行わない。
+ * また、出力バッファを使用せず、ログ1件毎にファイルに書き込む。
+ * </p>
+ * プロパティファイルの記述ルールを下記に示す。<br>
+ * <dl>
+ * <dt>filePath
+ * <dd>書き込み先のファイルパス。必須。<br>
+ *
+ * <dt>encoding
+ * <dd>書き込み時に使用する文字エンコーディング。オプション。<br>
+ *     指定しなければシステムプロパティ(file.encoding)から取得した文字エンコーディング。
+ *
+ * <dt>atomicWriteSize
+ * <dd>ログが混在しないことを保証するログの最大サイズ。オプション。<br>
+ *     単位はバイト。１以上を指定する。指定しなければ4096バイト。
+ *     使用するファイルシステムで、追記モードの1回の書き込みが不可分に行われるサイズ以下を指定すること。<br>
+ *     このサイズを超えるログは混在を防止できないため、書き込んだ件数をWARNレベルのログで通知する。
+ * </dl>
+ * 本クラスでは、初期処理と終了処理時に、書き込み先のログファイルにINFOレベルでメッセージを出力する。
+ *
+ * @author Kiyohito Itoh
+ */
+public class AppendFileLogWriter extends LogWriterSupport {
+
+    /** FQCN */
+    private static final String FQCN = AppendFileLogWriter.class.getName();
+
+    /** ログが混在しないことを保証するログの最大サイズのデフォルト値 */
+    private static final int DEFAULT_ATOMIC_WRITE_SIZE = 4096;
+
+    /** 書き込み先のファイルパス */
+    private String filePath;
+
+    /** 書き込み時に使用する文字エンコーディング */
+    private Charset charset;
+
+    /** ログが混在しないことを保証するログの最大サイズ */
+    private int atomicWriteSize;
+
+    /** 書き込み先のファイルを追記モードでオープンした出力ストリーム */
+    private volatile FileOutputStream out;
+
+    /** ログが混在しないことを保証するサイズを超えたログの件数(未報告分) */
+    private final AtomicLong oversizedCount = new AtomicLong();
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * プロパティファイルで指定された設定情報を取得し、書き込み先のファイルを追記モードでオープンする。<br>
+     * 初期処理完了後、INFOレベルで設定情報を出力する。
+     */
+    @Override
+    protected void onInitialize(ObjectSettings settings) {
+
+        filePath = settings.getRequiredProp("filePath");
+
+        String encoding = settings.getProp("encoding");
+        if (encoding == null) {
+            encoding = System.getProperty("file.encoding");
+        }
+        charset = Charset.forName(encoding);
+
+        String size = settings.getProp("atomicWriteSize");
+        if (size == null) {
+            atomicWriteSize = DEFAULT_ATOMIC_WRITE_SIZE;
+        } else {
+            try {
+                atomicWriteSize = Integer.parseInt(size);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(
+                    "invalid property was specified. 'atomicWriteSize' must be able to convert to Integer. value=[" + size + "].", e);
+            }
+            if (atomicWriteSize < 1) {
+                throw new IllegalArgumentException(
+                    "invalid property was specified. 'atomicWriteSize' must be 1 or more. value=[" + size + "].");
+            }
+        }
+
+        try {
+            out = new FileOutputStream(filePath, true);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(
+                String.format("failed to create %s. file name = [%s]", FileOutputStream.class.getName(), filePath), e);
+        }
+        writeInfo("initialized." + Logger.LS + getSettings());
+    }
+
+    /**
+     * 設定情報を取得する。<br>
+     * <br>
+     * 設定情報のフォーマットを下記に示す。<br>
+     * <br>
+     * WRITER NAME        = [&lt;{@link LogWriter}の名称&gt;]<br>
+     * WRITER CLASS       = [&lt;{@link LogWriter}のクラス名&gt;]<br>
+     * FORMATTER CLASS    = [&lt;{@link LogFormatter}のクラス名&gt;]<br>
+     * LEVEL              = [&lt;ログの出力制御の基準とする{@link LogLevel}&gt;]<br>
+     * FILTERS            = [&lt;{@link LogFilter}の名称&gt;]<br>
+     * FILE PATH          = [&lt;書き込み先のファイルパス&gt;]<br>
+     * ENCODING           = [&lt;書き込み時に使用する文字エンコーディング&gt;]<br>
+     * ATOMIC WRITE SIZE  = [&lt;ログが混在しないことを保証するログの最大サイズ&gt;]<br>
+     *
+     * @return 設定情報
+     * @see LogWriterSupport#getSettings()
+     */
+    @Override
+    protected String getSettings() {
+        return new StringBuilder(512)
+                .append(super.getSettings())
+                .append("\tFILE PATH          = [").append(filePath).append("]").append(Logger.LS)
+                .append("\tENCODING           = [").append(charset.displayName()).append("]").append(Logger.LS)
+                .append("\tATOMIC WRITE SIZE  = [").append(atomicWriteSize).append("]").append(Logger.LS)
+                .toString();
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * <br>
+     * 終了処理の前に、INFOレベルで終了メッセージを出力する。<br>
+     * 書き込み先のファイルをクローズする。
+     */
+    @Override
+    protected void onTerminate() {
+        writeInfo("terminated.");
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("termination failed. out name = [" + getName() + "]", e);
+        } finally {
+            out = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * <br>
+     * ログを1回の書き込みで出力する。
+     * エンコード後のサイズが不可分に書き込めるサイズを超える場合は、件数を数え、
+     * 次に書き込むログの前にWARNレベルのログとして出力する。<br>
+     * <br>
+     * IO例外が発生した場合は、IO例外をラップして{@link IllegalStateException}を送出する。
+     */
+    @Override
+    protected void onWrite(String formattedMessage) {
+        byte[] b = StringUtil.getBytes(formattedMessage, charset);
+        try {
+            FileOutputStream stream = getOutputStream();
+            long oversized = oversizedCount.getAndSet(0);
+            if (oversized > 0) {
+                stream.write(StringUtil.getBytes(getFormatter().format(new LogContext(
+                        FQCN, LogLevel.WARN, oversized + " records exceeded the atomic write size ("
+                        + atomicWriteSize + " bytes) and may have been interleaved with other processes.", null)), charset));
+            }
+            stream.write(b);
+            if (b.length > atomicWriteSize) {
+                oversizedCount.incrementAndGet();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to write. out name = [" + getName() + "]", e);
+        }
+    }
+
+    /**
+     * ログが混在しないことを保証するサイズを超え、まだ報告していないログの件数を取得する。
+     * @return ログの件数
+     */
+    public long getOversizedCount() {
+        return oversizedCount.get();
+    }
+
+    /**
+     * 書き込み先のファイルの出力ストリームを取得する。
+     * @return 出力ストリーム
+     * @throws IllegalStateException 終了処理済みの場合
+     */
+    private FileOutputStream getOutputStream() throws IllegalStateException {
+        FileOutputStream stream = out;
+        if (stream == null) {
+            throw new IllegalStateException(
+                String.format("failed to write for AppendFileLogWriter has already terminated. name = [%s]", getName()));
+        }
+        return stream;
+    }
+
+    /**
+     * INFOレベルのメッセージを書き込む。
+     * @param message メッセージ
+     */
+    private void writeInfo(String message) {
+        LogContext context = new LogContext(FQCN, LogLevel.INFO, message, null);
+        if (needsToWrite(context)) {
+            onWrite(getFormatter().format(context));
+        }
+    }
+}
@@ -1,14 +1,26 @@
 package nablarch.core.log.basic;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
 import nablarch.core.log.LogSettings;
+import nablarch.core.log.LogUtil;
+import nablarch.core.log.LogUtil.ObjectCreator;
 import nablarch.core.log.Logger;
 import nablarch.core.log.LoggerFactory;
 import nablarch.core.util.ObjectUtil;
@@ -54,6 +66,13 @@ import nablarch.core.util.ObjectUtil;
  * <dd>{@link LogWriter}の名称。必須。<br>
  *     複数指定する場合はカンマ区切り。<br>
  *     ここで指定した全ての{@link LogWriter}に対してログの書き込みを行う。
+ *
+ * <dt>writerInitializationThreads
+ * <dd>{@link LogWriter}の初期化に使用するスレッド数。オプション。<br>
+ *     1以上を指定する。指定しなければ1(初期処理を行うスレッドで順に初期化する)。<br>
+ *     2以上を指定した場合は、指定された数を上限とするスレッドで{@link LogWriter}を並行して初期化する。
+ *     ログファイルをネットワーク上のディレクトリに出力する場合など、{@link LogWriter}の初期化に時間を要する場合に指定する。<br>
+ *     初期化に失敗した{@link LogWriter}が複数ある場合は、writerNamesプロパティの記述順で最初の{@link LogWriter}の例外を送出する。
  * </dl>
  * availableLoggersNamesOrderプロパティは、記述順に意味があるので注意すること。<br>
  * {@link Logger}の取得では、ログ出力を行うクラスが指定した{@link Logger}名に対して、
@@ -68,6 +87,21 @@ import nablarch.core.util.ObjectUtil;
  *      NAME REGEX = [tis\.w8\.web\.handler\.HttpAccessLogHandler] LEVEL = [INFO]
  *      NAME REGEX = [.*] LEVEL = [WARN]
  * </pre>
+ * 設定は初期処理の開始時にキーの"."区切りのセグメント毎に索引付けし、
+ * {@link LogWriter}や{@link Logger}定義毎の設定の取得では全ての設定を走査しない。<br>
+ * <br>
+ * 初期処理の処理毎の所要時間は、初期処理完了後に本クラスの{@link Logger}にINFOレベルで1件のログとして出力する。
+ * 出力例を下記に示す。所要時間は{@link #getInitializationTimings()}でも取得できる。
+ * <pre>
+ * 2010-09-14 15:26:32.360 nablarch.core.log.basic.BasicLoggerFactory INFO [main] user_id[null] request_id[null] logging initialization timings. unit = [ms]
+ *      settings = [0.412]
+ *      writer.appFile = [8.127]
+ *      writer.appFile.formatter = [1.035]
+ *      writer.stdout = [0.731]
+ *      writer.stdout.formatter = [0.402]
+ *      logger definitions = [0.388]
+ *      total = [9.911]
+ * </pre>
  * @author Kiyohito Itoh
  */
 public class BasicLoggerFactory implements LoggerFactory {
@@ -75,12 +109,29 @@ public class BasicLoggerFactory implements LoggerFactory {
     /** 何も処理しない{@link Logger} */
     private static final Logger NULL_LOGGER = new BasicLogger("null");
     
+    /** 終了処理時に、{@link LogWriter}の終了処理の前に終了処理を呼び出すクラスの一覧 */
+    static final String[] CLASSES_TO_TERMINATE = {
+            "nablarch.core.log.app.PerformanceLogUtil",
+            "nablarch.core.log.app.FailureLogUtil"
+    };
+    
+    /** クラスローダに紐付く初期化済みの{@link BasicLoggerFactory}の参照を生成する{@link ObjectCreator} */
+    private static final ObjectCreator<AtomicReference<BasicLoggerFactory>> INITIALIZED_FACTORY_CREATOR
+            = new ObjectCreator<AtomicReference<BasicLoggerFactory>>() {
+        public AtomicReference<BasicLoggerFactory> create() {
+            return new AtomicReference<BasicLoggerFactory>();
+        }
+    };
+    
     /** 設定で指定された全ての{@link Logger}定義 */
     private List<LoggerDefinition> loggerDefinitions;
     
     /** 設定で指定された全ての{@link LogWriter} */
     private Map<String, LogWriter> writers;
     
+    /** 初期処理の処理毎の所要時間 */
+    private InitializationTimings initializationTimings;
+    
     /**
      * {@inheritDoc}<br>
      * <br>
@@ -90,28 +141,87 @@ public class BasicLoggerFactory implements LoggerFactory {
      * 初期処理完了後に、各{@link LogWriter}に対して、出力されるログレベルの書き込みを行う。
      */
     public void initialize(LogSettings settings) {
-        writers = createWriters(settings);
-        loggerDefinitions = createLoggerDefinitions(settings);
-        assertLoggerDefinitionMatching(settings);
+        InitializationTimings timings = new InitializationTimings("logging initialization timings.");
+        long start = System.nanoTime();
+        SettingsIndex index = new SettingsIndex(settings.getProps());
+        timings.record("settings", System.nanoTime() - start);
+        writers = createWriters(settings, getWriterInitializationThreads(settings), index, timings);
+        long definitionStart = System.nanoTime();
+        loggerDefinitions = createLoggerDefinitions(settings, index);
+        assertLoggerDefinitionMatching(index);
+        timings.record("logger definitions", System.nanoTime() - definitionStart);
+        timings.record("total", System.nanoTime() - start);
+        initializationTimings = timings;
+        LogUtil.getObjectBoundToClassLoader(INITIALIZED_FACTORY_CREATOR).set(this);
         writeLoggerSettings();
+        writeInitializationTimings(timings);
+    }
+    
+    /**
+     * 初期処理の処理毎の所要時間を取得する。
+     * <p/>
+     * 下記の処理名で所要時間(ナノ秒)を保持する。
+     * writer.&lt;{@link LogWriter}の名称&gt;.formatterの所要時間は、writer.&lt;{@link LogWriter}の名称&gt;の所要時間に含まれる。
+     * <ul>
+     * <li>settings : 設定の索引付け</li>
+     * <li>writer.&lt;{@link LogWriter}の名称&gt; : {@link LogWriter}の生成と初期化</li>
+     * <li>writer.&lt;{@link LogWriter}の名称&gt;.formatter : {@link LogFormatter}の生成と初期化({@link LogWriterSupport}のサブクラスのみ)</li>
+     * <li>logger definitions : {@link Logger}定義の生成と検証</li>
+     * <li>total : 初期処理全体</li>
+     * </ul>
+     * @return 初期処理の処理毎の所要時間。初期処理が完了していない場合はnull
+     */
+    public InitializationTimings getInitializationTimings() {
+        return initializationTimings;
+    }
+    
+    /**
+     * クラスローダに紐付く初期化済みの{@link BasicLoggerFactory}が保持する{@link LogWriter}のうち、
+     * {@link LogWriterSupport}を継承したものを取得する。
+     * <p/>
+     * {@link LogWriter}は、初期化済みの{@link BasicLoggerFactory}のインスタンスが保持しており、
+     * 終了処理を行った{@link BasicLoggerFactory}の{@link LogWriter}は含まれない。
+     * @return {@link LogWriter}の名称をキーにした{@link LogWriterSupport}。初期化済みの{@link BasicLoggerFactory}がない場合は空のマップ
+     */
+    public static Map<String, LogWriterSupport> getActiveWriters() {
+        BasicLoggerFactory factory = LogUtil.getObjectBoundToClassLoader(INITIALIZED_FACTORY_CREATOR).get();
+        Map<String, LogWriter> factoryWriters = factory == null ? null : factory.writers;
+        if (factoryWriters == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, LogWriterSupport> activeWriters = new LinkedHashMap<String, LogWriterSupport>();
+        for (Map.Entry<String, LogWriter> entry : factoryWriters.entrySet()) {
+            if (entry.getValue() instanceof LogWriterSupport) {
+                activeWriters.put(entry.getKey(), (LogWriterSupport) entry.getValue());
+            }
+        }
+        return Collections.unmodifiableMap(activeWriters);
+    }
+    
+    /**
+     * 初期処理の処理毎の所要時間を、本クラスの{@link Logger}にINFOレベルで出力する。<br>
+     * 出力で例外が発生した場合は、標準エラーにスタックトレースを出力する。
+     * @param timings 初期処理の処理毎の所要時間
+     */
+    private void writeInitializationTimings(InitializationTimings timings) {
+        try {
+            Logger logger = get(BasicLoggerFactory.class.getName());
+            if (logger.isInfoEnabled()) {
+                logger.logInfo(timings.format());
+            }
+        } catch (Throwable t) {
+            t.printStackTrace(System.err);
+        }
     }
     
     /**
      * 使用可能なロガー設定と、全てのロガー設定が一致するか検証する。<br>
      * 一致しない場合は{@link IllegalArgumentException}を送出する。<br>
      * この検証は、設定ミスを防ぐために設けている。
-     * @param settings ログ出力の設定
+     * @param index 設定の索引
      */
-    private void assertLoggerDefinitionMatching(LogSettings settings) {
-        String prefix = "loggers";
-        Set<String> eachLoggerNames = new HashSet<String>();
-        for (Map.Entry<String, String> entry : settings.getProps().entrySet()) {
-            String[] splitKey = entry.getKey().split("\\.");
-            if (!prefix.equals(splitKey[0])) {
-                continue;
-            }
-            eachLoggerNames.add(splitKey[1]);
-        }
+    private void assertLoggerDefinitionMatching(SettingsIndex index) {
+        Set<String> eachLoggerNames = new HashSet<String>(index.getChildSegments("loggers"));
         List<String> defNames = new ArrayList<String>();
         for (LoggerDefinition def : loggerDefinitions) {
             String defName = def.getName();
@@ -129,9 +239,10 @@ public class BasicLoggerFactory implements LoggerFactory {
     
     /**
      * {@link LogWriter}毎に、自身に設定されているロガー設定を出力する。<br>
+     * 出力はwriterNamesプロパティの記述順に行う。<br>
      * 設定情報のフォーマットを下記に示す。<br>
      * <br>
-     * LOGGER = [&lt;{@link Logger}名&gt;] NAME REGEX = [&lt;{@link Logger}名に対するマッチングに使用する正規表現&gt;] LEVEL = [&lt;ログの出力制御の基準とする{@link LogLevel}&gt;]
+     * LOGGER = [&lt;{@link Logger}名&gt;] NAME REGEX = [&lt;{@link Logger}名に対するマッチングに使用する正規表現&gt;] LEVEL = [&lt;ログの出力制御の基準とする{@link LogLevel}&gt;]<br>
      */
     private void writeLoggerSettings() {
         for (LogWriter writer : writers.values()) {
@@ -154,31 +265,151 @@ public class BasicLoggerFactory implements LoggerFactory {
         }
     }
     
+    /**
+     * {@link LogWriter}の初期化に使用するスレッド数を取得する。
+     * @param settings ログ出力の設定内容
+     * @return {@link LogWriter}の初期化に使用するスレッド数
+     */
+    private int getWriterInitializationThreads(LogSettings settings) {
+        String value = settings.getProps().get("writerInitializationThreads");
+        if (value == null) {
+            return 1;
+        }
+        int threads;
+        try {
+            threads = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                String.format("writerInitializationThreads must be able to convert to Integer. file path = [%s], value = [%s]",
+                              settings.getFilePath(), value), e);
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                String.format("writerInitializationThreads must be 1 or more. file path = [%s], value = [%s]",
+                              settings.getFilePath(), value));
+        }
+        return threads;
+    }
+
     /**
      * 設定で指定された全ての{@link LogWriter}の生成と初期化を行う。
+     * <p/>
+     * 戻り値のマップは、writerNamesプロパティの記述順に{@link LogWriter}を保持する。
      * @param settings ログ出力の設定内容
+     * @param initializationThreads {@link LogWriter}の初期化に使用するスレッド数
+     * @param index 設定の索引
+     * @param timings {@link LogWriter}毎の所要時間を記録する初期処理の処理毎の所要時間
      * @return 設定で指定された全ての{@link LogWriter}
      */
-    private Map<String, LogWriter> createWriters(LogSettings settings) {
+    private Map<String, LogWriter> createWriters(LogSettings settings, int initializationThreads,
+                                                 SettingsIndex index, InitializationTimings timings) {
         String[] writerNames = settings.getRequiredProp("writerNames").split(",");
-        Map<String, LogWriter> writers = new HashMap<String, LogWriter>((int) (writerNames.length * 1.5));
+        Map<String, ObjectSettings> writerSettings = new LinkedHashMap<String, ObjectSettings>((int) (writerNames.length * 1.5));
         for (String splitName : writerNames) {
             String writerName = splitName.trim();
             if (writerName.length() == 0) {
                 throw new IllegalArgumentException(
                     String.format("blank was included in the comma-separated value. file path = [%s], key = [writerNames]", settings.getFilePath()));
             }
-            writers.put(writerName, createLogWriter(new ObjectSettings(settings, "writer." + writerName)));
+            writerSettings.put(writerName, new ObjectSettings(settings, "writer." + writerName, index));
+        }
+        Map<String, LogWriter> writers = new LinkedHashMap<String, LogWriter>((int) (writerNames.length * 1.5));
+        if (initializationThreads <= 1 || writerSettings.size() <= 1) {
+            for (Map.Entry<String, ObjectSettings> entry : writerSettings.entrySet()) {
+                putWriter(writers, timings, entry.getKey(), createLogWriter(entry.getValue()));
+            }
+            return writers;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(initializationThreads, writerSettings.size()), new WriterInitializationThreadFactory());
+        try {
+            Map<String, Future<CreatedWriter>> futures = new LinkedHashMap<String, Future<CreatedWriter>>();
+            for (Map.Entry<String, ObjectSettings> entry : writerSettings.entrySet()) {
+                final ObjectSettings objectSettings = entry.getValue();
+                futures.put(entry.getKey(), executor.submit(new Callable<CreatedWriter>() {
+                    public CreatedWriter call() {
+                        return createLogWriter(objectSettings);
+                    }
+                }));
+            }
+            // 全ての初期化の完了を待ってから、記述順で最初に失敗したLogWriterの例外を送出する。
+            Throwable failure = null;
+            for (Map.Entry<String, Future<CreatedWriter>> entry : futures.entrySet()) {
+                try {
+                    putWriter(writers, timings, entry.getKey(), getUninterruptibly(entry.getValue()));
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                }
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            if (failure != null) {
+                throw new IllegalStateException("failed to initialize the writer.", failure);
+            }
+            return writers;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 生成した{@link LogWriter}をマップに格納し、所要時間を記録する。
+     * <p/>
+     * {@link LogWriterSupport}のサブクラスの場合は、{@link LogFormatter}の生成と初期化の所要時間も記録する。
+     * @param writers {@link LogWriter}を格納するマップ
+     * @param timings 初期処理の処理毎の所要時間
+     * @param writerName {@link LogWriter}の名称
+     * @param created 生成した{@link LogWriter}
+     */
+    private static void putWriter(Map<String, LogWriter> writers, InitializationTimings timings,
+                                  String writerName, CreatedWriter created) {
+        writers.put(writerName, created.writer);
+        String timingName = "writer." + writerName;
+        timings.record(timingName, created.nanos);
+        if (created.writer instanceof LogWriterSupport) {
+            timings.record(timingName + ".formatter",
+                           ((LogWriterSupport) created.writer).getFormatterInitializationNanos());
+        }
+    }
+
+    /**
+     * 割り込みが発生した場合も完了を待って、{@link Future}の結果を取得する。
+     * <p/>
+     * 割り込みが発生した場合は、完了後に割り込み状態を復元する。
+     * @param future {@link Future}
+     * @return 結果
+     * @throws ExecutionException 処理で例外が発生した場合
+     */
+    private static CreatedWriter getUninterruptibly(Future<CreatedWriter> future) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
-        return writers;
     }
     
     /**
      * 設定で指定された全ての{@link Logger}定義を生成する。
      * @param settings ログ出力の設定内容
+     * @param index 設定の索引
      * @return 設定で指定された全ての{@link Logger}定義
      */
-    private List<LoggerDefinition> createLoggerDefinitions(LogSettings settings) {
+    private List<LoggerDefinition> createLoggerDefinitions(LogSettings settings, SettingsIndex index) {
         String[] loggerNames = settings.getRequiredProp("availableLoggersNamesOrder").split(",");
         List<LoggerDefinition> loggers = new ArrayList<LoggerDefinition>(loggerNames.length);
         for (String splitName : loggerNames) {
@@ -188,7 +419,7 @@ public class BasicLoggerFactory implements LoggerFactory {
                     String.format("blank was included in the comma-separated value. file path = [%s], key = [availableLoggersNamesOrder]",
                                   settings.getFilePath()));
             }
-            loggers.add(createLoggerDefinition(loggerName, new ObjectSettings(settings, "loggers." + loggerName)));
+            loggers.add(createLoggerDefinition(loggerName, new ObjectSettings(settings, "loggers." + loggerName, index)));
         }
         return loggers;
     }
@@ -196,11 +427,19 @@ public class BasicLoggerFactory implements LoggerFactory {
     /**
      * {@inheritDoc}<br>
      * <br>
-     * 全ての{@link LogWriter}の終了処理を行う。<br>
-     * {@link LogWriter}の終了処理で例外が発生した場合は、発生した例外をキャッチし、標準エラーにスタックトレースを出力する。<br>
+     * 集計結果などを保持するログユーティリティクラス(パフォーマンスログなど)の終了処理を呼び出した後、
+     * 全ての{@link LogWriter}の終了処理を行う。
+     * ログユーティリティクラスが未出力のログを出力できるよう、{@link LogWriter}の終了処理より前に呼び出す。<br>
+     * 終了処理で例外が発生した場合は、発生した例外をキャッチし、標準エラーにスタックトレースを出力する。<br>
      * 発生した例外の再スローは行わない。
      */
     public void terminate() {
+        if (loggerDefinitions != null) {
+            for (String className : CLASSES_TO_TERMINATE) {
+                invokeTerminate(className);
+            }
+        }
+        LogUtil.getObjectBoundToClassLoader(INITIALIZED_FACTORY_CREATOR).compareAndSet(this, null);
         if (loggerDefinitions != null) {
             loggerDefinitions.clear();
         }
@@ -235,15 +474,39 @@ public class BasicLoggerFactory implements LoggerFactory {
         return NULL_LOGGER;
     }
     
+    /**
+     * 指定されたクラスの終了処理(引数なしのstaticメソッドterminate)を呼び出す。<br>
+     * 指定されたクラスが存在しない場合は何もしない。
+     * 呼び出しに失敗した場合は、標準エラーにスタックトレースを出力する。
+     * @param className 終了処理を呼び出すクラス名
+     */
+    private static void invokeTerminate(String className) {
+        Class<?> clazz;
+        try {
+            clazz = Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            return;
+        }
+        try {
+            Method terminateMethod = clazz.getDeclaredMethod("terminate");
+            terminateMethod.invoke(null);
+        } catch (InvocationTargetException e) {
+            e.getCause().printStackTrace(System.err);
+        } catch (Throwable t) {
+            t.printStackTrace(System.err);
+        }
+    }
+    
     /**
      * 設定を使用して{@link LogWriter}を生成する。
      * @param settings {@link LogWriter}の設定
-     * @return 設定を使用して生成した{@link LogWriter}
+     * @return 設定を使用して生成した{@link LogWriter}と、生成と初期化の所要時間
      */
-    private LogWriter createLogWriter(ObjectSettings settings) {
+    private static CreatedWriter createLogWriter(ObjectSettings settings) {
+        long start = System.nanoTime();
         LogWriter writer = ObjectUtil.createInstance(settings.getRequiredProp("className"));
         writer.initialize(settings);
-        return writer;
+        return new CreatedWriter(writer, System.nanoTime() - start);
     }
     
     /**
@@ -285,6 +548,48 @@ public class BasicLoggerFactory implements LoggerFactory {
         return specifiedWriters;
     }
     
+    /**
+     * 生成した{@link LogWriter}と、生成と初期化の所要時間を保持するクラス。
+     * @author Kiyohito Itoh
+     */
+    private static final class CreatedWriter {
+
+        /** 生成した{@link LogWriter} */
+        private final LogWriter writer;
+
+        /** 生成と初期化の所要時間(ナノ秒) */
+        private final long nanos;
+
+        /**
+         * コンストラクタ。
+         * @param writer 生成した{@link LogWriter}
+         * @param nanos 生成と初期化の所要時間(ナノ秒)
+         */
+        private CreatedWriter(LogWriter writer, long nanos) {
+            this.writer = writer;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * {@link LogWriter}の初期化に使用するデーモンスレッドを生成するクラス。
+     * @author Kiyohito Itoh
+     */
+    private static final class WriterInitializationThreadFactory implements ThreadFactory {
+
+        /** 生成したスレッドの数 */
+        private int count;
+
+        /**
+         * {@inheritDoc}
+         */
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, BasicLoggerFactory.class.getName() + "-writer-initializer-" + (++count));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
     /**
      * {@link Logger}定義を保持するクラス。
      * @author Kiyohito Itoh
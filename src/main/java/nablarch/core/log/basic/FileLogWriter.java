@@ -120,7 +120,8 @@ public class FileLogWriter extends LogWriterSupport {
      * WRITER NAME        = [&lt;{@link LogWriter}の名称&gt;]<br>
      * WRITER CLASS       = [&lt;{@link LogWriter}のクラス名&gt;]<br>
      * FORMATTER CLASS    = [&lt;{@link LogFormatter}のクラス名&gt;]<br>
-     * LEVEL              = [&lt;ログの出力制御の基準とする{@link LogLevel}&gt;]
+     * LEVEL              = [&lt;ログの出力制御の基準とする{@link LogLevel}&gt;]<br>
+     * FILTERS            = [&lt;{@link LogFilter}の名称&gt;]<br>
      * FILE PATH          = [&lt;書き込み先のファイルパス&gt;]<br>
      * ENCODING           = [&lt;書き込み時に使用する文字エンコーディング&gt;]<br>
      * OUTPUT BUFFER SIZE = [&lt;出力バッファのサイズ&gt;]<br>
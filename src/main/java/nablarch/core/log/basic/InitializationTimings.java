@@ -0,0 +1,78 @@
+package nablarch.core.log.basic;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import nablarch.core.log.Logger;
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 初期処理の処理毎の所要時間を保持するクラス。
+ * <p/>
+ * 所要時間はナノ秒で保持し、記録した順に出力する。
+ * 同一の処理名で記録した場合は、所要時間を加算する。<br>
+ * 出力形式を下記に示す。所要時間の単位はミリ秒とする。
+ * <pre>
+ * {@code
+ * <タイトル> unit = [ms]
+ *     <処理名> = [<所要時間>]
+ *     <処理名> = [<所要時間>]
+ * }
+ * </pre>
+ *
+ * @author Kiyohito Itoh
+ */
+@Published(tag = "architect")
+public final class InitializationTimings {
+
+    /** ナノ秒をミリ秒に変換するための係数 */
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    /** タイトル */
+    private final String title;
+
+    /** 処理名毎の所要時間(ナノ秒) */
+    private final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+
+    /**
+     * コンストラクタ。
+     * @param title 出力時のタイトル
+     */
+    public InitializationTimings(String title) {
+        this.title = title;
+    }
+
+    /**
+     * 処理の所要時間を記録する。
+     * @param name 処理名
+     * @param nanos 所要時間(ナノ秒)
+     */
+    public synchronized void record(String name, long nanos) {
+        Long recorded = timings.get(name);
+        timings.put(name, recorded == null ? nanos : recorded + nanos);
+    }
+
+    /**
+     * 記録した処理毎の所要時間を取得する。
+     * @return 処理名をキー、所要時間(ナノ秒)を値とするマップ。記録した順に保持する
+     */
+    public synchronized Map<String, Long> getTimings() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(timings));
+    }
+
+    /**
+     * 記録した処理毎の所要時間を出力形式に整形する。
+     * @return 整形した所要時間
+     */
+    public synchronized String format() {
+        StringBuilder sb = new StringBuilder(64 + timings.size() * 64);
+        sb.append(title).append(" unit = [ms]");
+        for (Map.Entry<String, Long> timing : timings.entrySet()) {
+            sb.append(Logger.LS).append('\t').append(timing.getKey())
+              .append(" = [").append(String.format(Locale.ROOT, "%.3f", timing.getValue() / NANOS_PER_MILLI)).append(']');
+        }
+        return sb.toString();
+    }
+}
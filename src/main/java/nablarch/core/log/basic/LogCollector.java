@@ -0,0 +1,332 @@
+package nablarch.core.log.basic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * {@link SocketLogWriter}から送信されたログをファイルに書き込むクラス。
+ * <p>
+ * ローカルホスト(127.0.0.1)の指定されたポートで待ち受け、接続毎に受信した書き込み先の名称のファイルにログを書き込む。
+ * 書き込み先のファイルは、出力ディレクトリ配下の書き込み先の名称のファイルとする。<br/>
+ * 接続の受け付け、受信、ファイルへの書き込みは1つのスレッドで順に行うため、
+ * 複数のプロセスから送信されたログが混在せず、ファイルへの書き込みに排他制御は不要となる。<br/>
+ * 継続フラグが設定されたフレームは接続毎に受信順に連結し、継続フラグのないフレームを受信した時点で1件のログとして書き込む。
+ * 接続が切断された場合は、連結途中のログを破棄する({@link SocketLogWriter}は再接続後にそのログを先頭から再送する)。<br/>
+ * {@link SocketLogWriter}は再接続時に送信途中だったログを再送するため、配送は少なくとも1回(at-least-once)となる。
+ * 本クラスは重複の除去を行わないため、ファイルに同じログが重複して書き込まれる場合がある。
+ * </p>
+ * <p>
+ * 独立したプロセスとして起動する場合は、{@link #main(String[])}を使用する。
+ * 同一プロセス内で起動する場合は、{@link #start()}と{@link #stop()}を使用する。
+ * </p>
+ *
+ * @author Kiyohito Itoh
+ */
+public class LogCollector {
+
+    /** 書き込み先の名称に使用できる文字のパターン */
+    private static final Pattern TARGET_PATTERN = Pattern.compile("[A-Za-z0-9._-]+");
+
+    /** ヘッダのサイズ */
+    private static final int LENGTH_SIZE = 4;
+
+    /** 受信するデータの最大サイズ */
+    private static final int MAX_FRAME_SIZE = 64 * 1024;
+
+    /** 分割されたログを連結した後の最大サイズ */
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    /** 出力ディレクトリ */
+    private final File directory;
+
+    /** 接続を受け付ける{@link ServerSocketChannel} */
+    private final ServerSocketChannel serverChannel;
+
+    /** 受信待ちに使用する{@link Selector} */
+    private final Selector selector;
+
+    /** 書き込み先の名称毎のファイルの出力ストリーム */
+    private final Map<String, OutputStream> outputs = new HashMap<String, OutputStream>();
+
+    /** 受け付けた接続 */
+    private final Set<SocketChannel> clients = new HashSet<SocketChannel>();
+
+    /** 受信用のスレッド */
+    private Thread receiver;
+
+    /**
+     * 指定されたポートで待ち受ける{@link LogCollector}を生成する。
+     * @param port 待ち受けるポート番号。0の場合は空いているポートを使用する
+     * @param directory 出力ディレクトリ
+     * @throws IOException 待ち受けの開始に失敗した場合
+     */
+    public LogCollector(int port, File directory) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new IllegalArgumentException("output directory was not found. directory = [" + directory.getAbsolutePath() + "]");
+        }
+        this.directory = directory;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * 書き込み先の名称が使用できる文字のみで構成されているかを判定する。
+     * @param target 書き込み先の名称
+     * @return 使用できる文字のみで構成されている場合はtrue
+     */
+    static boolean isValidTarget(String target) {
+        return target != null && TARGET_PATTERN.matcher(target).matches()
+                && !".".equals(target) && !"..".equals(target);
+    }
+
+    /**
+     * 待ち受けているポート番号を取得する。
+     * @return ポート番号
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * 受信用のスレッドを開始する。
+     */
+    public synchronized void start() {
+        receiver = new Thread(new Runnable() {
+            public void run() {
+                LogCollector.this.run();
+            }
+        }, LogCollector.class.getName());
+        receiver.start();
+    }
+
+    /**
+     * 受信用のスレッドを終了し、全ての接続とファイルをクローズする。
+     * @throws InterruptedException 受信用のスレッドの終了待ちで割り込みが発生した場合
+     */
+    public synchronized void stop() throws InterruptedException {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // 受信用のスレッドを終了させるため例外は無視する。
+        }
+        if (receiver != null) {
+            receiver.join();
+        }
+    }
+
+    /**
+     * 接続の受け付けと受信、ファイルへの書き込みを、{@link Selector}がクローズされるまで繰り返す。
+     */
+    public void run() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                if (!selector.isOpen()) {
+                    break;
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("log collector stopped abnormally.", e);
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * 接続を受け付ける。
+     * @throws IOException 接続の受け付けに失敗した場合
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        clients.add(channel);
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection());
+    }
+
+    /**
+     * 受信したデータを読み込み、受信が完了したログをファイルに書き込む。
+     * <p/>
+     * 継続フラグが設定されたフレームは連結し、継続フラグのないフレームを受信した時点で書き込む。<br>
+     * 接続が切断された場合、または不正なデータを受信した場合は接続をクローズする。
+     * 受信途中のデータと連結途中のログは破棄する。
+     * @param key 受信したチャネルの{@link SelectionKey}
+     */
+    private void read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (channel.read(connection.buffer) < 0) {
+                close(key);
+                return;
+            }
+            connection.buffer.flip();
+            OutputStream out = null;
+            while (connection.buffer.remaining() >= LENGTH_SIZE) {
+                int header = connection.buffer.getInt(connection.buffer.position());
+                boolean continued = (header & SocketLogWriter.CONTINUATION_FLAG) != 0;
+                int length = header & ~SocketLogWriter.CONTINUATION_FLAG;
+                if (length > MAX_FRAME_SIZE || (continued && connection.target == null)) {
+                    close(key);
+                    return;
+                }
+                if (connection.buffer.remaining() < LENGTH_SIZE + length) {
+                    break;
+                }
+                connection.buffer.position(connection.buffer.position() + LENGTH_SIZE);
+                byte[] data = new byte[length];
+                connection.buffer.get(data);
+                if (connection.target == null) {
+                    String target = new String(data, "UTF-8");
+                    if (!isValidTarget(target)) {
+                        close(key);
+                        return;
+                    }
+                    connection.target = target;
+                } else if (continued || connection.fragments != null) {
+                    if (connection.fragments == null) {
+                        connection.fragments = new ByteArrayOutputStream(MAX_FRAME_SIZE * 2);
+                    }
+                    if (connection.fragments.size() + length > MAX_RECORD_SIZE) {
+                        close(key);
+                        return;
+                    }
+                    connection.fragments.write(data);
+                    if (!continued) {
+                        out = getOutput(connection.target);
+                        connection.fragments.writeTo(out);
+                        connection.fragments = null;
+                    }
+                } else {
+                    out = getOutput(connection.target);
+                    out.write(data);
+                }
+            }
+            connection.buffer.compact();
+            if (out != null) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            close(key);
+        }
+    }
+
+    /**
+     * 書き込み先の名称に対応するファイルの出力ストリームを取得する。存在しない場合はオープンする。
+     * @param target 書き込み先の名称
+     * @return 出力ストリーム
+     * @throws IOException ファイルのオープンに失敗した場合
+     */
+    private OutputStream getOutput(String target) throws IOException {
+        OutputStream out = outputs.get(target);
+        if (out == null) {
+            out = new FileOutputStream(new File(directory, target), true);
+            outputs.put(target, out);
+        }
+        return out;
+    }
+
+    /**
+     * 接続をクローズする。例外は無視する。
+     * @param key 接続の{@link SelectionKey}
+     */
+    private void close(SelectionKey key) {
+        key.cancel();
+        clients.remove(key.channel());
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // 接続を破棄するため例外は無視する。
+        }
+    }
+
+    /**
+     * 全ての接続とファイルをクローズする。例外は無視する。
+     */
+    private void closeAll() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            // 終了処理のため例外は無視する。
+        }
+        for (SocketChannel client : clients) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // 終了処理のため例外は無視する。
+            }
+        }
+        clients.clear();
+        for (OutputStream out : outputs.values()) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // 終了処理のため例外は無視する。
+            }
+        }
+        outputs.clear();
+    }
+
+    /**
+     * 接続毎の受信状態を保持するクラス。
+     */
+    private static final class Connection {
+
+        /** 受信バッファ */
+        private final ByteBuffer buffer = ByteBuffer.allocate(LENGTH_SIZE + MAX_FRAME_SIZE);
+
+        /** 書き込み先の名称。受信前はnull */
+        private String target;
+
+        /** 連結途中のログ。連結途中でない場合はnull */
+        private ByteArrayOutputStream fragments;
+    }
+
+    /**
+     * {@link LogCollector}を起動する。
+     * <p/>
+     * 引数には、待ち受けるポート番号と出力ディレクトリを指定する。
+     * @param args 待ち受けるポート番号、出力ディレクトリ
+     * @throws IOException 待ち受けの開始に失敗した場合
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("usage: LogCollector <port> <output directory>");
+        }
+        new LogCollector(Integer.parseInt(args[0]), new File(args[1])).run();
+    }
+}
@@ -0,0 +1,42 @@
+package nablarch.core.log.basic;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * ログのフォーマット前に、ログを出力するか否かを判定するインタフェース。<br>
+ * <br>
+ * {@link LogWriterSupport}は、設定で指定された{@link LogFilter}を指定された順に呼び出し、
+ * 最初に{@link Decision#ACCEPT}または{@link Decision#DENY}を返した{@link LogFilter}の判定結果を使用する。<br>
+ * 全ての{@link LogFilter}が{@link Decision#NEUTRAL}を返した場合はログを出力する。
+ * 
+ * @author Kiyohito Itoh
+ */
+@Published(tag = "architect")
+public interface LogFilter {
+    
+    /**
+     * 判定結果を表す列挙型。
+     * @author Kiyohito Itoh
+     */
+    enum Decision {
+        /** ログを出力する。後続の{@link LogFilter}は呼び出さない。 */
+        ACCEPT,
+        /** ログを出力しない。後続の{@link LogFilter}は呼び出さない。 */
+        DENY,
+        /** 判定を後続の{@link LogFilter}に委ねる。 */
+        NEUTRAL
+    }
+    
+    /**
+     * 初期処理を行う。
+     * @param settings LogFilterの設定
+     */
+    void initialize(ObjectSettings settings);
+    
+    /**
+     * 指定されたログを出力するか否かを判定する。
+     * @param context {@link LogContext}
+     * @return 判定結果
+     */
+    Decision decide(LogContext context);
+}
@@ -0,0 +1,94 @@
+package nablarch.core.log.basic;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * {@link LogFilter}の実装をサポートするクラス。<br>
+ * <br>
+ * 条件に一致した場合と一致しなかった場合の判定結果を設定で指定できる。<br>
+ * プロパティファイルの記述ルールを下記に示す。
+ * <dl>
+ * <dt>onMatch
+ * <dd>条件に一致した場合の判定結果。オプション。<br>
+ *     {@link LogFilter.Decision}の名称を指定する。指定しなければNEUTRAL。
+ *     
+ * <dt>onMismatch
+ * <dd>条件に一致しなかった場合の判定結果。オプション。<br>
+ *     {@link LogFilter.Decision}の名称を指定する。指定しなければDENY。
+ * </dl>
+ * デフォルトの判定結果では、条件に一致したログのみが後続の{@link LogFilter}に渡される。
+ * 
+ * @author Kiyohito Itoh
+ */
+@Published(tag = "architect")
+public abstract class LogFilterSupport implements LogFilter {
+    
+    /** 条件に一致した場合の判定結果 */
+    private Decision onMatch = Decision.NEUTRAL;
+    
+    /** 条件に一致しなかった場合の判定結果 */
+    private Decision onMismatch = Decision.DENY;
+    
+    /**
+     * {@inheritDoc}<br>
+     * <br>
+     * 設定を使用して判定結果を初期化する。
+     */
+    public void initialize(ObjectSettings settings) {
+        String match = settings.getProp("onMatch");
+        if (match != null) {
+            onMatch = Decision.valueOf(match.trim());
+        }
+        String mismatch = settings.getProp("onMismatch");
+        if (mismatch != null) {
+            onMismatch = Decision.valueOf(mismatch.trim());
+        }
+        onInitialize(settings);
+    }
+    
+    /**
+     * 初期処理を行う。<br>
+     * 条件の判定に使用する設定の読み込みなどを実装する。
+     * @param settings LogFilterの設定
+     */
+    protected abstract void onInitialize(ObjectSettings settings);
+    
+    /**
+     * {@inheritDoc}
+     */
+    public Decision decide(LogContext context) {
+        return matches(context) ? onMatch : onMismatch;
+    }
+    
+    /**
+     * 指定されたログが条件に一致するか否かを判定する。
+     * @param context {@link LogContext}
+     * @return 条件に一致する場合は<code>true</code>
+     */
+    protected abstract boolean matches(LogContext context);
+    
+    /**
+     * カンマ区切りで指定された必須プロパティを取得する。
+     * @param settings LogFilterの設定
+     * @param propName プロパティ名
+     * @return プロパティに指定された値のセット
+     * @throws IllegalArgumentException プロパティが存在しない場合、またはブランクが含まれる場合
+     */
+    protected Set<String> getRequiredValues(ObjectSettings settings, String propName) throws IllegalArgumentException {
+        Set<String> values = new HashSet<String>();
+        for (String splitValue : settings.getRequiredProp(propName).split(",")) {
+            String value = splitValue.trim();
+            if (value.length() == 0) {
+                throw new IllegalArgumentException(
+                    String.format("blank was included in the comma-separated value. file path = [%s], key = [%s]",
+                                  settings.getFilePath(), settings.getName() + "." + propName));
+            }
+            values.add(value);
+        }
+        return Collections.unmodifiableSet(values);
+    }
+}
@@ -1,5 +1,8 @@
 package nablarch.core.log.basic;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import nablarch.core.log.Logger;
 import nablarch.core.util.ObjectUtil;
 import nablarch.core.util.annotation.Published;
@@ -10,6 +13,7 @@ import nablarch.core.util.annotation.Published;
  * このクラスでは、下記の機能を提供する。
  * <ul>
  * <li>{@link LogLevel}に応じた出力制御</li>
+ * <li>{@link LogFilter}を使用した出力制御</li>
  * <li>{@link LogFormatter}を使用したログのフォーマット</li>
  * </ul>
  * 上記の機能は、プロパティファイルに設定を記述して使用する。<br>
@@ -21,6 +25,21 @@ import nablarch.core.util.annotation.Published;
  *     ここで指定したレベル以上のログを全て出力する。
  *     指定がない場合はレベルに応じた出力制御を行わず、全てのレベルのログを出力する。
  *     
+ * <dt>writer.&lt;{@link LogWriter}の名称&gt;.filters
+ * <dd>{@link LogFilter}の名称。オプション。<br>
+ *     複数指定する場合はカンマ区切り。<br>
+ *     {@link LogLevel}による出力制御の後、フォーマットの前に、ここで指定した順に{@link LogFilter}を呼び出す。<br>
+ *     最初に{@link LogFilter.Decision#ACCEPT}または{@link LogFilter.Decision#DENY}を返した{@link LogFilter}の判定結果で出力要否を決定する。
+ *     全ての{@link LogFilter}が{@link LogFilter.Decision#NEUTRAL}を返した場合は出力する。
+ *     
+ * <dt>writer.&lt;{@link LogWriter}の名称&gt;.filter.&lt;{@link LogFilter}の名称&gt;.className
+ * <dd>{@link LogFilter}のクラス名。必須。<br>
+ *     {@link LogFilter}を実装したクラスのFQCNを指定する。
+ *     
+ * <dt>writer.&lt;{@link LogWriter}の名称&gt;.filter.&lt;{@link LogFilter}の名称&gt;.<プロパティ名>
+ * <dd>{@link LogFilter}毎のプロパティに設定する値。<br>
+ *     設定内容は、使用する{@link LogFilter}のJavadocを参照すること。
+ *     
  * <dt>writer.&lt;{@link LogWriter}の名称&gt;.formatter.className
  * <dd>{@link LogWriter}で使用する{@link LogFormatter}のクラス名。<br>
  *     {@link LogFormatter}を実装したクラスのFQCNを指定する。
@@ -31,11 +50,20 @@ import nablarch.core.util.annotation.Published;
  *     設定内容は、使用する{@link LogFormatter}のJavadocを参照すること。
  * </dl>
  * 
+ * {@link #enableWriteCount()}を呼び出した{@link LogWriter}は、呼び出し以降に出力したログの件数を{@link LogLevel}毎に保持する。
+ * 件数を参照しない場合の書き込み毎のコストを避けるため、デフォルトでは件数を保持しない。
+ * 
  * @author Kiyohito Itoh
  */
 @Published(tag = "architect")
 public abstract class LogWriterSupport implements LogWriter {
     
+    /** {@link LogLevel}毎の出力したログの件数 */
+    private final AtomicLongArray writeCounts = new AtomicLongArray(LogLevel.values().length);
+    
+    /** 出力したログの件数を保持するか否か */
+    private volatile boolean writeCountEnabled;
+    
     /** 設定で指定された{@link LogWriter}の名称 */
     private String name;
     
@@ -48,10 +76,19 @@ public abstract class LogWriterSupport implements LogWriter {
     /** {@link LogFormatter} */
     private LogFormatter formatter = new BasicLogFormatter();
     
+    /** 設定で指定された{@link LogFilter}の名称 */
+    private String[] filterNames = new String[0];
+    
+    /** {@link LogFilter} */
+    private LogFilter[] filters = new LogFilter[0];
+    
+    /** {@link LogFormatter}の生成と初期化に要した時間(ナノ秒) */
+    private long formatterInitializationNanos;
+    
     /**
      * {@inheritDoc}<br>
      * <br>
-     * 設定を使用して{@link LogLevel}と{@link LogFormatter}を初期化する。
+     * 設定を使用して{@link LogLevel}と{@link LogFilter}、{@link LogFormatter}を初期化する。
      */
     public void initialize(ObjectSettings settings) {
         
@@ -63,16 +100,65 @@ public abstract class LogWriterSupport implements LogWriter {
             baseLevelValue = baseLevel.getValue();
         }
         
-        ObjectSettings formatterSettings = new ObjectSettings(settings.getLogSettings(), name + ".formatter");
+        initializeFilters(settings);
+        
+        long formatterStart = System.nanoTime();
+        ObjectSettings formatterSettings = new ObjectSettings(settings.getLogSettings(), name + ".formatter",
+                                                             settings.getSettingsIndex());
         LogFormatter createdFormatter = createLogFormatter(formatterSettings);
         if (createdFormatter != null) {
             formatter = createdFormatter;
         }
         formatter.initialize(formatterSettings);
+        formatterInitializationNanos = System.nanoTime() - formatterStart;
         
         onInitialize(settings);
     }
     
+    /**
+     * {@link LogFormatter}の生成と初期化に要した時間を取得する。
+     * @return {@link LogFormatter}の生成と初期化に要した時間(ナノ秒)
+     */
+    long getFormatterInitializationNanos() {
+        return formatterInitializationNanos;
+    }
+    
+    /**
+     * 設定で指定された全ての{@link LogFilter}の生成と初期化を行う。
+     * @param settings {@link LogWriter}の設定
+     */
+    private void initializeFilters(ObjectSettings settings) {
+        String filtersProp = settings.getProp("filters");
+        if (filtersProp == null || filtersProp.trim().length() == 0) {
+            return;
+        }
+        String[] splitNames = filtersProp.split(",");
+        filterNames = new String[splitNames.length];
+        filters = new LogFilter[splitNames.length];
+        for (int i = 0; i < splitNames.length; i++) {
+            String filterName = splitNames[i].trim();
+            if (filterName.length() == 0) {
+                throw new IllegalArgumentException(
+                    String.format("blank was included in the comma-separated value. file path = [%s], key = [%s]",
+                                  settings.getFilePath(), name + ".filters"));
+            }
+            filterNames[i] = filterName;
+            filters[i] = createLogFilter(new ObjectSettings(settings.getLogSettings(), name + ".filter." + filterName,
+                                                              settings.getSettingsIndex()));
+        }
+    }
+    
+    /**
+     * 設定を使用して{@link LogFilter}を生成する。
+     * @param settings {@link LogFilter}の設定
+     * @return 設定を使用して生成した{@link LogFilter}
+     */
+    protected LogFilter createLogFilter(ObjectSettings settings) {
+        LogFilter filter = ObjectUtil.createInstance(settings.getRequiredProp("className"));
+        filter.initialize(settings);
+        return filter;
+    }
+    
     /**
      * 設定を使用して{@link LogFormatter}を生成する。
      * @param settings {@link LogFormatter}の設定
@@ -114,24 +200,68 @@ public abstract class LogWriterSupport implements LogWriter {
      * フォーマット済みのログを出力先に書き込む。<br>
      * <br>
      * 設定で{@link LogLevel}が指定されている場合は、有効なレベルの場合のみ{@link #onWrite(String)}メソッドを呼び出す。<br>
-     * 有効なレベルのログでない場合は、何も処理しない。
+     * 設定で{@link LogFilter}が指定されている場合は、{@link LogFilter}が出力を許可した場合のみ{@link #onWrite(String)}メソッドを呼び出す。<br>
+     * 出力対象のログでない場合は、フォーマットを含め何も処理しない。
      * 
      * @param context {@link LogContext}
      */
     public void write(LogContext context) {
         if (needsToWrite(context)) {
             onWrite(formatter.format(context));
+            countWrite(context);
+        }
+    }
+    
+    /**
+     * 出力したログの件数を加算する。
+     * <p/>
+     * {@link #enableWriteCount()}が呼び出されていない場合は何もしない。<br>
+     * {@link #write(LogContext)}をオーバーライドする場合は、ログの出力後に本メソッドを呼び出すこと。
+     * @param context 出力したログエントリオブジェクト
+     */
+    protected final void countWrite(LogContext context) {
+        if (writeCountEnabled) {
+            writeCounts.incrementAndGet(context.getLevel().ordinal());
         }
     }
     
+    /**
+     * 出力したログの件数の保持を開始する。
+     * <p/>
+     * 件数を公開する{@link nablarch.core.log.app.PerformanceMetricsExporter}などが呼び出す。
+     */
+    public void enableWriteCount() {
+        writeCountEnabled = true;
+    }
+    
+    /**
+     * 指定された{@link LogLevel}のログを出力した件数を取得する。
+     * @param level {@link LogLevel}
+     * @return {@link #enableWriteCount()}の呼び出し以降に出力したログの件数
+     */
+    public long getWriteCount(LogLevel level) {
+        return writeCounts.get(level.ordinal());
+    }
+    
     /**
      * 現在の設定から、指定されたログエントリを出力するか否かを返す。
+     * <p/>
+     * {@link LogLevel}による判定を行った後、{@link LogFilter}による判定を行う。
      * @param context ログエントリオブジェクト
      * @return ログを出力する場合はtrue
      */
     public boolean needsToWrite(LogContext context) {
-        return (baseLevel == null)
-            || (baseLevelValue >= context.getLevel().getValue());
+        if (baseLevel != null && baseLevelValue < context.getLevel().getValue()) {
+            return false;
+        }
+        for (LogFilter filter : filters) {
+            switch (filter.decide(context)) {
+                case ACCEPT: return true;
+                case DENY: return false;
+                default: break;
+            }
+        }
+        return true;
     }
     
     /**
@@ -148,7 +278,8 @@ public abstract class LogWriterSupport implements LogWriter {
      * WRITER NAME        = [&lt;{@link LogWriter}の名称&gt;]<br>
      * WRITER CLASS       = [&lt;{@link LogWriter}のクラス名&gt;]<br>
      * FORMATTER CLASS    = [&lt;{@link LogFormatter}のクラス名&gt;]<br>
-     * LEVEL              = [&lt;ログの出力制御の基準とする{@link LogLevel}&gt;]
+     * LEVEL              = [&lt;ログの出力制御の基準とする{@link LogLevel}&gt;]<br>
+     * FILTERS            = [&lt;{@link LogFilter}の名称&gt;]
      * 
      * @return 設定情報
      */
@@ -158,6 +289,7 @@ public abstract class LogWriterSupport implements LogWriter {
                     .append("\tWRITER CLASS       = [").append(getClass().getName()).append("]").append(Logger.LS)
                     .append("\tFORMATTER CLASS    = [").append(formatter.getClass().getName()).append("]").append(Logger.LS)
                     .append("\tLEVEL              = [").append(baseLevel == null ? null : baseLevel.name()).append("]").append(Logger.LS)
+                    .append("\tFILTERS            = ").append(Arrays.toString(filterNames)).append(Logger.LS)
                     .toString();
     }
 
@@ -0,0 +1,47 @@
+package nablarch.core.log.basic;
+
+import java.util.Set;
+
+/**
+ * {@link nablarch.core.log.Logger}名のプレフィックスで判定を行う{@link LogFilter}。<br>
+ * <br>
+ * プロパティファイルの記述ルールを下記に示す。
+ * <dl>
+ * <dt>prefixes
+ * <dd>{@link nablarch.core.log.Logger}名のプレフィックス。必須。<br>
+ *     複数指定する場合はカンマ区切り。<br>
+ *     いずれかのプレフィックスで始まる{@link nablarch.core.log.Logger}名を条件に一致するとみなす。
+ * </dl>
+ * 判定結果の設定は{@link LogFilterSupport}のJavadocを参照すること。
+ * 
+ * @author Kiyohito Itoh
+ */
+public class LoggerNameLogFilter extends LogFilterSupport {
+    
+    /** {@link nablarch.core.log.Logger}名のプレフィックス */
+    private String[] prefixes;
+    
+    /**
+     * {@inheritDoc}
+     */
+    protected void onInitialize(ObjectSettings settings) {
+        Set<String> values = getRequiredValues(settings, "prefixes");
+        prefixes = values.toArray(new String[values.size()]);
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    protected boolean matches(LogContext context) {
+        String loggerName = context.getLoggerName();
+        if (loggerName == null) {
+            return false;
+        }
+        for (String prefix : prefixes) {
+            if (loggerName.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,447 @@
+package nablarch.core.log.basic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+/**
+ * 複数プロセスで共有するメモリマップドファイル上のリングバッファ。
+ * <p/>
+ * リングバッファは固定長のスロットで構成し、1件のデータは連続する1つ以上のスロットに格納する。
+ * ファイルのレイアウトを下記に示す。
+ * <pre>
+ * ヘッダ(64バイト)
+ *   0: マジックナンバー(int)
+ *   4: スロット数(int)
+ *   8: スロットサイズ(int)
+ *  16: 次に確保するスロットの位置(long)。このバイト範囲をスロットの確保時のロックに使用する
+ *  24: 次に取り出すスロットの位置(long)
+ *  32: 取り出しを行うプロセスのロックに使用するバイト範囲
+ * スロット(スロットサイズ * スロット数)
+ *   先頭スロットのみヘッダを持つ。
+ *   0: 状態(int)
+ *   4: 使用するスロット数(int)
+ *   8: データ長(int)
+ *  16: 確保した時刻(long)
+ *  24: 確保した位置(long)。確保の識別に使用し、読み飛ばした場合は-1
+ *  32: データ(以降のスロットにまたがって連続して格納する)
+ * </pre>
+ * スロットの確保は、ヘッダの確保位置のバイト範囲のロックを取得し、確保位置を進める間のみ排他制御を行う。
+ * データの書き込みはロックを取得せずに行い、書き込み完了後に状態を確定に変更する。
+ * リングバッファの末尾をまたぐ場合は、末尾までのスロットを埋め草として確保し、先頭から確保する。<br>
+ * データの取り出しは1プロセスのみが行い、確定したデータを確保した順にファイルに書き込む。
+ * 取り出したスロットのヘッダは変更せず、取り出し位置のみを進める。ヘッダは次の確保時に書き換えられる。
+ * 取り出し位置は、取り出したデータを出力ストリームにフラッシュした後に進めるため、
+ * 取り出しを行うプロセスが異常終了しても、取り出し位置より前のデータは出力済みとなる。
+ * フラッシュ後、取り出し位置を進める前に異常終了した場合は、引き継いだプロセスが同じデータを再度出力する。<br>
+ * 確保したまま一定時間確定しないデータは、書き込み中にプロセスが異常終了したものとみなして読み飛ばす。
+ * 状態が不正なスロットも、取り出し側が一定時間待っても変化しない場合は読み飛ばす。
+ * <p/>
+ * 読み飛ばしは、スロットの確保時と同じロックを取得し、確保した位置を-1に書き換えてから行う。
+ * データを書き込むプロセスは、データの書き込み前と確定前に確保した位置が自身の位置と一致するかを確認し、
+ * 一致しない場合は確定しない。ただし、メモリマップドファイル上では比較と更新を不可分に行えないため、
+ * 確認後に一定時間(読み飛ばすまでの時間)以上停止したプロセスは、他のプロセスが確保したスロットを書き換える可能性がある。
+ * 読み飛ばすまでの時間は、GCなどによるプロセスの停止時間より十分に長く設定すること。
+ * <p/>
+ * データの書き込みと状態の確定は、メモリマップドファイルへの通常の書き込みで行い、メモリバリアを使用しない。
+ * そのため、他のスレッドやプロセスからデータより先に確定した状態が見えないことは、
+ * ストアの順序を入れ替えないプロセッサ(x86、x64)のメモリモデルに依存する。
+ * ストアの順序を入れ替えるプロセッサ(ARM、POWERなど)では使用しないこと。
+ * <p/>
+ * 1つのリングバッファファイルは、プロセス毎に1つの{@link MappedRingBuffer}でのみオープンすること。
+ *
+ * @author Kiyohito Itoh
+ */
+final class MappedRingBuffer {
+
+    /** マジックナンバー */
+    private static final int MAGIC = 0x4E425232;
+
+    /** ヘッダのサイズ */
+    private static final int HEADER_SIZE = 64;
+
+    /** スロット数の位置 */
+    private static final int SLOT_COUNT_OFFSET = 4;
+
+    /** スロットサイズの位置 */
+    private static final int SLOT_SIZE_OFFSET = 8;
+
+    /** 初期化時のロックに使用するバイト範囲のサイズ */
+    private static final int INIT_LOCK_SIZE = 16;
+
+    /** 次に確保するスロットの位置の位置 */
+    private static final int TAIL_OFFSET = 16;
+
+    /** 次に取り出すスロットの位置の位置 */
+    private static final int HEAD_OFFSET = 24;
+
+    /** 取り出しを行うプロセスのロックに使用するバイト範囲の位置 */
+    private static final int DRAINER_LOCK_OFFSET = 32;
+
+    /** スロットのヘッダのサイズ */
+    private static final int SLOT_HEADER_SIZE = 32;
+
+    /** スロットのヘッダの確保した時刻の位置 */
+    private static final int CLAIMED_TIME_OFFSET = 16;
+
+    /** スロットのヘッダの確保した位置の位置 */
+    private static final int SEQUENCE_OFFSET = 24;
+
+    /** スロットの状態(確保済み) */
+    private static final int CLAIMED = 1;
+
+    /** スロットの状態(確定) */
+    private static final int COMMITTED = 2;
+
+    /** スロットの状態(埋め草) */
+    private static final int PADDING = 3;
+
+    /** スロットサイズの最小値 */
+    static final int MIN_SLOT_SIZE = 64;
+
+    /** スロット数の最小値 */
+    static final int MIN_SLOT_COUNT = 2;
+
+    /** リングバッファファイル */
+    private final RandomAccessFile file;
+
+    /** リングバッファファイルのチャネル */
+    private final FileChannel channel;
+
+    /** リングバッファファイルをマップしたバッファ */
+    private final MappedByteBuffer buffer;
+
+    /** スロット数 */
+    private final int slotCount;
+
+    /** スロットサイズ */
+    private final int slotSize;
+
+    /** 1件のデータが使用できるスロット数の上限 */
+    private final int maxSlotsPerRecord;
+
+    /** スロットの確保時のプロセス内の排他制御に使用するオブジェクト */
+    private final Object claimMonitor = new Object();
+
+    /** 取り出しを行うプロセスのロック。取り出しを行わない場合はnull */
+    private FileLock drainerLock;
+
+    /** 状態が不正なスロットを検出した取り出し位置。検出していない場合は-1 */
+    private long invalidPosition = -1;
+
+    /** 状態が不正なスロットを検出した時刻 */
+    private long invalidSince;
+
+    /**
+     * リングバッファファイルをオープンする。
+     * <p/>
+     * リングバッファファイルが初期化されていない場合は、指定されたスロット数とスロットサイズで初期化する。
+     * 初期化済みの場合は、ファイルのスロット数とスロットサイズを使用する。
+     * 初期化済みのファイルと異なるスロット数またはスロットサイズが指定された場合は例外を送出する。
+     * @param path リングバッファファイルのパス
+     * @param slotCount スロット数。初期化済みのファイルを使用する場合は0
+     * @param slotSize スロットサイズ。初期化済みのファイルを使用する場合は0
+     * @throws IOException IO例外
+     */
+    MappedRingBuffer(File path, int slotCount, int slotSize) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        try {
+            channel = file.getChannel();
+            FileLock initLock = channel.lock(0, INIT_LOCK_SIZE, false);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(INIT_LOCK_SIZE);
+                channel.read(header, 0);
+                header.flip();
+                if (header.remaining() == INIT_LOCK_SIZE && header.getInt(0) == MAGIC) {
+                    int existingCount = header.getInt(SLOT_COUNT_OFFSET);
+                    int existingSize = header.getInt(SLOT_SIZE_OFFSET);
+                    if ((slotCount != 0 && slotCount != existingCount) || (slotSize != 0 && slotSize != existingSize)) {
+                        throw new IllegalStateException(String.format(
+                            "ring buffer file was initialized with different settings. file = [%s], "
+                            + "slotCount = [%s], slotSize = [%s]", path.getAbsolutePath(), existingCount, existingSize));
+                    }
+                    slotCount = existingCount;
+                    slotSize = existingSize;
+                } else {
+                    if (slotCount == 0 || slotSize == 0) {
+                        throw new IllegalStateException(
+                            "ring buffer file was not initialized. file = [" + path.getAbsolutePath() + "]");
+                    }
+                    file.setLength(HEADER_SIZE + (long) slotCount * slotSize);
+                    ByteBuffer init = ByteBuffer.allocate(HEADER_SIZE);
+                    init.putInt(0, MAGIC).putInt(SLOT_COUNT_OFFSET, slotCount).putInt(SLOT_SIZE_OFFSET, slotSize);
+                    channel.write(init, 0);
+                    channel.force(true);
+                }
+            } finally {
+                initLock.release();
+            }
+            this.slotCount = slotCount;
+            this.slotSize = slotSize;
+            maxSlotsPerRecord = slotCount / 2;
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slotCount * slotSize);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        } catch (RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * スロット数を取得する。
+     * @return スロット数
+     */
+    int getSlotCount() {
+        return slotCount;
+    }
+
+    /**
+     * スロットサイズを取得する。
+     * @return スロットサイズ
+     */
+    int getSlotSize() {
+        return slotSize;
+    }
+
+    /**
+     * データをリングバッファに格納する。
+     * <p/>
+     * 1件のデータが使用できるスロット数(スロット数の半分)に収まらないデータは、収まる長さに切り詰める。<br>
+     * 書き込み中に取り出し側に読み飛ばされた場合は、データを確定せずにfalseを返す。<br>
+     * 状態の確定はデータの書き込み後に通常の書き込みで行うため、x86、x64のストアの順序に依存する(クラスのドキュメント参照)。
+     * @param data データ
+     * @return 格納した場合はtrue。空きスロットが不足している場合、または読み飛ばされた場合はfalse
+     * @throws IOException スロットの確保時のロックの取得に失敗した場合
+     */
+    boolean offer(byte[] data) throws IOException {
+        int length = Math.min(data.length, maxSlotsPerRecord * slotSize - SLOT_HEADER_SIZE);
+        int slots = (SLOT_HEADER_SIZE + length + slotSize - 1) / slotSize;
+        long position = claim(slots, length);
+        if (position < 0) {
+            return false;
+        }
+        int offset = getSlotOffset(position);
+        if (buffer.getLong(offset + SEQUENCE_OFFSET) != position) {
+            return false;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + SLOT_HEADER_SIZE);
+        view.put(data, 0, length);
+        if (buffer.getLong(offset + SEQUENCE_OFFSET) != position) {
+            return false;
+        }
+        buffer.putInt(offset, COMMITTED);
+        return true;
+    }
+
+    /**
+     * スロットを確保する。
+     * <p/>
+     * 確保したスロットのヘッダは、確保位置を進める前に書き込む。
+     * これにより、確保位置を進めた後に異常終了した場合でも、取り出し側が確保したスロット数を把握できる。
+     * @param slots 確保するスロット数
+     * @param length データ長
+     * @return 確保した先頭スロットの位置。空きスロットが不足している場合は-1
+     * @throws IOException ロックの取得に失敗した場合
+     */
+    private long claim(int slots, int length) throws IOException {
+        synchronized (claimMonitor) {
+            FileLock lock = channel.lock(TAIL_OFFSET, 8, false);
+            try {
+                long tail = buffer.getLong(TAIL_OFFSET);
+                long head = buffer.getLong(HEAD_OFFSET);
+                int index = (int) (tail % slotCount);
+                int padding = index + slots > slotCount ? slotCount - index : 0;
+                if (tail + padding + slots - head > slotCount) {
+                    return -1;
+                }
+                long now = System.currentTimeMillis();
+                if (padding > 0) {
+                    writeSlotHeader(tail, PADDING, padding, 0, now, tail);
+                }
+                long position = tail + padding;
+                writeSlotHeader(position, CLAIMED, slots, length, now, position);
+                buffer.putLong(TAIL_OFFSET, position + slots);
+                return position;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * スロットのヘッダを書き込む。
+     * @param position スロットの位置
+     * @param state 状態
+     * @param slots 使用するスロット数
+     * @param length データ長
+     * @param time 確保した時刻
+     * @param sequence 確保した位置
+     */
+    private void writeSlotHeader(long position, int state, int slots, int length, long time, long sequence) {
+        int offset = getSlotOffset(position);
+        buffer.putInt(offset + 4, slots);
+        buffer.putInt(offset + 8, length);
+        buffer.putLong(offset + CLAIMED_TIME_OFFSET, time);
+        buffer.putLong(offset + SEQUENCE_OFFSET, sequence);
+        buffer.putInt(offset, state);
+    }
+
+    /**
+     * スロットの位置に対応するファイル上の位置を取得する。
+     * @param position スロットの位置
+     * @return ファイル上の位置
+     */
+    private int getSlotOffset(long position) {
+        return HEADER_SIZE + (int) (position % slotCount) * slotSize;
+    }
+
+    /**
+     * 取り出しを行うプロセスのロックの取得を試みる。
+     * @return 取得できた場合はtrue。他のプロセスが取り出しを行っている場合はfalse
+     * @throws IOException IO例外
+     */
+    boolean tryLockDrainer() throws IOException {
+        if (drainerLock == null) {
+            drainerLock = channel.tryLock(DRAINER_LOCK_OFFSET, 8, false);
+        }
+        return drainerLock != null;
+    }
+
+    /**
+     * 確定したデータを確保した順に取り出し、出力ストリームに書き込む。
+     * <p/>
+     * 確保済みで未確定のデータに到達した場合は取り出しを終了する。
+     * ただし、確保してから指定された時間を過ぎても確定しないデータと、
+     * 状態が不正なまま指定された時間を過ぎたスロットは、読み飛ばして取り出しを続ける。<br>
+     * 取り出し位置は、取り出したデータを出力ストリームにフラッシュした後に、1回の呼び出しでまとめて進める。
+     * これにより、出力ストリームのバッファに残ったまま異常終了した場合でも、取り出し位置が進んでいないため、
+     * 引き継いだプロセスがデータを再度出力する。<br>
+     * 出力ストリームへの書き込みに失敗した場合は、取り出し位置を進めない。
+     * @param out 出力ストリーム
+     * @param staleTimeout 未確定のデータを読み飛ばすまでの時間(ミリ秒)
+     * @return 取り出したデータと読み飛ばしたデータの件数。添字0が取り出した件数、添字1が読み飛ばした件数
+     * @throws IOException 出力ストリームへの書き込み、または読み飛ばし時のロックの取得に失敗した場合
+     */
+    long[] drainTo(OutputStream out, long staleTimeout) throws IOException {
+        long drained = 0;
+        long skipped = 0;
+        long head = buffer.getLong(HEAD_OFFSET);
+        long tail = buffer.getLong(TAIL_OFFSET);
+        byte[] data = null;
+        while (head < tail) {
+            int offset = getSlotOffset(head);
+            int state = buffer.getInt(offset);
+            int slots = buffer.getInt(offset + 4);
+            boolean valid = buffer.getLong(offset + SEQUENCE_OFFSET) == head && slots >= 1 && slots <= tail - head;
+            if (valid && state == COMMITTED) {
+                int length = buffer.getInt(offset + 8);
+                if (data == null || data.length < length) {
+                    data = new byte[Math.max(length, slotSize)];
+                }
+                ByteBuffer view = buffer.duplicate();
+                view.position(offset + SLOT_HEADER_SIZE);
+                view.get(data, 0, length);
+                out.write(data, 0, length);
+                drained++;
+            } else if (!(valid && state == PADDING)) {
+                long now = System.currentTimeMillis();
+                long since;
+                if (valid && state == CLAIMED) {
+                    since = buffer.getLong(offset + CLAIMED_TIME_OFFSET);
+                } else {
+                    if (invalidPosition != head) {
+                        invalidPosition = head;
+                        invalidSince = now;
+                    }
+                    since = invalidSince;
+                }
+                if (now - since < staleTimeout) {
+                    break;
+                }
+                slots = abandon(head, valid ? slots : (int) (tail - head));
+                if (slots == 0) {
+                    // 読み飛ばしの確認中に確定した場合は、再度取り出す。
+                    continue;
+                }
+                skipped++;
+            }
+            head += slots;
+        }
+        if (head != buffer.getLong(HEAD_OFFSET)) {
+            out.flush();
+            buffer.putLong(HEAD_OFFSET, head);
+        }
+        return new long[] {drained, skipped};
+    }
+
+    /**
+     * スロットを読み飛ばすため、確保した位置を-1に書き換える。
+     * <p/>
+     * スロットの確保時と同じロックを取得し、確定していないことを再確認してから書き換える。
+     * @param position 読み飛ばすスロットの位置
+     * @param slots 読み飛ばすスロット数
+     * @return 読み飛ばすスロット数。確認中に確定した場合は0
+     * @throws IOException ロックの取得に失敗した場合
+     */
+    private int abandon(long position, int slots) throws IOException {
+        synchronized (claimMonitor) {
+            FileLock lock = channel.lock(TAIL_OFFSET, 8, false);
+            try {
+                int offset = getSlotOffset(position);
+                if (buffer.getInt(offset) == COMMITTED && buffer.getLong(offset + SEQUENCE_OFFSET) == position) {
+                    return 0;
+                }
+                buffer.putLong(offset + SEQUENCE_OFFSET, -1);
+                invalidPosition = -1;
+                return slots;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * 取り出しを行うプロセスのロックを解放する。
+     * @throws IOException IO例外
+     */
+    void releaseDrainer() throws IOException {
+        if (drainerLock != null) {
+            try {
+                drainerLock.release();
+            } finally {
+                drainerLock = null;
+            }
+        }
+    }
+
+    /**
+     * 格納済みで取り出していないスロット数を取得する。
+     * @return スロット数
+     */
+    long getUsedSlots() {
+        return buffer.getLong(TAIL_OFFSET) - buffer.getLong(HEAD_OFFSET);
+    }
+
+    /**
+     * リングバッファファイルをクローズする。
+     * <p/>
+     * マップしたバッファへの変更をファイルに反映し、取り出しを行うプロセスのロックを解放する。
+     * @throws IOException IO例外
+     */
+    void close() throws IOException {
+        try {
+            buffer.force();
+            releaseDrainer();
+        } finally {
+            file.close();
+        }
+    }
+}
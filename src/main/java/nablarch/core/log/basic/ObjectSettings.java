@@ -22,16 +22,38 @@ public class ObjectSettings {
     /** オブジェクトに対する設定 */
     private Map<String, String> props;
     
+    /** 設定の索引。索引を使用しない場合はnull */
+    private SettingsIndex index;
+    
     /**
      * コンストラクタ。
      * @param settings ログ出力の設定
      * @param name プロパティファイル内で指定されるオブジェクトの名称
      */
     public ObjectSettings(LogSettings settings, String name) {
+        this(settings, name, null);
+    }
+    
+    /**
+     * 設定の索引を使用するコンストラクタ。
+     * @param settings ログ出力の設定
+     * @param name プロパティファイル内で指定されるオブジェクトの名称
+     * @param index 設定の索引。索引を使用しない場合はnull
+     */
+    ObjectSettings(LogSettings settings, String name, SettingsIndex index) {
         this.settings = settings;
         this.name = name;
+        this.index = index;
         props = getSettingsByPrefix(settings, name + ".");
     }
+    
+    /**
+     * 設定の索引を取得する。
+     * @return 設定の索引。索引を使用しない場合はnull
+     */
+    SettingsIndex getSettingsIndex() {
+        return index;
+    }
 
     /**
      * ログ出力の設定を取得する。
@@ -67,13 +89,20 @@ public class ObjectSettings {
     
     /**
      * 指定されたプレフィックスにマッチする設定を取得する。
+     * <p/>
+     * {@link BasicLoggerFactory}の初期処理で生成された場合は、設定の索引のプレフィックスに対応する部分木から取得する。
+     * それ以外の場合は、全ての設定を走査して取得する。
      * @param settings ログ出力の設定
      * @param prefix プレフィックス
      * @return プレフィックスにマッチする設定
      */
     protected Map<String, String> getSettingsByPrefix(LogSettings settings, String prefix) {
+        Map<String, String> allProps = settings.getProps();
+        if (index != null && index.isIndexOf(allProps)) {
+            return index.getByPrefix(prefix);
+        }
         Map<String, String> settingsForPrefix = new HashMap<String, String>();
-        for (Map.Entry<String, String> prop : settings.getProps().entrySet()) {
+        for (Map.Entry<String, String> prop : allProps.entrySet()) {
             if (prop.getKey().startsWith(prefix)) {
                 settingsForPrefix.put(prop.getKey(), prop.getValue());
             }
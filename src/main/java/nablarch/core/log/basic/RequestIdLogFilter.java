@@ -0,0 +1,38 @@
+package nablarch.core.log.basic;
+
+import java.util.Set;
+
+/**
+ * リクエストIDで判定を行う{@link LogFilter}。<br>
+ * <br>
+ * プロパティファイルの記述ルールを下記に示す。
+ * <dl>
+ * <dt>requestIds
+ * <dd>リクエストID。必須。<br>
+ *     複数指定する場合はカンマ区切り。<br>
+ *     いずれかのリクエストIDと一致するログを条件に一致するとみなす。
+ * </dl>
+ * 判定結果の設定は{@link LogFilterSupport}のJavadocを参照すること。
+ * 
+ * @author Kiyohito Itoh
+ */
+public class RequestIdLogFilter extends LogFilterSupport {
+    
+    /** リクエストID */
+    private Set<String> requestIds;
+    
+    /**
+     * {@inheritDoc}
+     */
+    protected void onInitialize(ObjectSettings settings) {
+        requestIds = getRequiredValues(settings, "requestIds");
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    protected boolean matches(LogContext context) {
+        String requestId = context.getRequestId();
+        return requestId != null && requestIds.contains(requestId);
+    }
+}
@@ -0,0 +1,450 @@
+package nablarch.core.log.basic;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nablarch.core.log.Logger;
+import nablarch.core.util.StringUtil;
+
+/**
+ * 複数プロセスで共有するメモリマップドファイル上のリングバッファを経由して、ファイルにログを書き込むクラス。
+ * <p>
+ * 同一サーバ上の複数プロセスから同一のファイルにログを出力する場合に、
+ * {@link SynchronousFileLogWriter}のロックファイルによる排他制御の代わりに使用する。<br/>
+ * ログを出力したスレッドは、リングバッファのスロットを確保し、エンコード済みのログをメモリにコピーするのみで、
+ * ファイルへの書き込みは行わない。スロットの確保時のみ、リングバッファファイルのバイト範囲のロックを取得する。
+ * ロックを保持するのは確保位置を進める間のみで、ログのコピー中は保持しない。<br/>
+ * ファイルへの書き込みは、リングバッファを共有するプロセスのうち1プロセスの取り出し用のスレッドのみが行い、
+ * スロットを確保した順に書き込む。取り出しを行うプロセスが終了した場合は、他のプロセスが取り出しを引き継ぐ。
+ * 取り出しは、{@link #main(String[])}を使用して独立したプロセスで行うこともできる。
+ * </p>
+ * <p>
+ * ログのコピー中にプロセスが異常終了した場合、確保したスロットは確定しないまま残る。
+ * 取り出し用のスレッドは、確保してから一定時間(staleTimeout)を過ぎても確定しないスロットを読み飛ばすため、
+ * 異常終了したプロセスのログ以外は失われない。
+ * 取り出し用のスレッドは、取り出したログをファイルに書き込んでから取り出し位置を進めるため、
+ * 取り出しを行うプロセスが異常終了した場合も、ログは失われず、引き継いだプロセスが再度書き込む。
+ * そのため、異常終了の直前に書き込んだログが重複して出力される場合がある。<br/>
+ * ファイルへの書き込みに失敗した場合、取り出し用のスレッドは標準エラーに出力した上でロックを解放し、
+ * 一定時間後に取り出しを再開する。その間は他のプロセスが取り出しを引き継ぐことができる。<br/>
+ * リングバッファに空きがない場合はログを破棄し、次にログを格納できた際に、破棄した件数をWARNレベルのログとして格納する。
+ * </p>
+ * <p>
+ * リングバッファへの格納はメモリバリアを使用しないため、x86、x64のプロセッサでのみ使用できる。
+ * 詳細は{@link MappedRingBuffer}を参照。
+ * </p>
+ * プロパティファイルの記述ルールを下記に示す。<br>
+ * <dl>
+ * <dt>filePath
+ * <dd>書き込み先のファイルパス。必須。<br>
+ *
+ * <dt>ringFilePath
+ * <dd>リングバッファファイルのパス。必須。<br>
+ *     同一のファイルに書き込むプロセス間で同じパスを指定する。
+ *
+ * <dt>encoding
+ * <dd>書き込み時に使用する文字エンコーディング。オプション。<br>
+ *     指定しなければシステムプロパティ(file.encoding)から取得した文字エンコーディング。
+ *
+ * <dt>slotCount
+ * <dd>リングバッファのスロット数。オプション。<br>
+ *     2以上を指定する。指定しなければ8192。
+ *     リングバッファファイルの初期化時のみ使用し、同一のリングバッファファイルを使用するプロセス間で同じ値を指定する。
+ *
+ * <dt>slotSize
+ * <dd>リングバッファのスロットサイズ。オプション。<br>
+ *     単位はバイト。64以上の8の倍数を指定する。指定しなければ512バイト。
+ *     リングバッファファイルの初期化時のみ使用し、同一のリングバッファファイルを使用するプロセス間で同じ値を指定する。
+ *     スロット数の半分のスロットに収まらないログは切り詰める。
+ *
+ * <dt>drain
+ * <dd>このプロセスで取り出しを行うか否か。オプション。<br>
+ *     指定しなければtrue。取り出しを独立したプロセスで行う場合はfalseを指定する。
+ *
+ * <dt>drainInterval
+ * <dd>取り出すログがない場合に待機する時間(ミリ秒)。オプション。<br>
+ *     1以上を指定する。指定しなければ10ミリ秒。
+ *
+ * <dt>staleTimeout
+ * <dd>確定しないスロットを読み飛ばすまでの時間(ミリ秒)。オプション。<br>
+ *     1以上を指定する。指定しなければ10000ミリ秒。
+ *     GCやスワップによりプロセスがこの時間以上停止すると、停止していたプロセスが
+ *     読み飛ばされたスロットを再確保した他のプロセスのログを書き換える可能性があるため、
+ *     想定される停止時間より十分に長い時間を指定する。
+ * </dl>
+ * 本クラスでは、初期処理と終了処理時に、リングバッファにINFOレベルでメッセージを出力する。
+ *
+ * @author Kiyohito Itoh
+ */
+public class RingBufferLogWriter extends LogWriterSupport {
+
+    /** FQCN */
+    private static final String FQCN = RingBufferLogWriter.class.getName();
+
+    /** スロット数のデフォルト値 */
+    private static final long DEFAULT_SLOT_COUNT = 8192;
+
+    /** スロットサイズのデフォルト値 */
+    private static final long DEFAULT_SLOT_SIZE = 512;
+
+    /** 取り出すログがない場合に待機する時間(ミリ秒)のデフォルト値 */
+    private static final long DEFAULT_DRAIN_INTERVAL = 10;
+
+    /**
+     * 確定しないスロットを読み飛ばすまでの時間(ミリ秒)のデフォルト値。
+     * <p/>
+     * この時間以上停止したプロセスは、他のプロセスが確保したスロットを書き換える可能性がある({@link MappedRingBuffer}参照)。
+     */
+    private static final long DEFAULT_STALE_TIMEOUT = 10000;
+
+    /** ファイルへの書き込みに失敗した場合の再試行の間隔(ミリ秒) */
+    private static final long RETRY_INTERVAL = 1000;
+
+    /** 書き込み先のファイルパス */
+    private String filePath;
+
+    /** リングバッファファイルのパス */
+    private String ringFilePath;
+
+    /** 書き込み時に使用する文字エンコーディング */
+    private Charset charset;
+
+    /** このプロセスで取り出しを行うか否か */
+    private boolean drain;
+
+    /** 取り出すログがない場合に待機する時間(ミリ秒) */
+    private long drainInterval;
+
+    /** 確定しないスロットを読み飛ばすまでの時間(ミリ秒) */
+    private long staleTimeout;
+
+    /** リングバッファ */
+    private MappedRingBuffer ringBuffer;
+
+    /** リングバッファに空きがないため破棄したログの件数(未報告分) */
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /** 取り出し用のスレッド */
+    private Drainer drainer;
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * プロパティファイルで指定された設定情報を取得し、リングバッファファイルをオープンする。
+     * 取り出しを行う場合は、取り出し用のスレッドを開始する。<br>
+     * 初期処理完了後、INFOレベルで設定情報を出力する。
+     */
+    @Override
+    protected void onInitialize(ObjectSettings settings) {
+
+        filePath = settings.getRequiredProp("filePath");
+        ringFilePath = settings.getRequiredProp("ringFilePath");
+
+        String encoding = settings.getProp("encoding");
+        if (encoding == null) {
+            encoding = System.getProperty("file.encoding");
+        }
+        charset = Charset.forName(encoding);
+
+        int slotCount = (int) getLongProp(settings, "slotCount", DEFAULT_SLOT_COUNT, MappedRingBuffer.MIN_SLOT_COUNT);
+        int slotSize = (int) getLongProp(settings, "slotSize", DEFAULT_SLOT_SIZE, MappedRingBuffer.MIN_SLOT_SIZE);
+        if (slotSize % 8 != 0) {
+            throw new IllegalArgumentException(
+                "invalid property was specified. 'slotSize' must be a multiple of 8. value=[" + slotSize + "].");
+        }
+        drain = !"false".equals(settings.getProp("drain"));
+        drainInterval = getLongProp(settings, "drainInterval", DEFAULT_DRAIN_INTERVAL, 1);
+        staleTimeout = getLongProp(settings, "staleTimeout", DEFAULT_STALE_TIMEOUT, 1);
+
+        try {
+            ringBuffer = new MappedRingBuffer(new File(ringFilePath), slotCount, slotSize);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(
+                "failed to open ring buffer file. file name = [" + ringFilePath + "]", e);
+        }
+        if (drain) {
+            drainer = new Drainer(ringBuffer, new File(filePath), drainInterval, staleTimeout);
+            drainer.setName(FQCN + "-" + getName());
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+        writeInfo("initialized." + Logger.LS + getSettings());
+    }
+
+    /**
+     * 数値のプロパティを取得する。
+     * @param settings {@link LogWriter}の設定
+     * @param propName プロパティ名
+     * @param defaultValue 指定がない場合のデフォルト値
+     * @param min 最小値
+     * @return プロパティの値
+     */
+    private static long getLongProp(ObjectSettings settings, String propName, long defaultValue, long min) {
+        String value = settings.getProp(propName);
+        if (value == null) {
+            return defaultValue;
+        }
+        long number;
+        try {
+            number = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                "invalid property was specified. '" + propName + "' must be able to convert to Long. value=[" + value + "].", e);
+        }
+        if (number < min || number > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                "invalid property was specified. '" + propName + "' must be " + min + " or more. value=[" + value + "].");
+        }
+        return number;
+    }
+
+    /**
+     * 設定情報を取得する。<br>
+     * <br>
+     * 設定情報のフォーマットを下記に示す。<br>
+     * <br>
+     * WRITER NAME        = [&lt;{@link LogWriter}の名称&gt;]<br>
+     * WRITER CLASS       = [&lt;{@link LogWriter}のクラス名&gt;]<br>
+     * FORMATTER CLASS    = [&lt;{@link LogFormatter}のクラス名&gt;]<br>
+     * LEVEL              = [&lt;ログの出力制御の基準とする{@link LogLevel}&gt;]<br>
+     * FILTERS            = [&lt;{@link LogFilter}の名称&gt;]<br>
+     * FILE PATH          = [&lt;書き込み先のファイルパス&gt;]<br>
+     * RING FILE PATH     = [&lt;リングバッファファイルのパス&gt;]<br>
+     * ENCODING           = [&lt;書き込み時に使用する文字エンコーディング&gt;]<br>
+     * SLOT COUNT         = [&lt;リングバッファのスロット数&gt;]<br>
+     * SLOT SIZE          = [&lt;リングバッファのスロットサイズ&gt;]<br>
+     * DRAIN              = [&lt;このプロセスで取り出しを行うか否か&gt;]<br>
+     *
+     * @return 設定情報
+     * @see LogWriterSupport#getSettings()
+     */
+    @Override
+    protected String getSettings() {
+        return new StringBuilder(512)
+                .append(super.getSettings())
+                .append("\tFILE PATH          = [").append(filePath).append("]").append(Logger.LS)
+                .append("\tRING FILE PATH     = [").append(ringFilePath).append("]").append(Logger.LS)
+                .append("\tENCODING           = [").append(charset.displayName()).append("]").append(Logger.LS)
+                .append("\tSLOT COUNT         = [").append(ringBuffer.getSlotCount()).append("]").append(Logger.LS)
+                .append("\tSLOT SIZE          = [").append(ringBuffer.getSlotSize()).append("]").append(Logger.LS)
+                .append("\tDRAIN              = [").append(drain).append("]").append(Logger.LS)
+                .toString();
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * <br>
+     * INFOレベルで終了メッセージを出力した後、取り出し用のスレッドを終了し、リングバッファファイルをクローズする。
+     * 取り出し用のスレッドは、終了前にリングバッファに残っているログを書き込む。
+     */
+    @Override
+    protected void onTerminate() {
+        writeInfo("terminated.");
+        try {
+            if (drainer != null) {
+                drainer.terminate();
+            }
+        } finally {
+            try {
+                ringBuffer.close();
+            } catch (IOException e) {
+                throw new IllegalStateException("termination failed. ring file name = [" + ringFilePath + "]", e);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * <br>
+     * エンコード済みのログをリングバッファに格納する。
+     * リングバッファに空きがない場合は、ログを破棄する。<br>
+     * <br>
+     * IO例外が発生した場合は、IO例外をラップして{@link IllegalStateException}を送出する。
+     */
+    @Override
+    protected void onWrite(String formattedMessage) {
+        try {
+            long dropped = droppedCount.getAndSet(0);
+            if (dropped > 0 && !ringBuffer.offer(StringUtil.getBytes(getFormatter().format(new LogContext(
+                    FQCN, LogLevel.WARN, dropped + " records were dropped because the ring buffer was full.", null)), charset))) {
+                droppedCount.addAndGet(dropped + 1);
+                return;
+            }
+            if (!ringBuffer.offer(StringUtil.getBytes(formattedMessage, charset))) {
+                droppedCount.incrementAndGet();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to write. ring file name = [" + ringFilePath + "]", e);
+        }
+    }
+
+    /**
+     * リングバッファに空きがないため破棄し、まだ報告していないログの件数を取得する。
+     * @return 破棄したログの件数
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * INFOレベルのメッセージを書き込む。
+     * @param message メッセージ
+     */
+    private void writeInfo(String message) {
+        LogContext context = new LogContext(FQCN, LogLevel.INFO, message, null);
+        if (needsToWrite(context)) {
+            onWrite(getFormatter().format(context));
+        }
+    }
+
+    /**
+     * リングバッファからログを取り出し、ファイルに書き込むスレッド。
+     * <p/>
+     * 他のプロセスが取り出しを行っている場合は、そのプロセスが終了するまで待機する。
+     *
+     * @author Kiyohito Itoh
+     */
+    private static final class Drainer extends Thread {
+
+        /** リングバッファ */
+        private final MappedRingBuffer ringBuffer;
+
+        /** 書き込み先のファイル */
+        private final File file;
+
+        /** 取り出すログがない場合に待機する時間(ミリ秒) */
+        private final long drainInterval;
+
+        /** 確定しないスロットを読み飛ばすまでの時間(ミリ秒) */
+        private final long staleTimeout;
+
+        /** 終了処理中か否か */
+        private volatile boolean terminating;
+
+        /**
+         * コンストラクタ。
+         * @param ringBuffer リングバッファ
+         * @param file 書き込み先のファイル
+         * @param drainInterval 取り出すログがない場合に待機する時間(ミリ秒)
+         * @param staleTimeout 確定しないスロットを読み飛ばすまでの時間(ミリ秒)
+         */
+        private Drainer(MappedRingBuffer ringBuffer, File file, long drainInterval, long staleTimeout) {
+            this.ringBuffer = ringBuffer;
+            this.file = file;
+            this.drainInterval = drainInterval;
+            this.staleTimeout = staleTimeout;
+        }
+
+        /**
+         * 取り出しを行うプロセスのロックを取得できるまで待機した後、終了処理が開始されるまで取り出しを繰り返す。
+         * 終了処理の開始後は、リングバッファに残っているログを書き込んでから終了する。
+         * <p/>
+         * ファイルへの書き込みに失敗した場合は、標準エラーにスタックトレースを出力し、
+         * 他のプロセスが取り出しを引き継げるよう取り出しを行うプロセスのロックを解放する。
+         * その後、再試行の間隔を空けてロックの取得からやり直す。
+         */
+        @Override
+        public void run() {
+            try {
+                while (!terminating) {
+                    if (!ringBuffer.tryLockDrainer()) {
+                        Thread.sleep(drainInterval);
+                        continue;
+                    }
+                    try {
+                        drain();
+                    } catch (IOException e) {
+                        System.err.println("failed to drain ring buffer. file name = [" + file.getAbsolutePath() + "]");
+                        e.printStackTrace(System.err);
+                        releaseDrainer();
+                        Thread.sleep(RETRY_INTERVAL);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            } catch (InterruptedException e) {
+                // 終了処理による割り込みのため、取り出しを終了する。
+            } finally {
+                releaseDrainer();
+            }
+        }
+
+        /**
+         * 終了処理が開始されるまで取り出しを繰り返し、終了処理の開始後にリングバッファに残っているログを書き込む。
+         * @throws IOException ファイルへの書き込みに失敗した場合
+         * @throws InterruptedException 待機中に割り込みが発生した場合
+         */
+        private void drain() throws IOException, InterruptedException {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file, true));
+            try {
+                while (!terminating) {
+                    if (ringBuffer.drainTo(out, staleTimeout)[0] == 0) {
+                        Thread.sleep(drainInterval);
+                    }
+                }
+                ringBuffer.drainTo(out, staleTimeout);
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * 取り出しを行うプロセスのロックを解放する。解放に失敗した場合は標準エラーにスタックトレースを出力する。
+         */
+        private void releaseDrainer() {
+            try {
+                ringBuffer.releaseDrainer();
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+        }
+
+        /**
+         * 取り出しを終了し、スレッドの終了を待つ。
+         */
+        private void terminate() {
+            terminating = true;
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * リングバッファからログを取り出し、ファイルに書き込む。
+     * <p/>
+     * 取り出しを独立したプロセスで行う場合に使用する。プロセスが終了されるまで取り出しを繰り返す。
+     * 引数には、初期化済みのリングバッファファイルのパスと書き込み先のファイルパスを指定する。<br>
+     * プロセスの終了時(SIGTERMなど)は、シャットダウンフックで取り出し用のスレッドを終了し、
+     * リングバッファに残っているログを書き込んでからリングバッファファイルをクローズする。
+     * @param args リングバッファファイルのパス、書き込み先のファイルパス
+     * @throws IOException リングバッファファイルのオープンに失敗した場合
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("usage: RingBufferLogWriter <ring file path> <file path>");
+        }
+        final MappedRingBuffer ringBuffer = new MappedRingBuffer(new File(args[0]), 0, 0);
+        final Drainer drainer = new Drainer(ringBuffer, new File(args[1]), DEFAULT_DRAIN_INTERVAL, DEFAULT_STALE_TIMEOUT);
+        drainer.setName(FQCN + "-main");
+        Runtime.getRuntime().addShutdownHook(new Thread(FQCN + "-shutdown") {
+            @Override
+            public void run() {
+                drainer.terminate();
+                try {
+                    ringBuffer.close();
+                } catch (IOException e) {
+                    e.printStackTrace(System.err);
+                }
+            }
+        });
+        drainer.start();
+    }
+}
@@ -0,0 +1,177 @@
+package nablarch.core.log.basic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ログ出力の設定をキーの"."区切りのセグメント毎の木構造で保持するクラス。
+ * <p/>
+ * 設定を一度だけ木構造に格納し、プレフィックスにマッチする設定を部分木の取得で返す。
+ * これにより、{@link ObjectSettings}の生成毎に全ての設定を走査する必要がなくなる。<br>
+ * 索引は{@link BasicLoggerFactory}の初期処理毎に生成し、初期処理で生成する{@link ObjectSettings}に明示的に引き渡す。
+ * 索引を静的に保持しないため、初期処理の完了後に設定が保持され続けることはない。
+ *
+ * @author Kiyohito Itoh
+ */
+final class SettingsIndex {
+
+    /** 索引の元となった設定 */
+    private final Map<String, String> source;
+
+    /** ルートノード */
+    private final Node root = new Node();
+
+    /**
+     * 設定の索引を作成する。
+     * @param source 設定
+     */
+    SettingsIndex(Map<String, String> source) {
+        this.source = source;
+        for (Map.Entry<String, String> entry : source.entrySet()) {
+            Node node = root;
+            for (String segment : split(entry.getKey())) {
+                node = node.getOrAddChild(segment);
+            }
+            node.key = entry.getKey();
+            node.value = entry.getValue();
+        }
+    }
+
+    /**
+     * 指定された設定から作成した索引であるかを判定する。
+     * @param props 設定
+     * @return 指定された設定から作成した索引の場合はtrue
+     */
+    boolean isIndexOf(Map<String, String> props) {
+        return source == props;
+    }
+
+    /**
+     * 指定されたプレフィックスにマッチする設定を取得する。
+     * <p/>
+     * プレフィックスが"."で終わらない場合は、全ての設定を走査して取得する。
+     * @param prefix プレフィックス
+     * @return プレフィックスにマッチする設定
+     */
+    Map<String, String> getByPrefix(String prefix) {
+        Map<String, String> result = new HashMap<String, String>();
+        if (!prefix.endsWith(".")) {
+            for (Map.Entry<String, String> entry : source.entrySet()) {
+                if (entry.getKey().startsWith(prefix)) {
+                    result.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return result;
+        }
+        Node node = find(prefix.substring(0, prefix.length() - 1));
+        if (node != null && node.children != null) {
+            for (Node child : node.children.values()) {
+                child.collect(result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 指定された名称の直下のセグメントを取得する。
+     * <p/>
+     * 例えば、名称が"loggers"の場合、"loggers.ROO.level"と"loggers.SQL.level"から"ROO"と"SQL"を返す。
+     * @param name 名称
+     * @return 直下のセグメント
+     */
+    Set<String> getChildSegments(String name) {
+        Node node = find(name);
+        if (node == null || node.children == null) {
+            return Collections.emptySet();
+        }
+        return node.children.keySet();
+    }
+
+    /**
+     * 指定された名称のノードを取得する。
+     * @param name 名称
+     * @return ノード。存在しない場合はnull
+     */
+    private Node find(String name) {
+        Node node = root;
+        for (String segment : split(name)) {
+            if (node.children == null) {
+                return null;
+            }
+            node = node.children.get(segment);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * キーを"."で分割する。空のセグメントも保持する。
+     * @param key キー
+     * @return セグメント
+     */
+    private static List<String> split(String key) {
+        List<String> segments = new ArrayList<String>();
+        int start = 0;
+        int end;
+        while ((end = key.indexOf('.', start)) >= 0) {
+            segments.add(key.substring(start, end));
+            start = end + 1;
+        }
+        segments.add(key.substring(start));
+        return segments;
+    }
+
+    /**
+     * 木構造のノード。
+     * @author Kiyohito Itoh
+     */
+    private static final class Node {
+
+        /** 子ノード(キーはセグメント)。子ノードがない場合はnull */
+        private Map<String, Node> children;
+
+        /** このノードを終端とする設定のキー。設定がない場合はnull */
+        private String key;
+
+        /** このノードを終端とする設定の値 */
+        private String value;
+
+        /**
+         * 指定されたセグメントの子ノードを取得する。存在しない場合は追加する。
+         * @param segment セグメント
+         * @return 子ノード
+         */
+        private Node getOrAddChild(String segment) {
+            if (children == null) {
+                children = new HashMap<String, Node>();
+            }
+            Node child = children.get(segment);
+            if (child == null) {
+                child = new Node();
+                children.put(segment, child);
+            }
+            return child;
+        }
+
+        /**
+         * このノード以下の設定を取得する。
+         * @param result 設定を格納するマップ
+         */
+        private void collect(Map<String, String> result) {
+            if (key != null) {
+                result.put(key, value);
+            }
+            if (children != null) {
+                for (Node child : children.values()) {
+                    child.collect(result);
+                }
+            }
+        }
+    }
+}
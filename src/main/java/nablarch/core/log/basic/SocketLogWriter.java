@@ -0,0 +1,514 @@
+package nablarch.core.log.basic;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nablarch.core.log.Logger;
+import nablarch.core.util.StringUtil;
+
+/**
+ * ソケットを使用して{@link LogCollector}にログを送信するクラス。
+ * <p>
+ * 同一サーバ上の複数プロセスから同一のファイルにログを出力する場合に、
+ * {@link SynchronousFileLogWriter}のロックファイルによる排他制御の代わりに使用する。
+ * ファイルへの書き込みは{@link LogCollector}のみが行うため、プロセス間のロック取得待ちは発生しない。
+ * </p>
+ * <p>
+ * ログを出力したスレッドは、エンコード済みのログを送信待ちのバッファに格納するのみで、送信は行わない。
+ * 送信は送信用のスレッドが行い、送信待ちのログをまとめてノンブロッキングの{@link SocketChannel}に書き込む。<br/>
+ * 送信に失敗した場合は接続を破棄し、再接続の間隔を空けて再接続する。
+ * 送信途中だったログは再接続後に再送するため、{@link LogCollector}に重複して書き込まれる場合がある。
+ * つまり、接続できる間の配送は少なくとも1回(at-least-once)であり、重複の除去は行わない。<br/>
+ * 送信待ちのバッファのサイズは上限を設ける。上限を超えるログは破棄し、
+ * 送信を再開した際に、破棄した件数をWARNレベルのログとして送信する。
+ * </p>
+ * <p>
+ * 送信するデータ(フレーム)は、4バイトのヘッダ(ビッグエンディアン)とデータの組み合わせとする。
+ * ヘッダの最上位ビットは継続フラグ、残りのビットはデータ長を表す。
+ * 接続直後に書き込み先の名称(writeTarget)をUTF-8でエンコードして送信し、以降はエンコード済みのログを送信する。<br/>
+ * エンコード後のサイズが64KBからヘッダのサイズを引いたサイズを超えるログは、そのサイズ毎に分割し、
+ * 最後のフレーム以外に継続フラグを設定して送信する。{@link LogCollector}は接続毎にフレームを受信順に読み込むため、
+ * 分割したログは他のログと混在せずに組み立てられ、1件のログとしてファイルに書き込まれる。
+ * 分割したログの送信中に再接続した場合は、そのログを先頭のフレームから再送する。
+ * </p>
+ * プロパティファイルの記述ルールを下記に示す。<br>
+ * <dl>
+ * <dt>port
+ * <dd>{@link LogCollector}が待ち受けるポート番号。必須。<br>
+ *
+ * <dt>host
+ * <dd>{@link LogCollector}が待ち受けるホスト。オプション。<br>
+ *     指定しなければ127.0.0.1。
+ *
+ * <dt>writeTarget
+ * <dd>{@link LogCollector}の書き込み先の名称。必須。<br>
+ *     {@link LogCollector}は、出力ディレクトリ配下の名称のファイルに書き込む。
+ *     英数字、ドット、ハイフン、アンダースコアのみ使用できる。
+ *
+ * <dt>encoding
+ * <dd>ログのエンコードに使用する文字エンコーディング。オプション。<br>
+ *     指定しなければシステムプロパティ(file.encoding)から取得した文字エンコーディング。
+ *
+ * <dt>bufferSize
+ * <dd>送信待ちのバッファのサイズの上限。オプション。<br>
+ *     単位はキロバイト。1000バイトを1キロバイトと換算する。１以上を指定する。指定しなければ1000KB。
+ *
+ * <dt>reconnectInterval
+ * <dd>再接続の間隔(ミリ秒)。オプション。<br>
+ *     １以上を指定する。指定しなければ1000ミリ秒。
+ *
+ * <dt>terminateTimeout
+ * <dd>終了処理で送信待ちのログの送信を待つ時間(ミリ秒)。オプション。<br>
+ *     ０以上を指定する。指定しなければ5000ミリ秒。
+ * </dl>
+ *
+ * @author Kiyohito Itoh
+ */
+public class SocketLogWriter extends LogWriterSupport {
+
+    /** FQCN */
+    private static final String FQCN = SocketLogWriter.class.getName();
+
+    /** キロバイトを算出するための係数 */
+    private static final int KB = 1000;
+
+    /** 送信待ちのバッファのサイズの上限のデフォルト値(キロバイト) */
+    private static final int DEFAULT_BUFFER_SIZE = 1000;
+
+    /** 再接続の間隔(ミリ秒)のデフォルト値 */
+    private static final long DEFAULT_RECONNECT_INTERVAL = 1000;
+
+    /** 終了処理で送信待ちのログの送信を待つ時間(ミリ秒)のデフォルト値 */
+    private static final long DEFAULT_TERMINATE_TIMEOUT = 5000;
+
+    /** 1回に送信するデータの最大サイズ */
+    private static final int MAX_BATCH_SIZE = 64 * 1024;
+
+    /** ヘッダのサイズ */
+    private static final int LENGTH_SIZE = 4;
+
+    /** ヘッダの継続フラグ。後続のフレームに同じログの続きがあることを表す */
+    static final int CONTINUATION_FLAG = 0x80000000;
+
+    /** 書き込み先の名称のエンコードに使用する文字エンコーディング */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** 送信先のホスト */
+    private String host;
+
+    /** 送信先のポート番号 */
+    private int port;
+
+    /** 書き込み先の名称 */
+    private String writeTarget;
+
+    /** ログのエンコードに使用する文字エンコーディング */
+    private Charset charset;
+
+    /** 送信待ちのバッファのサイズの上限(バイト) */
+    private long bufferSize;
+
+    /** 再接続の間隔(ミリ秒) */
+    private long reconnectInterval;
+
+    /** 終了処理で送信待ちのログの送信を待つ時間(ミリ秒) */
+    private long terminateTimeout;
+
+    /** 送信待ちのログ */
+    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+
+    /** 送信待ちのログのサイズの合計(バイト) */
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    /** 送信待ちのバッファのサイズの上限を超えたため破棄したログの件数(未報告分) */
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /** 送信用のスレッド */
+    private Thread sender;
+
+    /** 終了処理中か否か */
+    private volatile boolean terminating;
+
+    /** 送信用のスレッドのみが使用する、送信途中のログ。ない場合はnull */
+    private byte[] carry;
+
+    /** 送信途中のログのうち、次にバッファに格納する位置 */
+    private int carryOffset;
+
+    /** 送信中のバッファに格納した、分割したログ。分割したログのフレームでない場合はnull */
+    private byte[] batchRecord;
+
+    /** 送信中のバッファに格納した、分割したログのフレームの開始位置 */
+    private int batchFragmentOffset;
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * プロパティファイルで指定された設定情報を取得し、送信用のスレッドを開始する。<br>
+     * 初期処理完了後、INFOレベルで設定情報を出力する。
+     */
+    @Override
+    protected void onInitialize(ObjectSettings settings) {
+
+        host = settings.getProp("host") == null ? "127.0.0.1" : settings.getProp("host");
+        port = (int) getLongProp(settings, "port", -1, 0);
+        writeTarget = settings.getRequiredProp("writeTarget");
+        if (!LogCollector.isValidTarget(writeTarget)) {
+            throw new IllegalArgumentException(
+                "invalid property was specified. 'writeTarget' must consist of alphanumerics, '.', '-' and '_'. value=["
+                + writeTarget + "].");
+        }
+
+        String encoding = settings.getProp("encoding");
+        if (encoding == null) {
+            encoding = System.getProperty("file.encoding");
+        }
+        charset = Charset.forName(encoding);
+
+        bufferSize = getLongProp(settings, "bufferSize", DEFAULT_BUFFER_SIZE, 1) * KB;
+        reconnectInterval = getLongProp(settings, "reconnectInterval", DEFAULT_RECONNECT_INTERVAL, 1);
+        terminateTimeout = getLongProp(settings, "terminateTimeout", DEFAULT_TERMINATE_TIMEOUT, 0);
+
+        sender = new Thread(new Runnable() {
+            public void run() {
+                send();
+            }
+        }, FQCN + "-" + getName());
+        sender.setDaemon(true);
+        sender.start();
+
+        writeInfo("initialized." + Logger.LS + getSettings());
+    }
+
+    /**
+     * 数値のプロパティを取得する。
+     * @param settings {@link LogWriter}の設定
+     * @param propName プロパティ名
+     * @param defaultValue 指定がない場合のデフォルト値。負の値の場合は必須とする
+     * @param min 最小値
+     * @return プロパティの値
+     */
+    private static long getLongProp(ObjectSettings settings, String propName, long defaultValue, long min) {
+        String value = defaultValue < 0 ? settings.getRequiredProp(propName) : settings.getProp(propName);
+        if (value == null) {
+            return defaultValue;
+        }
+        long number;
+        try {
+            number = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                "invalid property was specified. '" + propName + "' must be able to convert to Long. value=[" + value + "].", e);
+        }
+        if (number < min) {
+            throw new IllegalArgumentException(
+                "invalid property was specified. '" + propName + "' must be " + min + " or more. value=[" + value + "].");
+        }
+        return number;
+    }
+
+    /**
+     * 設定情報を取得する。<br>
+     * <br>
+     * 設定情報のフォーマットを下記に示す。<br>
+     * <br>
+     * WRITER NAME        = [&lt;{@link LogWriter}の名称&gt;]<br>
+     * WRITER CLASS       = [&lt;{@link LogWriter}のクラス名&gt;]<br>
+     * FORMATTER CLASS    = [&lt;{@link LogFormatter}のクラス名&gt;]<br>
+     * LEVEL              = [&lt;ログの出力制御の基準とする{@link LogLevel}&gt;]<br>
+     * FILTERS            = [&lt;{@link LogFilter}の名称&gt;]<br>
+     * HOST               = [&lt;送信先のホスト&gt;]<br>
+     * PORT               = [&lt;送信先のポート番号&gt;]<br>
+     * WRITE TARGET       = [&lt;書き込み先の名称&gt;]<br>
+     * ENCODING           = [&lt;ログのエンコードに使用する文字エンコーディング&gt;]<br>
+     * BUFFER SIZE        = [&lt;送信待ちのバッファのサイズの上限&gt;]<br>
+     * RECONNECT INTERVAL = [&lt;再接続の間隔(ミリ秒)&gt;]<br>
+     * TERMINATE TIMEOUT  = [&lt;終了処理で送信待ちのログの送信を待つ時間(ミリ秒)&gt;]<br>
+     *
+     * @return 設定情報
+     * @see LogWriterSupport#getSettings()
+     */
+    @Override
+    protected String getSettings() {
+        return new StringBuilder(512)
+                .append(super.getSettings())
+                .append("\tHOST               = [").append(host).append("]").append(Logger.LS)
+                .append("\tPORT               = [").append(port).append("]").append(Logger.LS)
+                .append("\tWRITE TARGET       = [").append(writeTarget).append("]").append(Logger.LS)
+                .append("\tENCODING           = [").append(charset.displayName()).append("]").append(Logger.LS)
+                .append("\tBUFFER SIZE        = [").append(bufferSize).append("]").append(Logger.LS)
+                .append("\tRECONNECT INTERVAL = [").append(reconnectInterval).append("]").append(Logger.LS)
+                .append("\tTERMINATE TIMEOUT  = [").append(terminateTimeout).append("]").append(Logger.LS)
+                .toString();
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * <br>
+     * INFOレベルで終了メッセージを出力した後、送信待ちのログの送信を待ってから送信用のスレッドを終了する。
+     * 終了処理で送信を待つ時間を過ぎても送信できないログは破棄する。
+     */
+    @Override
+    protected void onTerminate() {
+        writeInfo("terminated.");
+        terminating = true;
+        try {
+            sender.join(terminateTimeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sender.interrupt();
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * <br>
+     * エンコード済みのログを送信待ちのバッファに格納する。
+     * 送信待ちのバッファのサイズが上限を超える場合は、ログを破棄する。
+     */
+    @Override
+    protected void onWrite(String formattedMessage) {
+        byte[] b = StringUtil.getBytes(formattedMessage, charset);
+        if (queuedBytes.addAndGet(b.length) > bufferSize) {
+            queuedBytes.addAndGet(-b.length);
+            droppedCount.incrementAndGet();
+            return;
+        }
+        queue.offer(b);
+    }
+
+    /**
+     * 送信待ちのバッファのサイズの上限を超えたため破棄し、まだ報告していないログの件数を取得する。
+     * @return 破棄したログの件数
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * INFOレベルのメッセージを書き込む。
+     * @param message メッセージ
+     */
+    private void writeInfo(String message) {
+        LogContext context = new LogContext(FQCN, LogLevel.INFO, message, null);
+        if (needsToWrite(context)) {
+            onWrite(getFormatter().format(context));
+        }
+    }
+
+    /**
+     * 送信待ちのログを送信する。
+     * <p/>
+     * 終了処理が開始され、送信待ちのログがなくなるまで送信を繰り返す。
+     */
+    private void send() {
+        ByteBuffer batch = ByteBuffer.allocateDirect(MAX_BATCH_SIZE);
+        batch.flip();
+        SocketChannel channel = null;
+        Selector selector = null;
+        while (!(terminating && queue.isEmpty() && carry == null && !batch.hasRemaining()
+                 && droppedCount.get() == 0)) {
+            try {
+                if (channel == null) {
+                    selector = Selector.open();
+                    channel = connect(selector);
+                    rewindBatch(batch);
+                }
+                if (!batch.hasRemaining()) {
+                    fillBatch(batch);
+                    if (!batch.hasRemaining()) {
+                        continue;
+                    }
+                }
+                writeBatch(channel, selector, batch);
+            } catch (IOException e) {
+                closeQuietly(channel, selector);
+                channel = null;
+                selector = null;
+                if (!sleep(reconnectInterval)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        closeQuietly(channel, selector);
+    }
+
+    /**
+     * 送信先に接続し、書き込み先の名称を送信する。
+     * @param selector 接続と書き込みの完了待ちに使用する{@link Selector}
+     * @return 接続済みの{@link SocketChannel}
+     * @throws IOException 接続に失敗した場合
+     */
+    private SocketChannel connect(Selector selector) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            if (!channel.connect(new InetSocketAddress(host, port))) {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT);
+                while (!channel.finishConnect()) {
+                    selector.select(reconnectInterval);
+                    selector.selectedKeys().clear();
+                }
+                key.interestOps(0);
+            }
+            byte[] target = StringUtil.getBytes(writeTarget, UTF_8);
+            ByteBuffer handshake = ByteBuffer.allocate(LENGTH_SIZE + target.length);
+            handshake.putInt(target.length).put(target).flip();
+            writeBatch(channel, selector, handshake);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 再接続後に、送信途中だったバッファを先頭から再送できるようにする。
+     * <p/>
+     * バッファが分割したログの途中のフレームの場合は、新しい接続で組み立てられるよう、
+     * バッファを破棄してそのログを先頭のフレームから再送する。
+     * @param batch バッファ
+     */
+    private void rewindBatch(ByteBuffer batch) {
+        if (batchRecord != null && batchFragmentOffset > 0) {
+            carry = batchRecord;
+            carryOffset = 0;
+            batchRecord = null;
+            batchFragmentOffset = 0;
+            batch.clear();
+            batch.flip();
+        } else {
+            batch.rewind();
+        }
+    }
+
+    /**
+     * 送信待ちのログをバッファに格納する。
+     * <p/>
+     * バッファに収まらないサイズのログは、バッファに収まるサイズ毎のフレームに分割し、1つのバッファに1フレームずつ格納する。
+     * 分割したログの最後のフレーム以外には継続フラグを設定する。
+     * @param batch バッファ
+     * @throws InterruptedException 送信待ちのログを待っている間に割り込みが発生した場合
+     */
+    private void fillBatch(ByteBuffer batch) throws InterruptedException {
+        batch.clear();
+        batchRecord = null;
+        batchFragmentOffset = 0;
+        if (carry != null && carryOffset > 0) {
+            putFragment(batch);
+            batch.flip();
+            return;
+        }
+        long dropped = droppedCount.getAndSet(0);
+        if (dropped > 0) {
+            byte[] warn = StringUtil.getBytes(getFormatter().format(new LogContext(
+                    FQCN, LogLevel.WARN, dropped + " records were dropped because the send buffer was full.", null)), charset);
+            batch.putInt(warn.length).put(warn);
+        }
+        byte[] next = carry != null ? carry : queue.poll(reconnectInterval, TimeUnit.MILLISECONDS);
+        carry = null;
+        while (next != null) {
+            if (batch.remaining() < LENGTH_SIZE + next.length) {
+                if (batch.position() > 0) {
+                    carry = next;
+                    break;
+                }
+                queuedBytes.addAndGet(-next.length);
+                carry = next;
+                carryOffset = 0;
+                putFragment(batch);
+                break;
+            }
+            queuedBytes.addAndGet(-next.length);
+            batch.putInt(next.length).put(next);
+            next = queue.poll();
+        }
+        batch.flip();
+    }
+
+    /**
+     * 送信途中のログから、バッファに収まるサイズのフレームを1つ格納する。
+     * <p/>
+     * ログの続きがある場合は継続フラグを設定する。ログの最後のフレームを格納した場合は、送信途中のログをクリアする。
+     * @param batch 空のバッファ
+     */
+    private void putFragment(ByteBuffer batch) {
+        int length = Math.min(carry.length - carryOffset, batch.remaining() - LENGTH_SIZE);
+        boolean last = carryOffset + length == carry.length;
+        batchRecord = carry;
+        batchFragmentOffset = carryOffset;
+        batch.putInt(last ? length : (length | CONTINUATION_FLAG)).put(carry, carryOffset, length);
+        if (last) {
+            carry = null;
+            carryOffset = 0;
+        } else {
+            carryOffset += length;
+        }
+    }
+
+    /**
+     * バッファの内容を全て送信する。
+     * @param channel 送信に使用する{@link SocketChannel}
+     * @param selector 書き込みの完了待ちに使用する{@link Selector}
+     * @param buffer バッファ
+     * @throws IOException 送信に失敗した場合
+     */
+    private void writeBatch(SocketChannel channel, Selector selector, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                SelectionKey key = channel.keyFor(selector);
+                if (key == null) {
+                    key = channel.register(selector, SelectionKey.OP_WRITE);
+                } else {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+                selector.select(reconnectInterval);
+                selector.selectedKeys().clear();
+                key.interestOps(0);
+            }
+        }
+    }
+
+    /**
+     * 指定された時間スリープする。
+     * @param millis スリープする時間(ミリ秒)
+     * @return 割り込みが発生した場合はfalse
+     */
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * {@link SocketChannel}と{@link Selector}をクローズする。例外は無視する。
+     * @param channel {@link SocketChannel}
+     * @param selector {@link Selector}
+     */
+    private static void closeQuietly(SocketChannel channel, Selector selector) {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            if (selector != null) {
+                selector.close();
+            }
+        } catch (IOException e) {
+            // 接続を破棄するため例外は無視する。
+        }
+    }
+}
@@ -2,6 +2,13 @@ package nablarch.core.log.basic;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import nablarch.core.log.Logger;
 import nablarch.core.log.app.FailureLogUtil;
@@ -21,6 +28,26 @@ import nablarch.core.util.Builder;
  * もし強制的にロックファイルを削除できない場合は、ロックを取得していない状態で強制的にログの出力を行い、処理を終了する。<br/>
  * また、ロックファイルの生成に失敗した場合および、ロック取得待ちの際に割り込みが発生した場合も、ロックを取得していない状態で強制的にログの出力を行い、処理を終了する。
  * </p>
+ * <p>
+ * lockModeに"channel"を指定した場合は、ロックファイルの生成と削除の代わりに、
+ * ロックファイルに対する{@link FileChannel#lock()}を使用して排他制御を行う。<br/>
+ * ロック取得待ちはOSが管理するため、再試行のためのスリープは行わない。
+ * また、ロックを取得したプロセスが異常終了した場合はOSがロックを解放するため、ロックファイルが残存してもロック取得待ちは発生しない。
+ * そのため、このモードではlockRetryInterval、lockWaitTime、failureCodeForceDeleteLockFileは使用しない。<br/>
+ * ロックファイルのオープンまたはロックの取得に失敗した場合はfailureCodeCreateLockFile、
+ * ロック取得待ちの際に割り込みが発生した場合はfailureCodeInterruptLockWait、
+ * ロックの解放に失敗した場合はfailureCodeReleaseLockFileを使用して、ロックを取得していない状態で強制的にログの出力を行う。<br/>
+ * 同じロックファイルを使用する全てのプロセスで、同じlockModeを指定すること。
+ * また、このモードでは同じJVM内の複数の{@link LogWriter}で同じロックファイルを指定してはならない。
+ * lockModeを指定しない場合、または"file"を指定した場合は、ロックファイルの生成と削除による排他制御を行う。
+ * </p>
+ * <p>
+ * batchWriteにtrueを指定した場合は、同じJVM内の複数のスレッドから出力されたログをキューに集め、
+ * ロックを取得したスレッドがキューに溜まった全てのログを1回のロック取得でまとめて書き込む。<br/>
+ * ロックの取得回数はログの件数ではなく書き込みの回数に比例するため、同時に出力されるログが多い場合にロック取得待ちを削減できる。
+ * ログを出力したスレッドは、自身のログが書き込まれるまで待機する。
+ * ロックの取得に失敗した場合は、まとめたログ全体を強制的に出力する。
+ * </p>
  * @author Masato Inoue
  */
 public class SynchronousFileLogWriter extends FileLogWriter {
@@ -37,6 +64,12 @@ public class SynchronousFileLogWriter extends FileLogWriter {
     /** ロック取得の待機時間（ミリ秒）のデフォルト値 */
     private static final int DEFAULT_LOCK_WAIT_TIME = 1800;
 
+    /** ロックファイルの生成と削除で排他制御を行うモード */
+    private static final String LOCK_MODE_FILE = "file";
+
+    /** ロックファイルに対する{@link FileChannel#lock()}で排他制御を行うモード */
+    private static final String LOCK_MODE_CHANNEL = "channel";
+
     /** ロックファイル */
     private File lockFile;
 
@@ -49,6 +82,21 @@ public class SynchronousFileLogWriter extends FileLogWriter {
     /** ロック取得の待機時間（ミリ秒） */
     private long lockWaitTime;
 
+    /** 排他制御のモード */
+    private String lockMode;
+
+    /** ロックファイルのチャネル（lockModeが"channel"の場合のみ使用する） */
+    private FileChannel lockChannel;
+
+    /** 取得中のロック（lockModeが"channel"の場合のみ使用する） */
+    private FileLock currentLock;
+
+    /** 複数のログを1回のロック取得でまとめて書き込むか否か */
+    private boolean batchWrite;
+
+    /** 書き込み待ちのログ（batchWriteがtrueの場合のみ使用する） */
+    private final Queue<PendingRecord> pendingRecords = new ConcurrentLinkedQueue<PendingRecord>();
+
     /** ロックファイルが生成できない場合の障害通知コード */
     private String failureCodeCreateLockFile = null;
 
@@ -112,6 +160,15 @@ public class SynchronousFileLogWriter extends FileLogWriter {
             }
         }
 
+        lockMode = settings.getProp("lockMode") == null ? LOCK_MODE_FILE : settings.getProp("lockMode");
+        if (!LOCK_MODE_FILE.equals(lockMode) && !LOCK_MODE_CHANNEL.equals(lockMode)) {
+            throw new IllegalArgumentException(Builder.concat(
+                    "invalid property was specified. 'lockMode' must be '", LOCK_MODE_FILE, "' or '", LOCK_MODE_CHANNEL
+                  , "'. value=[", lockMode, "]."));
+        }
+
+        batchWrite = Boolean.valueOf(settings.getProp("batchWrite"));
+
         if (settings.getProp("failureCodeCreateLockFile") != null) {
             failureCodeCreateLockFile = settings.getProp("failureCodeCreateLockFile");
         }
@@ -138,6 +195,7 @@ public class SynchronousFileLogWriter extends FileLogWriter {
      * WRITER CLASS       = [<{@link LogWriter}のクラス名>]
      * FORMATTER CLASS    = [<{@link LogFormatter}のクラス名>]
      * LEVEL              = [<ログの出力制御の基準とするLogLevel>]
+     * FILTERS            = [<LogFilterの名称>]
      * FILE PATH          = [<書き込み先のファイルパス>]
      * ENCODING           = [<書き込み時に使用する文字エンコーディング>]
      * OUTPUT BUFFER SIZE = [<出力バッファのサイズ>]
@@ -145,6 +203,8 @@ public class SynchronousFileLogWriter extends FileLogWriter {
      * MAX FILE SIZE      = [<書き込み先ファイルの最大サイズ>]
      * CURRENT FILE SIZE  = [<書き込み先ファイルの現在のサイズ>]
      * LOCK FILE PATH                      = [<ロックファイルのパス>]
+     * LOCK MODE                           = [<排他制御のモード>]
+     * BATCH WRITE                         = [<複数のログを1回のロック取得でまとめて書き込むか否か>]
      * LOCK RETRY INTERVAL                 = [<ロック取得の再試行間隔（ミリ秒）>]
      * LOCK WAIT TIME                      = [<ロック取得の待機時間（ミリ秒）>]
      * FAILURE CODE CREATE LOCK FILE       = [<生成したロックファイルを削除できない場合の障害コード>]
@@ -162,6 +222,8 @@ public class SynchronousFileLogWriter extends FileLogWriter {
         return new StringBuilder(768)
                 .append(super.getSettings())
                 .append("\tLOCK FILE PATH                      = [").append(lockFilePath).append("]").append(Logger.LS)
+                .append("\tLOCK MODE                           = [").append(lockMode).append("]").append(Logger.LS)
+                .append("\tBATCH WRITE                         = [").append(batchWrite).append("]").append(Logger.LS)
                 .append("\tLOCK RETRY INTERVAL                 = [").append(lockRetryInterval).append("]").append(Logger.LS)
                 .append("\tLOCK WAIT TIME                      = [").append(lockWaitTime).append("]").append(Logger.LS)
                 .append("\tFAILURE CODE CREATE LOCK FILE       = [").append(failureCodeCreateLockFile).append("]").append(Logger.LS)
@@ -175,9 +237,41 @@ public class SynchronousFileLogWriter extends FileLogWriter {
      */
     @Override
     public void write(LogContext context) {
-        if (needsToWrite(context)) {
-            onWrite(getFormatter().format(context), context);
+        if (!needsToWrite(context)) {
+            return;
+        }
+        String formattedMessage = getFormatter().format(context);
+        if (batchWrite) {
+            pendingRecords.offer(new PendingRecord(formattedMessage, context));
+            writePendingRecords();
+        } else {
+            onWrite(formattedMessage, context);
         }
+        countWrite(context);
+    }
+
+    /**
+     * 書き込み待ちのログをまとめて書き込む。
+     * <p/>
+     * 他のスレッドが書き込み中の場合は、書き込みの完了を待ってから書き込み待ちのログを確認する。
+     * 自身のログが既に他のスレッドによって書き込まれていた場合は何もしない。
+     */
+    private synchronized void writePendingRecords() {
+        PendingRecord first = pendingRecords.poll();
+        if (first == null) {
+            return;
+        }
+        PendingRecord next = pendingRecords.poll();
+        if (next == null) {
+            onWrite(first.formattedMessage, first.context);
+            return;
+        }
+        StringBuilder batch = new StringBuilder(first.formattedMessage.length() * 4);
+        batch.append(first.formattedMessage);
+        for (; next != null; next = pendingRecords.poll()) {
+            batch.append(next.formattedMessage);
+        }
+        onWrite(batch.toString(), first.context);
     }
 
     /**
@@ -214,6 +308,9 @@ public class SynchronousFileLogWriter extends FileLogWriter {
      * @return ロックファイルの作成結果（true:成功 false:失敗）
      */
     protected boolean lockFile(String formattedMessage, LogContext context) {
+        if (LOCK_MODE_CHANNEL.equals(lockMode)) {
+            return lockChannel(formattedMessage, context);
+        }
         long before = System.currentTimeMillis();
 
         // ロックファイル作成が成功するまで何度も試行する
@@ -250,6 +347,85 @@ public class SynchronousFileLogWriter extends FileLogWriter {
     }
 
 
+    /**
+     * ロックファイルに対する{@link FileChannel#lock()}でロックを取得する。
+     * <p/>
+     * ロックファイルのチャネルは最初のロック取得時にオープンし、以降のロック取得で再利用する。
+     * ロック取得待ちの際に割り込みが発生した場合はチャネルがクローズされるため、次回のロック取得時に再度オープンする。<br>
+     * 呼び出し時点でスレッドが割り込み状態の場合、そのままロックを取得するとチャネルがクローズされてしまうため、
+     * 割り込み状態をクリアしてからロックを取得し、取得後に割り込み状態を復元する。
+     * @param formattedMessage フォーマット済みのログ
+     * @param context ログエントリオブジェクト
+     * @return ロックの取得結果（true:成功 false:失敗）
+     */
+    private boolean lockChannel(String formattedMessage, LogContext context) {
+        String lockFileAbsolutePath = lockFile.getAbsolutePath();
+        boolean interrupted = Thread.interrupted();
+        try {
+            if (lockChannel == null || !lockChannel.isOpen()) {
+                lockChannel = new RandomAccessFile(lockFile, "rw").getChannel();
+            }
+            currentLock = lockChannel.lock();
+            return true;
+        } catch (FileLockInterruptionException e) {
+            lockChannel = null;
+            forceWrite(formattedMessage, context, getFormattingFailureMessage(
+                    context
+                  , "interrupted while waiting for lock."
+                  , failureCodeInterruptLockWait
+                  , lockFileAbsolutePath));
+            return false;
+        } catch (ClosedByInterruptException e) {
+            lockChannel = null;
+            forceWrite(formattedMessage, context, getFormattingFailureMessage(
+                    context
+                  , "interrupted while waiting for lock."
+                  , failureCodeInterruptLockWait
+                  , lockFileAbsolutePath));
+            return false;
+        } catch (IOException e) {
+            closeLockChannel();
+            forceWrite(formattedMessage, context, getFormattingFailureMessage(
+                    context
+                  , Builder.concat("failed to lock the lock file. perhaps lock file path was invalid. lock file path=[", lockFileAbsolutePath, "].")
+                  , failureCodeCreateLockFile
+                  , lockFileAbsolutePath));
+            return false;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * ロックファイルのチャネルをクローズする。
+     * <p/>
+     * クローズに失敗した場合でも、チャネルは使用しない。
+     */
+    private void closeLockChannel() {
+        if (lockChannel == null) {
+            return;
+        }
+        try {
+            lockChannel.close();
+        } catch (IOException e) {
+            // 次回のロック取得時に新しいチャネルをオープンするため、例外は無視する。
+        }
+        lockChannel = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * lockModeが"channel"の場合は、ロックファイルのチャネルをクローズする。
+     */
+    @Override
+    protected synchronized void onTerminate() {
+        closeLockChannel();
+        super.onTerminate();
+    }
+
     /**
      * ロック待ち処理を行う。
      * <p/>
@@ -315,10 +491,15 @@ public class SynchronousFileLogWriter extends FileLogWriter {
      * ログ出力後に、ロックを解放する。
      * <p/>
      * ロックの解放処理は、ロックファイルを削除することによって行う。
+     * lockModeが"channel"の場合は、ロックファイルに対して取得したロックを解放する。
      * @param formattedMessage フォーマット済みのログ(本メソッドでは使用していない)
      * @param context ログエントリオブジェクト
      */
     protected void releaseLock(String formattedMessage, LogContext context) {
+        if (LOCK_MODE_CHANNEL.equals(lockMode)) {
+            releaseChannelLock(context);
+            return;
+        }
         if (!lockFile.delete()) {
             String lockFileAbsolutePath = lockFile.getAbsolutePath();
             String failureMessage = getFormattingFailureMessage(
@@ -330,6 +511,49 @@ public class SynchronousFileLogWriter extends FileLogWriter {
         }
     }
 
+    /**
+     * ロックファイルに対する{@link FileChannel#lock()}で取得したロックを解放する。
+     * @param context ログエントリオブジェクト
+     */
+    private void releaseChannelLock(LogContext context) {
+        FileLock lock = currentLock;
+        currentLock = null;
+        try {
+            lock.release();
+        } catch (IOException e) {
+            closeLockChannel();
+            String lockFileAbsolutePath = lockFile.getAbsolutePath();
+            String failureMessage = getFormattingFailureMessage(
+                    context
+                  , Builder.concat("failed to release lock. lock file path=[", lockFileAbsolutePath, "].")
+                  , failureCodeReleaseLockFile
+                  , lockFileAbsolutePath);
+            super.onWrite(failureMessage);
+        }
+    }
+
+    /**
+     * 書き込み待ちのログを保持するクラス。
+     */
+    private static final class PendingRecord {
+
+        /** フォーマット済みのログ */
+        private final String formattedMessage;
+
+        /** ログエントリオブジェクト */
+        private final LogContext context;
+
+        /**
+         * コンストラクタ。
+         * @param formattedMessage フォーマット済みのログ
+         * @param context ログエントリオブジェクト
+         */
+        private PendingRecord(String formattedMessage, LogContext context) {
+            this.formattedMessage = formattedMessage;
+            this.context = context;
+        }
+    }
+
     /**
      * 障害メッセージを取得する。
      * @param context ログエントリオブジェクト
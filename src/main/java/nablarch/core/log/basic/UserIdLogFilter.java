@@ -0,0 +1,38 @@
+package nablarch.core.log.basic;
+
+import java.util.Set;
+
+/**
+ * ユーザIDで判定を行う{@link LogFilter}。<br>
+ * <br>
+ * プロパティファイルの記述ルールを下記に示す。
+ * <dl>
+ * <dt>userIds
+ * <dd>ユーザID。必須。<br>
+ *     複数指定する場合はカンマ区切り。<br>
+ *     いずれかのユーザIDと一致するログを条件に一致するとみなす。
+ * </dl>
+ * 判定結果の設定は{@link LogFilterSupport}のJavadocを参照すること。
+ * 
+ * @author Kiyohito Itoh
+ */
+public class UserIdLogFilter extends LogFilterSupport {
+    
+    /** ユーザID */
+    private Set<String> userIds;
+    
+    /**
+     * {@inheritDoc}
+     */
+    protected void onInitialize(ObjectSettings settings) {
+        userIds = getRequiredValues(settings, "userIds");
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    protected boolean matches(LogContext context) {
+        String userId = context.getUserId();
+        return userId != null && userIds.contains(userId);
+    }
+}